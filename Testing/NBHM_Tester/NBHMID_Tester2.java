@@ -526,6 +526,102 @@ public class NBHMID_Tester2 extends TestCase {
     assertEquals("values().iterator() count", itemCount, iteratorCount);
   }
 
+  // Growing a map copies it over and over.  A lookup or insert reaching a
+  // key slot slammed by a copy must go straight on to the new table rather
+  // than walk the rest of its reprobe limit, so growing a map costs only a
+  // small multiple of filling a presized one.
+  public void testGrowthProbeCutout() {
+    final int CNT = 1<<20;
+    final Integer[] ks = new Integer[CNT];
+    for( int i=0; i<CNT; i++ ) ks[i] = i;
+    double best = Double.MAX_VALUE;
+    for( int r=0; r<3; r++ ) { // Best of 3; the first also warms up
+      final long t0 = System.nanoTime();
+      final NonBlockingIdentityHashMap<Integer,Integer> presized = new NonBlockingIdentityHashMap<Integer,Integer>(CNT);
+      for( Integer k : ks ) presized.put(k,k);
+      final long t1 = System.nanoTime();
+      final NonBlockingIdentityHashMap<Integer,Integer> grown = new NonBlockingIdentityHashMap<Integer,Integer>();
+      for( Integer k : ks ) grown.put(k,k);
+      final long t2 = System.nanoTime();
+      assertThat( grown.size(), is(CNT) );
+      best = Math.min(best,(double)(t2-t1)/(t1-t0));
+    }
+    assertTrue( "grown/presized time "+best, best < 6 );
+  }
+
+  // Values overwritten while the table grows: a copy stages a value, then a
+  // racing put may replace it before the slot is frozen.  No update is lost.
+  public void testCopyWhileUpdating() throws Exception {
+    final NonBlockingIdentityHashMap<Integer,Integer> nbhmid = new NonBlockingIdentityHashMap<Integer,Integer>();
+    final int THRDS = 4, CNT = 1<<15, ROUNDS = 8;
+    final Integer[] ks = new Integer[CNT]; // Identity keys: the same boxes everywhere
+    for( int i=0; i<CNT; i++ ) ks[i] = new Integer(i);
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int base = t;
+      ts[t] = new Thread() { public void run() {
+        for( int r=0; r<ROUNDS; r++ )
+          for( int i=base; i<(CNT>>(ROUNDS-1-r)); i+=THRDS )
+            nbhmid.put(ks[i],r); // Grow the key range each round
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhmid.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbhmid.get(ks[i]), is(ROUNDS-1) );
+  }
+
+  // Table capacity, from the private top-level table: slot 1 holds the hashes
+  private static int capacity( final NonBlockingIdentityHashMap<?,?> nbhmid ) throws Exception {
+    final java.lang.reflect.Field f = NonBlockingIdentityHashMap.class.getDeclaredField("_kvs");
+    f.setAccessible(true);
+    return ((int[])((Object[])f.get(nbhmid))[1]).length;
+  }
+
+  // Maps with the preset policies
+  public void testResizePolicy() throws Exception {
+    final Integer[] ks = new Integer[10000];
+    for( int i=0; i<ks.length; i++ ) ks[i] = new Integer(i);
+    for( ResizePolicy p : new ResizePolicy[]{ResizePolicy.DENSE,ResizePolicy.DEFAULT,ResizePolicy.SPEED} ) {
+      final NonBlockingIdentityHashMap<Integer,String> nbhmid = new NonBlockingIdentityHashMap<Integer,String>(0,p);
+      for( Integer k : ks ) nbhmid.put(k,"x");
+      assertThat( nbhmid.size(), is(ks.length) );
+      for( Integer k : ks ) assertThat( nbhmid.get(k), is("x") );
+      assertThat( nbhmid.get(new Integer(0)), nullValue() );
+    }
+    // Sized up front to the load factor
+    assertThat( capacity(new NonBlockingIdentityHashMap<Integer,String>(1000,ResizePolicy.DENSE)), is(2048) );
+    assertThat( capacity(new NonBlockingIdentityHashMap<Integer,String>(1000)), is(4096) );
+    assertThat( capacity(new NonBlockingIdentityHashMap<Integer,String>(1000,ResizePolicy.SPEED)), is(8192) );
+    try { new NonBlockingIdentityHashMap<Integer,String>(0,null); fail(); } catch( NullPointerException e ) { }
+  }
+
+  // A table emptied by removes and then churned through shrinks at its next
+  // resize, unless that comes within the policy's churn window of the last
+  public void testChurnWindow() throws Exception {
+    final int CNT = 50000, LIVE = 100;
+    final Integer[] ks = new Integer[4*CNT];
+    for( int i=0; i<ks.length; i++ ) ks[i] = new Integer(i);
+    for( long churn : new long[]{0,600000} ) {
+      final NonBlockingIdentityHashMap<Integer,String> nbhmid = new NonBlockingIdentityHashMap<Integer,String>(0,new ResizePolicy(0.25,10,2,churn,0.125));
+      for( int i=0; i<CNT; i++ ) nbhmid.put(ks[i],"x");
+      final int big = capacity(nbhmid);
+      for( int i=LIVE; i<CNT; i++ ) nbhmid.remove(ks[i]);
+      int min = big;
+      for( int i=CNT; i<4*CNT; i++ ) {
+        nbhmid.put(ks[i],"y");
+        nbhmid.remove(ks[i-LIVE]);
+        min = Math.min(min,capacity(nbhmid));
+      }
+      assertThat( nbhmid.size(), is(2*LIVE) );
+      for( int i=0; i<LIVE; i++ ) assertThat( nbhmid.get(ks[i]), is("x") );
+      for( int i=4*CNT-LIVE; i<4*CNT; i++ ) assertThat( nbhmid.get(ks[i]), is("y") );
+      if( churn == 0 ) assertTrue( min < big/8 );
+      else             assertThat( min, is(big) );
+    }
+  }
+
   // This test is a copy of the JCK test Hashtable2027, which is incorrect.
   // The test requires a particular order of values to appear in the esa
   // array - but this is not part of the spec.  A different implementation
@@ -508,4 +508,322 @@ public class NBHML_Tester2 extends TestCase {
     assertEquals("values().iterator() count", itemCount, iteratorCount);
   }
 
+  // Parallel streams split the snapshot and still see every key exactly once,
+  // including the special zero key
+  public void testSpliterator() {
+    final int CNT = 100000;
+    for( int i=0; i<CNT; i++ )
+      _nbhml.put(i,"v"+i);
+    assertThat( _nbhml.keySet().parallelStream().count(), is((long)CNT) );
+    assertThat( _nbhml.keySet().parallelStream().mapToLong(x -> x).sum(), is((long)CNT*(CNT-1)/2) );
+    assertThat( _nbhml.values().parallelStream().distinct().count(), is((long)CNT) );
+    assertThat( _nbhml.entrySet().parallelStream().filter(e -> e.getValue().equals("v"+e.getKey())).count(), is((long)CNT) );
+  }
+  // Bulk operations, both sequential and split across the ForkJoin pool
+  public void testBulkOps() {
+    final int CNT = 100000;
+    for( int i=0; i<CNT; i++ )
+      _nbhml.put(i,"v"+i);
+    final long sum = (long)CNT*(CNT-1)/2;
+    for( long thresh : new long[]{1,1000,Long.MAX_VALUE} ) {
+      final java.util.concurrent.atomic.AtomicLong cnt = new java.util.concurrent.atomic.AtomicLong();
+      _nbhml.forEach(thresh, (k,v) -> { assertEquals("v"+k,v); cnt.addAndGet(k); });
+      assertThat( cnt.get(), is(sum) );
+      assertThat( _nbhml.reduceKeysToLong(thresh, k -> 1, 0L, Long::sum), is((long)CNT) );
+      assertThat( _nbhml.reduceValues(thresh, (a,b) -> a.length() >= b.length() ? a : b).length(), is(6) );
+      assertThat( _nbhml.search(thresh, (k,v) -> k == 0 ? v : null), is("v0") );
+      assertThat( _nbhml.search(thresh, (k,v) -> k < 0 ? v : null), nullValue() );
+    }
+  }
+  // Presized putAll and parallel bulk construction
+  public void testBulkLoad() {
+    final int CNT = 100000;
+    long[] keys = new long[CNT];
+    String[] vals = new String[CNT];
+    java.util.HashMap<Long,String> hm = new java.util.HashMap<Long,String>();
+    for( int i=0; i<CNT; i++ ) { keys[i] = i; vals[i] = "v"+i; hm.put((long)i,"v"+i); }
+    NonBlockingHashMapLong<String> nbhml = NonBlockingHashMapLong.bulkLoad(keys,vals);
+    assertThat( nbhml.size(), is(CNT) );
+    assertEquals( hm, nbhml );
+    _nbhml.put(-1,"neg");
+    _nbhml.putAll(hm);
+    assertThat( _nbhml.size(), is(CNT+1) );
+    assertThat( _nbhml.get(0), is("v0") );
+  }
+
+  // Segmented tables: many resizes through chunked tables with concurrent
+  // writers, and a table too big for int indices which is never allocated
+  // beyond the chunks actually used
+  public void testSegmented() throws Exception {
+    final NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>(1,true,true);
+    final int THRDS = 4, CNT = 100000;
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final long base = (long)t*CNT;
+      ts[t] = new Thread() { public void run() {
+        for( long i=0; i<CNT; i++ )
+          map.put(base+i,"v"+(base+i));
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( map.size(), is(THRDS*CNT) );
+    for( long i=0; i<THRDS*CNT; i++ )
+      assertThat( map.get(i), is("v"+i) );
+    for( long i=0; i<THRDS*CNT; i+=2 )
+      map.remove(i);
+    assertThat( map.size(), is(THRDS*CNT/2) );
+    assertThat( map.keySet().parallelStream().count(), is((long)THRDS*CNT/2) );
+
+    final NonBlockingHashMapLong<String> big = new NonBlockingHashMapLong<String>(1L<<33,true,true);
+    for( long k : new long[]{1,(1L<<32)+1,(1L<<33)-1,-5} )
+      big.put(k,"k"+k);
+    assertThat( big.size(), is(4) );
+    assertThat( big.get((1L<<32)+1), is("k"+((1L<<32)+1)) );
+    assertThat( big.get(2), nullValue() );
+  }
+
+  // Values overwritten while the table grows, flat and segmented: a copy
+  // stages a value, then a racing put may replace it before the slot is
+  // frozen.  No update is lost.
+  public void testCopyWhileUpdating() throws Exception {
+    for( final boolean seg : new boolean[]{false,true} ) {
+      final NonBlockingHashMapLong<Integer> nbhml = new NonBlockingHashMapLong<Integer>(16,true,seg);
+      final int THRDS = 4, CNT = 1<<17, ROUNDS = 6;
+      Thread[] ts = new Thread[THRDS];
+      for( int t=0; t<THRDS; t++ ) {
+        final int base = t;
+        ts[t] = new Thread() { public void run() {
+          for( int r=0; r<ROUNDS; r++ )
+            for( int i=base; i<(CNT>>(ROUNDS-1-r)); i+=THRDS )
+              nbhml.put(i,Integer.valueOf(r)); // Grow the key range each round
+        } };
+        ts[t].start();
+      }
+      for( Thread t : ts ) t.join();
+      assertThat( nbhml.size(), is(CNT) );
+      for( int i=0; i<CNT; i++ )
+        assertThat( nbhml.get(i), is(ROUNDS-1) );
+    }
+  }
+
+  // Pre-growing, trimming and capacity-preserving clear, flat and segmented,
+  // with racing updates while the table is trimmed
+  public void testCapacity() throws Exception {
+    for( final boolean seg : new boolean[]{false,true} ) {
+      final NonBlockingHashMapLong<Integer> nbhml = new NonBlockingHashMapLong<Integer>(16,true,seg);
+      final int CNT = 1<<17;
+      nbhml.ensureCapacity(CNT);
+      for( int i=0; i<CNT; i++ ) nbhml.put(i,Integer.valueOf(i));
+      for( int i=100; i<CNT; i++ ) nbhml.remove(i);
+      nbhml.trimToSize();
+      assertThat( nbhml.size(), is(100) );
+      for( int i=0; i<CNT; i++ )
+        assertThat( nbhml.get(i), i<100 ? is(i) : nullValue() );
+      try { nbhml.ensureCapacity(-1); fail(); } catch( IllegalArgumentException e ) { }
+
+      final int THRDS = 4;
+      Thread[] ts = new Thread[THRDS];
+      for( int t=0; t<THRDS; t++ ) {
+        final int base = CNT+t;
+        ts[t] = new Thread() { public void run() {
+          for( int r=0; r<200; r++ ) {
+            for( int i=base; i<CNT+4096; i+=THRDS ) nbhml.put(i,Integer.valueOf(i));
+            for( int i=base; i<CNT+4096; i+=THRDS ) assertThat( nbhml.remove(i), is(i) );
+          }
+        } };
+        ts[t].start();
+      }
+      for( Thread t : ts ) while( t.isAlive() ) { nbhml.trimToSize(); Thread.sleep(1); }
+      for( Thread t : ts ) t.join();
+      assertThat( nbhml.size(), is(100) );
+      for( int i=0; i<100; i++ ) assertThat( nbhml.get(i), is(i) );
+
+      nbhml.put(-1,Integer.valueOf(-1)); // Also clears the NO_KEY mapping
+      nbhml.clear(true);
+      assertThat( nbhml.size(), is(0) );
+      assertThat( nbhml.get(-1), nullValue() );
+      for( int i=0; i<CNT; i++ ) nbhml.put(i,Integer.valueOf(-i));
+      assertThat( nbhml.size(), is(CNT) );
+      nbhml.clear(false);
+      assertThat( nbhml.size(), is(0) );
+      assertThat( nbhml.get(1), nullValue() );
+    }
+  }
+
+  // Round trip through the binary codec, keys as raw longs
+  public void testBinaryCodec() throws Exception {
+    final NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>();
+    for( long i=-50000; i<50000; i++ ) nbhml.put(i*0x9E3779B97F4A7C15L,"v"+i);
+    nbhml.put(Long.MIN_VALUE,"min"); // An extreme key, must survive as raw bits
+    nbhml.put(0,"zero");             // The NO_KEY sentinel, stored off-table
+    File f = File.createTempFile("nbhml",".bin");
+    f.deleteOnExit();
+    try( java.nio.channels.FileChannel ch = new RandomAccessFile(f,"rw").getChannel() ) {
+      BinaryCodec.write(nbhml,BinaryCodec.STRING,ch);
+    }
+    NonBlockingHashMapLong<String> nbhml2;
+    try( java.nio.channels.FileChannel ch = new RandomAccessFile(f,"r").getChannel() ) {
+      nbhml2 = BinaryCodec.readHashMapLong(BinaryCodec.STRING,ch);
+    }
+    assertEquals( nbhml, nbhml2 );
+    assertThat( nbhml2.get(Long.MIN_VALUE), is("min") );
+
+    java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(1<<22);
+    BinaryCodec.write(nbhml,BinaryCodec.STRING,buf);
+    buf.flip();
+    assertEquals( nbhml, BinaryCodec.readHashMapLong(BinaryCodec.STRING,buf) );
+    buf.flip();
+    buf.limit(buf.limit()-1);   // Truncated
+    try { BinaryCodec.readHashMapLong(BinaryCodec.STRING,buf); fail(); }
+    catch( java.nio.BufferUnderflowException e ) { }
+  }
+
+  // Exact and estimated sizes, and the cheap isEmpty
+  public void testSizes() throws Exception {
+    final NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>();
+    assertTrue( nbhml.isEmpty() );
+    nbhml.put(0,"zero");        // Key 0 lives outside the table
+    assertFalse( nbhml.isEmpty() );
+    assertThat( nbhml.estimatedSize(), is(1L) );
+    nbhml.remove(0);
+    assertTrue( nbhml.isEmpty() );
+    final int CNT = 100000;
+    Thread[] ts = new Thread[8];
+    for( int t=0; t<ts.length; t++ ) {
+      final long base = t*CNT;
+      ts[t] = new Thread() { public void run() {
+        for( long i=base+1; i<=base+CNT; i++ ) { nbhml.put(i,"x"); nbhml.remove(i); nbhml.put(i,"x"); }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhml.exactSize(), is((long)ts.length*CNT) );
+    Thread.sleep(2);            // Let the cached estimate go stale
+    assertThat( nbhml.estimatedSize(), is((long)ts.length*CNT) );
+    assertThat( nbhml.mappingCount(), is(nbhml.estimatedSize()) );
+    for( long i=2; i<=ts.length*CNT; i++ ) nbhml.remove(i);
+    for( int i=0; i<3; i++ ) assertFalse( nbhml.isEmpty() );
+    nbhml.remove(1);
+    assertTrue( nbhml.isEmpty() );
+  }
+
+  // Opt-in JMX bean, read through the platform MBean server
+  public void testMBean() throws Exception {
+    final javax.management.MBeanServer mbs = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+    final javax.management.ObjectName on = _nbhml.registerMBean("test-nbhml");
+    try {
+      assertThat( on.getKeyProperty("type"), is("NonBlockingHashMapLong") );
+      for( long i=0; i<10000; i++ ) _nbhml.put(i*7,"x");
+      assertThat( (Long)mbs.getAttribute(on,"Size"), is(_nbhml.estimatedSize()) );
+      assertTrue( (Long)mbs.getAttribute(on,"Resizes") > 0 );
+      assertTrue( (Long)mbs.getAttribute(on,"Capacity") >= 10000 );
+      assertTrue( (Long)mbs.getAttribute(on,"Slots") >= 9999 );
+      assertTrue( (Double)mbs.getAttribute(on,"AverageProbeLength") >= 0 );
+      assertThat( (Long)mbs.getAttribute(on,"CopyTotal"), is(0L) );
+    } finally {
+      _nbhml.unregisterMBean();
+    }
+    assertFalse( mbs.isRegistered(on) );
+  }
+
+  // Slot counts and probe histogram of a quiet table
+  public void testStats() {
+    NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>();
+    for( long i=1; i<=1000; i++ ) nbhml.put(i,"x");
+    for( long i=2; i<=1000; i+=2 ) nbhml.remove(i);
+    nbhml.put(0,"zero");        // Kept outside the table
+    TableStats ts = nbhml.stats();
+    assertThat( ts.live(), is(500L) );
+    assertThat( ts.tombstones(), is(500L) );
+    assertThat( ts.capacity(), is(ts.live()+ts.tombstones()+ts.empty()) );
+    assertThat( ts.depth(), is(1) );
+    long sum=0;
+    for( long n : ts.probeHistogram() ) sum += n;
+    assertThat( sum, is(500L) );
+    assertTrue( ts.retainedBytes() > ts.capacity()*12 );
+  }
+
+  // Maps with each preset policy; the boolean constructors pick DENSE or DEFAULT
+  public void testResizePolicy() {
+    NonBlockingHashMapLong<String> dense = new NonBlockingHashMapLong<String>(true);
+    NonBlockingHashMapLong<String> speed = new NonBlockingHashMapLong<String>(0,ResizePolicy.SPEED);
+    final java.util.Random r = new java.util.Random(1);
+    final long[] ks = new long[6000];
+    for( int i=0; i<ks.length; i++ ) { ks[i] = r.nextLong(); dense.put(ks[i],"x"); speed.put(ks[i],"x"); }
+    assertThat( dense.size(), is(ks.length) );
+    assertThat( speed.size(), is(ks.length) );
+    for( long k : ks ) assertThat( dense.get(k), is("x") );
+    for( long k : ks ) assertThat( speed.get(k), is("x") );
+    // Grown to the load factor
+    for( ResizePolicy p : new ResizePolicy[]{ResizePolicy.DENSE,ResizePolicy.DEFAULT,ResizePolicy.SPEED} ) {
+      NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>(0,p);
+      nbhml.ensureCapacity(1000);
+      assertThat( nbhml.stats().capacity(), is((long)Long.highestOneBit((long)(1000/p.loadFactor()))<<1) );
+    }
+  }
+
+  // A table emptied by removes and then churned through shrinks at its next
+  // resize, unless that comes within the policy's churn window of the last
+  public void testChurnWindow() {
+    for( long churn : new long[]{0,600000} ) {
+      final NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>(0,new ResizePolicy(0.25,10,2,churn,0.125));
+      final int CNT = 50000, LIVE = 100;
+      for( long i=0; i<CNT; i++ ) nbhml.put(i,"x");
+      final long big = nbhml.stats().capacity();
+      for( long i=LIVE; i<CNT; i++ ) nbhml.remove(i);
+      long min = big;
+      for( long i=CNT; i<4*CNT; i++ ) {
+        nbhml.put(i,"y");
+        nbhml.remove(i-LIVE);
+        if( (i&1023) == 0 ) min = Math.min(min,nbhml.stats().capacity());
+      }
+      min = Math.min(min,nbhml.stats().capacity());
+      assertThat( nbhml.size(), is(2*LIVE) );
+      for( long i=0; i<LIVE; i++ ) assertThat( nbhml.get(i), is("x") );
+      for( long i=4*CNT-LIVE; i<4*CNT; i++ ) assertThat( nbhml.get(i), is("y") );
+      if( churn == 0 ) assertTrue( min < big/8 );
+      else             assertThat( min, is(big) );
+    }
+  }
+
+  // Copies run on a resize executor; a rejecting executor leaves them to callers
+  public void testResizeExecutor() throws InterruptedException {
+    final ExecutorService ex = Executors.newSingleThreadExecutor();
+    final NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>();
+    assertNull( nbhml.getResizeExecutor() );
+    nbhml.setResizeExecutor(ex);
+    assertThat( nbhml.getResizeExecutor(), is((Executor)ex) );
+    for( long i=0; i<100000; i++ ) nbhml.put(i,Long.toString(i));
+    ex.shutdown();
+    assertTrue( ex.awaitTermination(10,TimeUnit.SECONDS) );
+    assertThat( nbhml.stats().depth(), is(1) );
+    assertThat( nbhml.size(), is(100000) );
+    for( long i=0; i<100000; i++ ) assertThat( nbhml.get(i), is(Long.toString(i)) );
+    nbhml.setResizeExecutor(ex); // Shut down: rejects every copy
+    for( long i=100000; i<300000; i++ ) nbhml.put(i,Long.toString(i));
+    assertThat( nbhml.size(), is(300000) );
+    for( long i=0; i<300000; i++ ) assertThat( nbhml.get(i), is(Long.toString(i)) );
+  }
+
+  // Keys differing only in their high bits all have the same home slot,
+  // unless the table is seeded
+  public void testHashSeeding() {
+    NonBlockingHashMapLong<String> plain  = new NonBlockingHashMapLong<String>();
+    NonBlockingHashMapLong<String> seeded = new NonBlockingHashMapLong<String>();
+    assertFalse( seeded.getHashSeeding() );
+    seeded.put(3,"x");
+    seeded.setHashSeeding(true); // Rehashes the current table
+    assertTrue( seeded.getHashSeeding() );
+    assertThat( seeded.get(3), is("x") );
+    final int CNT = 4096;
+    for( long i=1; i<=CNT; i++ ) { plain.put(i<<32,"v"+i); seeded.put(i<<32,"v"+i); }
+    for( long i=1; i<=CNT; i++ ) { assertThat( plain.get(i<<32), is("v"+i) ); assertThat( seeded.get(i<<32), is("v"+i) ); }
+    assertThat( seeded.size(), is(CNT+1) );
+    assertTrue( plain.stats().maxProbeLength() > CNT/2 );
+    assertTrue( seeded.stats().maxProbeLength() < 64 );
+    seeded.setHashSeeding(false);
+    for( long i=CNT+1; i<=2*CNT; i++ ) seeded.put(i<<32,"v"+i);
+    for( long i=1; i<=2*CNT; i++ ) assertThat( seeded.get(i<<32), is("v"+i) );
+  }
 }
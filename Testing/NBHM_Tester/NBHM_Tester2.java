@@ -238,6 +238,29 @@ public class NBHM_Tester2 extends TestCase {
     assertThat("Found all integers in list",sum,is(CNT*(CNT-1)/2 - (3+4)));
   }
 
+  // Growing a map copies it over and over.  A lookup or insert reaching a
+  // key slot slammed by a copy must go straight on to the new table rather
+  // than walk the rest of its reprobe limit, so growing a map costs only a
+  // small multiple of filling a presized one.
+  public void testGrowthProbeCutout() {
+    final int CNT = 1<<20;
+    final Integer[] ks = new Integer[CNT];
+    for( int i=0; i<CNT; i++ ) ks[i] = i;
+    double best = Double.MAX_VALUE;
+    for( int r=0; r<3; r++ ) { // Best of 3; the first also warms up
+      final long t0 = System.nanoTime();
+      final NonBlockingHashMap<Integer,Integer> presized = new NonBlockingHashMap<Integer,Integer>(CNT);
+      for( Integer k : ks ) presized.put(k,k);
+      final long t1 = System.nanoTime();
+      final NonBlockingHashMap<Integer,Integer> grown = new NonBlockingHashMap<Integer,Integer>();
+      for( Integer k : ks ) grown.put(k,k);
+      final long t2 = System.nanoTime();
+      assertThat( grown.size(), is(CNT) );
+      best = Math.min(best,(double)(t2-t1)/(t1-t0));
+    }
+    assertTrue( "grown/presized time "+best, best < 6 );
+  }
+
   // Do some simple concurrent testing
   public void testConcurrentSimple() throws InterruptedException {
     final NonBlockingHashMap<String,String> nbhm = new NonBlockingHashMap<String,String>();
@@ -629,6 +652,686 @@ public class NBHM_Tester2 extends TestCase {
     assertTrue( Test4.AE==null );
   }
 
+  // --- testCompute
+  public void testCompute() {
+    assertThat ( _nbhm.computeIfAbsent("k1", k -> "v1"), is("v1") );
+    assertThat ( _nbhm.computeIfAbsent("k1", k -> "XX"), is("v1") );
+    assertThat ( _nbhm.computeIfAbsent("k2", k -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    assertThat ( _nbhm.computeIfPresent("k2", (k,v) -> "XX"), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    assertThat ( _nbhm.computeIfPresent("k1", (k,v) -> v+"a"), is("v1a") );
+    assertThat ( _nbhm.compute("k1", (k,v) -> v+"b"), is("v1ab") );
+    assertThat ( _nbhm.compute("k2", (k,v) -> v==null ? "v2" : "XX"), is("v2") );
+    assertThat ( _nbhm.compute("k2", (k,v) -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    assertThat ( _nbhm.merge("k2","v2",(a,b) -> a+b), is("v2") );
+    assertThat ( _nbhm.merge("k2","v2",(a,b) -> a+b), is("v2v2") );
+    assertThat ( _nbhm.merge("k2","v2",(a,b) -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    assertThat ( _nbhm.size(), is(1) );
+  }
+
+  // Concurrent merge of counts; no counts may be lost or double-applied
+  public void testConcurrentMerge() throws InterruptedException {
+    final NonBlockingHashMap<Integer,Long> nbhm = new NonBlockingHashMap<Integer,Long>();
+    final int THREADS = 4, ITERS = 100000, KEYS = 100;
+    Thread[] ts = new Thread[THREADS];
+    for( int t = 0; t < THREADS; t++ )
+      (ts[t] = new Thread() { public void run() {
+        for( int i = 0; i < ITERS; i++ )
+          nbhm.merge(i%KEYS, 1L, Long::sum);
+      } }).start();
+    for( int t = 0; t < THREADS; t++ )
+      ts[t].join();
+    assertThat( nbhm.size(), is(KEYS) );
+    for( int k = 0; k < KEYS; k++ )
+      assertThat( nbhm.get(k), is((long)(THREADS*ITERS/KEYS)) );
+  }
+
+  // Parallel streams split the snapshot and still see every key exactly once
+  public void testSpliterator() {
+    final int CNT = 100000;
+    NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    for( int i=0; i<CNT; i++ )
+      nbhm.put(i,i);
+    assertThat( nbhm.keySet().parallelStream().count(), is((long)CNT) );
+    assertThat( nbhm.keySet().parallelStream().distinct().count(), is((long)CNT) );
+    assertThat( nbhm.values().parallelStream().mapToLong(x -> x).sum(), is((long)CNT*(CNT-1)/2) );
+    assertThat( nbhm.entrySet().parallelStream().filter(e -> e.getKey().equals(e.getValue())).count(), is((long)CNT) );
+    Spliterator<Integer> s = nbhm.keySet().spliterator();
+    assertTrue( s.hasCharacteristics(Spliterator.CONCURRENT) );
+    assertTrue( s.hasCharacteristics(Spliterator.NONNULL) );
+    assertThat( s.estimateSize(), is((long)CNT) );
+    assertThat( s.trySplit(), notNullValue() );
+  }
+
+  // Bulk operations, both sequential and split across the ForkJoin pool
+  public void testBulkOps() {
+    final int CNT = 100000;
+    NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    for( int i=0; i<CNT; i++ )
+      nbhm.put(i,i);
+    final long sum = (long)CNT*(CNT-1)/2;
+    for( long thresh : new long[]{1,1000,Long.MAX_VALUE} ) {
+      final java.util.concurrent.atomic.AtomicLong cnt = new java.util.concurrent.atomic.AtomicLong();
+      nbhm.forEach(thresh, (k,v) -> { assertEquals(k,v); cnt.addAndGet(v); });
+      assertThat( cnt.get(), is(sum) );
+      assertThat( nbhm.reduceKeysToLong(thresh, k -> k, 0L, Long::sum), is(sum) );
+      assertThat( nbhm.reduceValues(thresh, Math::max), is(CNT-1) );
+      assertThat( nbhm.search(thresh, (k,v) -> v == 12345 ? "found"+k : null), is("found12345") );
+      assertThat( nbhm.search(thresh, (k,v) -> v < 0 ? "found" : null), nullValue() );
+    }
+    assertThat( new NonBlockingHashMap<Integer,Integer>().reduceValues(1, Math::max), nullValue() );
+  }
+
+  // Presized putAll and parallel bulk construction
+  public void testBulkLoad() {
+    final int CNT = 100000;
+    Integer[] keys = new Integer[CNT], vals = new Integer[CNT];
+    java.util.HashMap<Integer,Integer> hm = new java.util.HashMap<Integer,Integer>();
+    for( int i=0; i<CNT; i++ ) { keys[i] = i; vals[i] = -i; hm.put(i,-i); }
+    NonBlockingHashMap<Integer,Integer> nbhm = NonBlockingHashMap.bulkLoad(keys,vals);
+    assertThat( nbhm.size(), is(CNT) );
+    assertEquals( hm, nbhm );
+    nbhm = NonBlockingHashMap.bulkLoad(hm.entrySet().stream(),CNT);
+    assertThat( nbhm.size(), is(CNT) );
+    assertEquals( hm, nbhm );
+    nbhm = new NonBlockingHashMap<Integer,Integer>();
+    nbhm.put(-1,1);
+    nbhm.putAll(hm);
+    assertThat( nbhm.size(), is(CNT+1) );
+    assertThat( nbhm.get(CNT-1), is(1-CNT) );
+    try { NonBlockingHashMap.bulkLoad(keys,new Integer[1]); fail(); }
+    catch( IllegalArgumentException e ) { }
+  }
+
+  // Many threads growing a map into large tables together: resize losers
+  // wait on the winner's table install, and nothing is lost
+  public void testConcurrentGrowth() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int THRDS = 8, CNT = 1<<18;
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int base = t;
+      ts[t] = new Thread() { public void run() {
+        for( int i=base; i<CNT; i+=THRDS )
+          nbhm.put(i,i);
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ ) assertThat( nbhm.get(i), is(i) );
+  }
+
+  // ResizeWait is package-private: drive it reflectively
+  private static final class Wait {
+    final Object _w;
+    final java.lang.reflect.Method _await, _release;
+    final Object _never;        // A Done which is never done
+    Wait() throws Exception {
+      final Class<?> c = Class.forName("org.cliffc.high_scale_lib.ResizeWait");
+      final Class<?> d = Class.forName("org.cliffc.high_scale_lib.ResizeWait$Done");
+      final java.lang.reflect.Constructor<?> k = c.getDeclaredConstructor();
+      k.setAccessible(true);
+      _w = k.newInstance();
+      _await = c.getDeclaredMethod("await",long.class,d);
+      _await.setAccessible(true);
+      _release = c.getDeclaredMethod("release");
+      _release.setAccessible(true);
+      _never = java.lang.reflect.Proxy.newProxyInstance(d.getClassLoader(),new Class<?>[]{d},
+        new java.lang.reflect.InvocationHandler() {
+          public Object invoke( Object p, java.lang.reflect.Method m, Object[] a ) { return false; }
+        });
+    }
+    long await( long nanos ) throws Exception { return (Long)_await.invoke(_w,nanos,_never); }
+    void release() throws Exception { _release.invoke(_w); }
+  }
+
+  // Resize waiters: woken by a release, not parked after one, and not
+  // spinning out the timeout when interrupted
+  public void testResizeWait() throws Exception {
+    final long TIMEOUT = TimeUnit.SECONDS.toNanos(20);
+    // A parked waiter returns soon after the release, well before the timeout
+    final Wait w = new Wait();
+    final long[] waited = new long[1];
+    Thread t = new Thread() { public void run() {
+      try { waited[0] = w.await(TIMEOUT); } catch( Exception e ) { throw new RuntimeException(e); }
+    } };
+    t.start();
+    while( t.getState() != Thread.State.TIMED_WAITING ) Thread.sleep(1); // Until parked
+    w.release();
+    t.join(TimeUnit.NANOSECONDS.toMillis(TIMEOUT)/2);
+    assertFalse( t.isAlive() );
+    assertTrue( waited[0] > 0 && waited[0] < TIMEOUT/2 );
+    // After a release, waiting returns at once
+    assertThat( w.await(TIMEOUT), is(0L) );
+    // An interrupted waiter returns at once, still interrupted
+    final Wait w2 = new Wait();
+    Thread.currentThread().interrupt();
+    final long start = System.nanoTime();
+    w2.await(TIMEOUT);
+    assertTrue( System.nanoTime()-start < TIMEOUT/2 );
+    assertTrue( Thread.interrupted() ); // Clears it, too
+    // The timeout still works
+    final long nap = TimeUnit.MILLISECONDS.toNanos(50);
+    assertTrue( w2.await(nap) >= nap );
+  }
+
+  // Fingerprint probing skips slots by memoized hash; lookups must still find
+  // colliding keys, miss removed ones, and follow the map through resizes
+  public void testFingerprintProbe() {
+    NonBlockingHashMap<Object,Integer> nbhm = new NonBlockingHashMap<Object,Integer>(16,true);
+    final int CNT = 10000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(new KeyBonk(i),i);
+    for( int i=0; i<CNT; i++ ) nbhm.put("s"+i,i);
+    assertThat( nbhm.size(), is(2*CNT) );
+    for( int i=0; i<CNT; i+=2 ) nbhm.remove(new KeyBonk(i));
+    for( int i=0; i<CNT; i++ ) {
+      assertThat( nbhm.get(new KeyBonk(i)), (i&1)==0 ? nullValue() : is(i) );
+      assertThat( nbhm.get("s"+i), is(i) );
+    }
+    assertThat( nbhm.get("s"+CNT), nullValue() );
+    assertThat( nbhm.size(), is(CNT+CNT/2) );
+  }
+
+  // Fingerprint probing of a nearly full table: long runs of other keys'
+  // hashes are skipped (a vector at a time, where the Vector API is there)
+  public void testFingerprintProbeDense() {
+    final ResizePolicy p = new ResizePolicy(0.9,16,2,0,0);
+    NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>(0,true,null,p);
+    final int CNT = 50000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i*7,i);
+    assertThat( nbhm.size(), is(CNT) );
+    assertTrue( nbhm.stats().maxProbeLength() > 16 );
+    for( int i=0; i<CNT; i++ ) {
+      assertThat( nbhm.get(new Integer(i*7)), is(i) ); // Equal, not identical, keys
+      assertThat( nbhm.get(i*7+3), nullValue() );
+    }
+  }
+
+  // Keys hashed and compared by a HashingStrategy: array contents as keys,
+  // and case-insensitive strings, with no wrapper objects
+  public void testHashingStrategy() {
+    NonBlockingHashMap<byte[],Integer> bytes = new NonBlockingHashMap<byte[],Integer>(new HashingStrategy<byte[]>() {
+        public int hashCode( byte[] key ) { return Arrays.hashCode(key); }
+        public boolean equals( byte[] key, byte[] K ) { return Arrays.equals(key,K); }
+      });
+    final int CNT = 10000;
+    for( int i=0; i<CNT; i++ ) bytes.put(Integer.toString(i).getBytes(),i);
+    assertThat( bytes.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ ) assertThat( bytes.get(Integer.toString(i).getBytes()), is(i) );
+    assertThat( bytes.put("17".getBytes(),-17), is(17) );
+    assertThat( bytes.remove("18".getBytes()), is(18) );
+    assertFalse( bytes.containsKey("18".getBytes()) );
+    assertThat( bytes.size(), is(CNT-1) );
+    try { bytes.get(null); fail(); } catch( NullPointerException e ) { }
+
+    NonBlockingHashMap<String,String> nocase = new NonBlockingHashMap<String,String>(16,false,new HashingStrategy<String>() {
+        public int hashCode( String key ) { return key.toLowerCase().hashCode(); }
+        public boolean equals( String key, String K ) { return key.equalsIgnoreCase(K); }
+      });
+    assertThat( nocase.putIfAbsent("Key","v1"), nullValue() );
+    assertThat( nocase.putIfAbsent("KEY","v2"), is("v1") );
+    assertThat( nocase.get("kEy"), is("v1") );
+    assertThat( nocase.size(), is(1) );
+  }
+
+  // Values overwritten while the table grows: a copy stages a value, then a
+  // racing put may replace it before the slot is frozen.  No update is lost.
+  public void testCopyWhileUpdating() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int THRDS = 4, CNT = 1<<15, ROUNDS = 8;
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int base = t;
+      ts[t] = new Thread() { public void run() {
+        for( int r=0; r<ROUNDS; r++ )
+          for( int i=base; i<(CNT>>(ROUNDS-1-r)); i+=THRDS )
+            nbhm.put(i,r);      // Grow the key range each round
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbhm.get(i), is(ROUNDS-1) );
+  }
+
+  // Iterate while another thread grows the map through many resizes.  The
+  // iterators walk old and new tables without finishing the copy; each key
+  // present throughout must be seen exactly once, and no key twice.
+  public void testIterateDuringResize() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int STABLE = 5000, GROW = 1<<18;
+    for( int i=0; i<STABLE; i++ ) nbhm.put(i,i);
+    final Thread grower = new Thread() { public void run() {
+      for( int i=STABLE; i<STABLE+GROW; i++ ) nbhm.put(i,i);
+    } };
+    grower.start();
+    int iters = 0;
+    while( grower.isAlive() || iters < 2 ) {
+      final BitSet seen = new BitSet();
+      int stable = 0;
+      for( Integer K : nbhm.keySet() ) {
+        assertFalse( "duplicate "+K, seen.get(K) );
+        seen.set(K);
+        if( K < STABLE ) stable++;
+      }
+      assertThat( stable, is(STABLE) );
+      final List<Integer> ks = nbhm.keySet().parallelStream().collect(java.util.stream.Collectors.toList());
+      assertThat( new HashSet<Integer>(ks).size(), is(ks.size()) );
+      final int[] cnt = new int[1];
+      nbhm.forEach(Long.MAX_VALUE,(k,v) -> { if( k < STABLE ) cnt[0]++; });
+      assertThat( cnt[0], is(STABLE) );
+      iters++;
+    }
+    grower.join();
+    assertThat( nbhm.size(), is(STABLE+GROW) );
+    assertThat( nbhm.keySet().stream().distinct().count(), is((long)(STABLE+GROW)) );
+  }
+
+  // Pre-growing, trimming and capacity-preserving clear, with racing updates
+  // while the table is trimmed
+  public void testCapacity() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 100000;
+    nbhm.ensureCapacity(CNT);
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,i);
+    for( int i=100; i<CNT; i++ ) nbhm.remove(i);
+    nbhm.trimToSize();
+    assertThat( nbhm.size(), is(100) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbhm.get(i), i<100 ? is(i) : nullValue() );
+    try { nbhm.ensureCapacity(-1); fail(); } catch( IllegalArgumentException e ) { }
+
+    final int THRDS = 4;
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int base = CNT+t;
+      ts[t] = new Thread() { public void run() {
+        for( int r=0; r<200; r++ ) {
+          for( int i=base; i<CNT+4096; i+=THRDS ) nbhm.put(i,i);
+          for( int i=base; i<CNT+4096; i+=THRDS ) assertThat( nbhm.remove(i), is(i) );
+        }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) while( t.isAlive() ) { nbhm.trimToSize(); Thread.sleep(1); }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.size(), is(100) );
+    for( int i=0; i<100; i++ ) assertThat( nbhm.get(i), is(i) );
+
+    nbhm.clear(true);
+    assertThat( nbhm.size(), is(0) );
+    assertTrue( nbhm.isEmpty() );
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,-i);
+    assertThat( nbhm.size(), is(CNT) );
+    nbhm.clear(false);
+    assertThat( nbhm.size(), is(0) );
+    assertThat( nbhm.get(1), nullValue() );
+  }
+
+  // Clone copies the table slot for slot, in parallel for big tables; keys
+  // left dead by removes must not break lookups in the clone, and the clone
+  // must be independent of the original.  Keys not updated during the clone
+  // are copied exactly.
+  public void testClone() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 200000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,i);
+    for( int i=0; i<CNT; i+=3 ) nbhm.remove(i);
+    NonBlockingHashMap<Integer,Integer> c = (NonBlockingHashMap<Integer,Integer>)nbhm.clone();
+    assertThat( c.size(), is(nbhm.size()) );
+    assertEquals( nbhm, c );
+    c.put(-1,-1);
+    c.remove(1);
+    assertFalse( nbhm.containsKey(-1) );
+    assertThat( nbhm.get(1), is(1) );
+    for( int i=0; i<CNT; i+=3 ) assertThat( c.put(i,i), nullValue() );
+    assertThat( c.size(), is(CNT) );
+
+    // Clone while another thread updates and grows the map
+    final Thread t = new Thread() { public void run() {
+      for( int i=CNT; i<(CNT<<2); i++ ) nbhm.put(i,i);
+    } };
+    t.start();
+    while( t.isAlive() ) {
+      c = (NonBlockingHashMap<Integer,Integer>)nbhm.clone();
+      for( int i=1; i<CNT; i+=3 ) assertThat( c.get(i), is(i) );
+      int n = 0;
+      for( Integer K : c.keySet() ) { assertThat( c.get(K), is(K) ); n++; }
+      assertThat( n, is(c.size()) );
+    }
+    t.join();
+  }
+
+  // Round trip through the binary codec: a file, and a caller's buffer
+  public void testBinaryCodec() throws Exception {
+    final NonBlockingHashMap<String,byte[]> nbhm = new NonBlockingHashMap<String,byte[]>();
+    for( int i=0; i<100000; i++ ) nbhm.put("k"+i,new byte[i%7]);
+    nbhm.put("big",new byte[200000]); // Bigger than the codec's buffer
+    nbhm.put("\u00e9t\u00e9",new byte[]{1,2,3});
+    File f = File.createTempFile("nbhm",".bin");
+    f.deleteOnExit();
+    try( java.nio.channels.FileChannel ch = new RandomAccessFile(f,"rw").getChannel() ) {
+      BinaryCodec.write(nbhm,BinaryCodec.STRING,BinaryCodec.BYTES,ch);
+    }
+    NonBlockingHashMap<String,byte[]> nbhm2;
+    try( java.nio.channels.FileChannel ch = new RandomAccessFile(f,"r").getChannel() ) {
+      nbhm2 = BinaryCodec.readHashMap(BinaryCodec.STRING,BinaryCodec.BYTES,ch);
+    }
+    assertThat( nbhm2.size(), is(nbhm.size()) );
+    for( String K : nbhm.keySet() ) assertTrue( Arrays.equals(nbhm.get(K),nbhm2.get(K)) );
+
+    final NonBlockingHashMap<Integer,String> small = new NonBlockingHashMap<Integer,String>();
+    for( int i=0; i<1000; i++ ) small.put(i,"v"+i);
+    java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(100);
+    try { BinaryCodec.write(small,BinaryCodec.INTEGER,BinaryCodec.STRING,buf); fail(); }
+    catch( java.nio.BufferOverflowException e ) { }
+    buf = java.nio.ByteBuffer.allocateDirect(1<<16);
+    BinaryCodec.write(small,BinaryCodec.INTEGER,BinaryCodec.STRING,buf);
+    buf.flip();
+    assertEquals( small, BinaryCodec.readHashMap(BinaryCodec.INTEGER,BinaryCodec.STRING,buf) );
+    assertFalse( buf.hasRemaining() );
+    buf.rewind();
+    try { BinaryCodec.readHashMapLong(BinaryCodec.STRING,buf); fail(); }
+    catch( IOException e ) { }
+  }
+
+  // The header's element count is only a presizing hint: too big a count is
+  // capped, too small a count just means growing, a negative one is refused
+  public void testBinaryCodecHeaderCount() throws Exception {
+    final NonBlockingHashMap<Integer,String> small = new NonBlockingHashMap<Integer,String>();
+    for( int i=0; i<1000; i++ ) small.put(i,"v"+i);
+    final java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(1<<16);
+    BinaryCodec.write(small,BinaryCodec.INTEGER,BinaryCodec.STRING,buf);
+    buf.flip();
+    for( long cnt : new long[]{Long.MAX_VALUE,Integer.MAX_VALUE,1,0} ) {
+      buf.putLong(5,cnt);       // After the magic and the kind
+      final NonBlockingHashMap<Integer,String> nbhm = BinaryCodec.readHashMap(BinaryCodec.INTEGER,BinaryCodec.STRING,buf);
+      assertEquals( small, nbhm );
+      assertTrue( nbhm.stats().capacity() <= (1<<22) );
+      buf.rewind();
+    }
+    buf.putLong(5,-1);
+    try { BinaryCodec.readHashMap(BinaryCodec.INTEGER,BinaryCodec.STRING,buf); fail(); }
+    catch( IOException e ) { }
+
+    final java.nio.ByteBuffer hdr = java.nio.ByteBuffer.allocate(17);
+    BinaryCodec.write(new NonBlockingHashMapLong<String>(),BinaryCodec.STRING,hdr);
+    hdr.flip();
+    hdr.putLong(5,1L<<62);
+    final NonBlockingHashMapLong<String> nbhml = BinaryCodec.readHashMapLong(BinaryCodec.STRING,hdr);
+    assertTrue( nbhml.isEmpty() );
+    assertTrue( nbhml.stats().capacity() <= (1<<22) );
+  }
+
+  // Exact and estimated sizes, and the cheap isEmpty
+  public void testSizes() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    assertTrue( nbhm.isEmpty() );
+    assertThat( nbhm.estimatedSize(), is(0L) );
+    // Hammer the size counter from many threads, so it grows many stripes
+    final int CNT = 100000;
+    Thread[] ts = new Thread[8];
+    for( int t=0; t<ts.length; t++ ) {
+      final int base = t*CNT;
+      ts[t] = new Thread() { public void run() {
+        for( int i=base; i<base+CNT; i++ ) { nbhm.put(i,i); nbhm.remove(i); nbhm.put(i,i); }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.exactSize(), is((long)ts.length*CNT) );
+    assertFalse( nbhm.isEmpty() );
+    Thread.sleep(2);            // Let the cached estimate go stale
+    assertThat( nbhm.estimatedSize(), is((long)ts.length*CNT) );
+    assertThat( nbhm.mappingCount(), is(nbhm.estimatedSize()) );
+    // Remove all but one key; isEmpty must then hunt it down
+    for( int i=1; i<ts.length*CNT; i++ ) nbhm.remove(i);
+    for( int i=0; i<3; i++ ) assertFalse( nbhm.isEmpty() );
+    nbhm.remove(0);
+    assertTrue( nbhm.isEmpty() );
+    assertThat( nbhm.exactSize(), is(0L) );
+    nbhm.put(12345,1);
+    assertFalse( nbhm.isEmpty() );
+    // The one key stays put while a churner forces copies, so isEmpty must
+    // see its (possibly Prime'd) value in every table it passes through
+    final java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+    Thread churn = new Thread() { public void run() {
+      for( int i=0; !stop.get(); i++ ) { final int k = 0x10000+(i&0xFFFF); nbhm.put(k,i); nbhm.remove(k); }
+    } };
+    churn.start();
+    try {
+      for( int i=0; i<100000; i++ ) assertFalse( nbhm.isEmpty() );
+    } finally {
+      stop.set(true);
+      churn.join();
+    }
+  }
+
+  // Opt-in JMX bean, read through the platform MBean server
+  public void testMBean() throws Exception {
+    final javax.management.MBeanServer mbs = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final javax.management.ObjectName on = nbhm.registerMBean("test,map");
+    try {
+      assertTrue( mbs.isRegistered(on) );
+      assertThat( (String)mbs.getAttribute(on,"Name"), is("test,map") );
+      assertThat( (Long)mbs.getAttribute(on,"Resizes"), is(0L) );
+      for( int i=0; i<10000; i++ ) nbhm.put(i,i);
+      for( int i=0; i<10000; i+=2 ) nbhm.remove(i);
+      assertThat( (Long)mbs.getAttribute(on,"Size"), is(nbhm.estimatedSize()) );
+      assertTrue( (Long)mbs.getAttribute(on,"Resizes") > 0 );
+      assertTrue( (Long)mbs.getAttribute(on,"LastResizeNanos") > 0 );
+      assertTrue( (Long)mbs.getAttribute(on,"Capacity") >= 10000 );
+      assertTrue( (Long)mbs.getAttribute(on,"Slots") >= 5000 );
+      assertTrue( (Long)mbs.getAttribute(on,"Tombstones") >= 0 );
+      assertTrue( (Double)mbs.getAttribute(on,"AverageProbeLength") >= 0 );
+      assertThat( (Long)mbs.getAttribute(on,"CopyDone"), is(0L) );
+      try { nbhm.registerMBean("again"); fail(); } catch( IllegalStateException e ) { }
+      try { new NonBlockingHashMap<Integer,Integer>().registerMBean("test,map"); fail(); }
+      catch( javax.management.InstanceAlreadyExistsException e ) { }
+      final NonBlockingHashMap<Integer,Integer> c = (NonBlockingHashMap<Integer,Integer>)nbhm.clone();
+      c.registerMBean("clone"); // A clone is not registered along with the map
+      c.unregisterMBean();
+      c.unregisterMBean();      // Not registered: no-op
+    } finally {
+      nbhm.unregisterMBean();
+    }
+    assertFalse( mbs.isRegistered(on) );
+  }
+
+  // Flight Recorder events, when the JDK loads the version of JfrEvents
+  // which emits them
+  public void testJfr() throws Exception {
+    try { Class.forName("org.cliffc.high_scale_lib.JfrEvents$Resize"); }
+    catch( ClassNotFoundException e ) { return; } // The do-nothing version
+    final jdk.jfr.Recording r = new jdk.jfr.Recording();
+    r.enable("org.cliffc.high_scale_lib.Resize");
+    r.enable("org.cliffc.high_scale_lib.Promote");
+    r.enable("org.cliffc.high_scale_lib.CopyChunk");
+    r.start();
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    for( int i=0; i<100000; i++ ) nbhm.put(i,i);
+    r.stop();
+    final File f = File.createTempFile("nbhm",".jfr");
+    f.deleteOnExit();
+    r.dump(f.toPath());
+    r.close();
+    int resizes=0, promotes=0, chunks=0;
+    for( jdk.jfr.consumer.RecordedEvent e : jdk.jfr.consumer.RecordingFile.readAllEvents(f.toPath()) ) {
+      if( e.getInt("tableId") != System.identityHashCode(nbhm) ) continue;
+      final String name = e.getEventType().getName();
+      if( name.endsWith(".Resize") ) { resizes++; assertTrue( e.getLong("newSize") > e.getLong("oldSize") ); }
+      if( name.endsWith(".Promote") ) promotes++;
+      if( name.endsWith(".CopyChunk") ) chunks++;
+    }
+    assertTrue( resizes > 0 );
+    assertTrue( promotes > 0 );
+    assertTrue( chunks > 0 );
+  }
+
+  // Slot counts and probe histogram of a quiet table
+  public void testStats() {
+    NonBlockingHashMap<Integer,String> nbhm = new NonBlockingHashMap<Integer,String>();
+    for( int i=0; i<1000; i++ ) nbhm.put(i,"x");
+    for( int i=0; i<1000; i+=2 ) nbhm.remove(i);
+    TableStats ts = nbhm.stats();
+    assertThat( ts.live(), is(500L) );
+    assertThat( ts.tombstones(), is(500L) );
+    assertThat( ts.capacity(), is(ts.live()+ts.tombstones()+ts.empty()) );
+    assertThat( ts.tombstoneRatio(), is(0.5) );
+    assertThat( ts.depth(), is(1) );
+    long sum=0;
+    for( long n : ts.probeHistogram() ) sum += n;
+    assertThat( sum, is(500L) );
+    assertThat( ts.probeHistogram().length, is(ts.maxProbeLength()+1) );
+    assertTrue( ts.retainedBytes() > ts.capacity()*2*4 );
+    assertThat( new NonBlockingHashMap<Integer,String>().stats().live(), is(0L) );
+  }
+
+  // Key churn: a sliding window of short-lived keys.  Dead keys must be
+  // compacted away rather than growing the table without bound.
+  public void testChurnCompacts() {
+    NonBlockingHashMap<Integer,String> nbhm = new NonBlockingHashMap<Integer,String>();
+    final int LIVE = 1000;
+    for( int i=0; i<2000000; i++ ) {
+      nbhm.put(i,"x");
+      if( i >= LIVE ) nbhm.remove(i-LIVE);
+    }
+    assertThat( nbhm.size(), is(LIVE) );
+    TableStats ts = nbhm.stats();
+    assertThat( ts.live(), is((long)LIVE) );
+    assertTrue( ts.toString(), ts.capacity() <= 16*LIVE );
+  }
+
+  // Maps with the preset policies, and bad policies
+  public void testResizePolicy() {
+    NonBlockingHashMap<Integer,String> dense = new NonBlockingHashMap<Integer,String>(0,ResizePolicy.DENSE);
+    NonBlockingHashMap<Integer,String> speed = new NonBlockingHashMap<Integer,String>(0,ResizePolicy.SPEED);
+    for( int i=0; i<10000; i++ ) { dense.put(i,"x"); speed.put(i,"x"); }
+    assertThat( dense.size(), is(10000) );
+    assertThat( speed.size(), is(10000) );
+    for( int i=0; i<10000; i++ ) assertThat( dense.get(i), is("x") );
+    for( int i=0; i<10000; i++ ) assertThat( speed.get(i), is("x") );
+    // Sized up front to the load factor
+    assertThat( new NonBlockingHashMap<Integer,String>(1000,ResizePolicy.DENSE).stats().capacity(), is(2048L) );
+    assertThat( new NonBlockingHashMap<Integer,String>(1000).stats().capacity(), is(4096L) );
+    assertThat( new NonBlockingHashMap<Integer,String>(1000,ResizePolicy.SPEED).stats().capacity(), is(8192L) );
+    try { new ResizePolicy(0,10,2,0,0); fail(); } catch( IllegalArgumentException e ) { }
+    try { new ResizePolicy(0.5,10,3,0,0); fail(); } catch( IllegalArgumentException e ) { }
+    try { new ResizePolicy(0.5,10,2,0,0.5); fail(); } catch( IllegalArgumentException e ) { }
+  }
+
+  // Predictive growth starts copies early; racing inserts must not be lost
+  public void testPredictiveGrowth() throws InterruptedException {
+    final ResizePolicy p = new ResizePolicy(0.25,10,2,10000,0.125,true);
+    assertTrue( p.predictiveGrowth() );
+    assertFalse( ResizePolicy.DEFAULT.predictiveGrowth() );
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>(0,p);
+    final int THRDS = 4, CNT = 200000;
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int base = t*CNT;
+      ts[t] = new Thread() { public void run() {
+        for( int i=base; i<base+CNT; i++ ) nbhm.put(i,i);
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.size(), is(THRDS*CNT) );
+    for( int i=0; i<THRDS*CNT; i++ ) assertThat( nbhm.get(i), is(i) );
+    assertThat( nbhm.stats().live(), is((long)THRDS*CNT) );
+  }
+
+  // Copies run on a resize executor; a rejecting executor leaves them to callers
+  public void testResizeExecutor() throws InterruptedException {
+    final ExecutorService ex = Executors.newSingleThreadExecutor();
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    assertNull( nbhm.getResizeExecutor() );
+    nbhm.setResizeExecutor(ex);
+    assertThat( nbhm.getResizeExecutor(), is((Executor)ex) );
+    for( int i=0; i<100000; i++ ) nbhm.put(i,i);
+    ex.shutdown();
+    assertTrue( ex.awaitTermination(10,TimeUnit.SECONDS) );
+    assertThat( nbhm.stats().depth(), is(1) );
+    assertThat( nbhm.size(), is(100000) );
+    for( int i=0; i<100000; i++ ) assertThat( nbhm.get(i), is(i) );
+    nbhm.setResizeExecutor(ex); // Shut down: rejects every copy
+    for( int i=100000; i<300000; i++ ) nbhm.put(i,i);
+    assertThat( nbhm.size(), is(300000) );
+    for( int i=0; i<300000; i++ ) assertThat( nbhm.get(i), is(i) );
+  }
+
+  // Strings with equal hashCodes ("Aa" and "BB" in any mix) pile into one
+  // probe chain, unless the table is seeded
+  public void testHashSeeding() throws Exception {
+    final int N = 12;           // 4096 keys, all with the same hashCode
+    final String[] ks = new String[1<<N];
+    for( int i=0; i<ks.length; i++ ) {
+      StringBuilder sb = new StringBuilder();
+      for( int b=0; b<N; b++ ) sb.append((i>>b&1)==0 ? "Aa" : "BB");
+      ks[i] = sb.toString();
+      assertThat( ks[i].hashCode(), is(ks[0].hashCode()) );
+    }
+    NonBlockingHashMap<String,Integer> plain  = new NonBlockingHashMap<String,Integer>();
+    NonBlockingHashMap<String,Integer> seeded = new NonBlockingHashMap<String,Integer>();
+    assertFalse( seeded.getHashSeeding() );
+    seeded.put("x",-1);
+    seeded.setHashSeeding(true); // Rehashes the current table
+    assertTrue( seeded.getHashSeeding() );
+    assertThat( seeded.get("x"), is(-1) );
+    for( int i=0; i<ks.length; i++ ) { plain.put(ks[i],i); seeded.put(ks[i],i); }
+    for( int i=0; i<ks.length; i++ ) { assertThat( plain.get(ks[i]), is(i) ); assertThat( seeded.get(ks[i]), is(i) ); }
+    assertThat( seeded.size(), is(ks.length+1) );
+    assertTrue( plain.stats().maxProbeLength() > ks.length/2 );
+    assertTrue( seeded.stats().maxProbeLength() < 64 );
+
+    // The setting survives serialization
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(seeded);
+    out.close();
+    NonBlockingHashMap<String,Integer> copy = (NonBlockingHashMap<String,Integer>)
+      new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+    assertTrue( copy.getHashSeeding() );
+    assertThat( copy, is((Map<String,Integer>)seeded) );
+    assertTrue( copy.stats().maxProbeLength() < 64 );
+
+    // Keys no seed can tell apart: the flooded tables are re-seeded, to no
+    // avail, but nothing is lost
+    NonBlockingHashMap<Integer,Integer> flood = new NonBlockingHashMap<Integer,Integer>(0,false,new HashingStrategy<Integer>() {
+        public int hashCode( Integer key ) { return 0; }
+        public boolean equals( Integer key, Integer K ) { return key.equals(K); }
+      });
+    flood.setHashSeeding(true);
+    for( int i=0; i<1000; i++ ) flood.put(i,i);
+    for( int i=0; i<1000; i++ ) assertThat( flood.get(i), is(i) );
+    flood.setHashSeeding(false);
+    for( int i=1000; i<2000; i++ ) flood.put(i,i);
+    for( int i=0; i<2000; i++ ) assertThat( flood.get(i), is(i) );
+    assertThat( flood.size(), is(2000) );
+  }
+
+  // Removing nearly everything from a big map shrinks its table, once the
+  // policy allows it; the survivors must all still be found
+  public void testShrinkAfterRemoves() {
+    NonBlockingHashMap<Integer,String> nbhm = new NonBlockingHashMap<Integer,String>(0,new ResizePolicy(0.25,10,2,0,0.125));
+    final int CNT = 100000, LIVE = 100;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,"x");
+    final long big = nbhm.stats().capacity();
+    for( int i=LIVE; i<CNT; i++ ) nbhm.remove(i);
+    assertThat( nbhm.size(), is(LIVE) );
+    TableStats ts = nbhm.stats();
+    assertThat( ts.live(), is((long)LIVE) );
+    assertTrue( ts.toString(), ts.capacity() < big/64 );
+    for( int i=0; i<LIVE; i++ ) assertThat( nbhm.get(i), is("x") );
+    for( int i=LIVE; i<CNT; i+=997 ) assertNull( nbhm.get(i) );
+  }
+
   // This test is a copy of the JCK test Hashtable2027, which is incorrect.
   // The test requires a particular order of values to appear in the esa
   // array - but this is not part of the spec.  A different implementation
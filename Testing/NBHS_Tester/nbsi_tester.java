@@ -6,6 +6,7 @@
 package Testing.NBHS_Tester;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import junit.framework.TestCase;
 import org.cliffc.high_scale_lib.*;
 import static org.hamcrest.CoreMatchers.*;
@@ -175,6 +176,131 @@ public class nbsi_tester extends TestCase {
 
   }
 
+  // Pre-growing, trimming and capacity-preserving clear, with racing adds
+  // of large elements while the bitvector is trimmed
+  public void testCapacity() throws InterruptedException {
+    final NonBlockingSetInt nbsi = new NonBlockingSetInt();
+    final int CNT = 1<<20;
+    nbsi.ensureCapacity(CNT);
+    for( int i=0; i<100; i++ ) nbsi.add(i);
+    nbsi.add(CNT-1);
+    nbsi.add(4095);             // Nested twice
+    nbsi.remove(CNT-1);
+    nbsi.trimToSize();
+    assertThat( nbsi.size(), is(101) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbsi.contains(i), is(i<100 || i==4095) );
+    try { nbsi.ensureCapacity(-1); fail(); } catch( IllegalArgumentException e ) { }
+
+    final int THRDS = 4;
+    Thread[] ts = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int base = 8192+t;
+      ts[t] = new Thread() { public void run() {
+        for( int r=0; r<200; r++ ) {
+          for( int i=base+(r<<10); i<base+(r<<10)+(THRDS<<10); i+=THRDS ) assertTrue( nbsi.add(i) );
+          for( int i=base+(r<<10); i<base+(r<<10)+(THRDS<<10); i+=THRDS ) assertTrue( nbsi.remove(i) );
+        }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) while( t.isAlive() ) { nbsi.trimToSize(); Thread.sleep(1); }
+    for( Thread t : ts ) t.join();
+    assertThat( nbsi.size(), is(101) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbsi.contains(i), is(i<100 || i==4095) );
+
+    nbsi.clear(true);
+    assertThat( nbsi.size(), is(0) );
+    for( int i=0; i<CNT; i+=7 ) nbsi.add(i);
+    assertThat( nbsi.size(), is((CNT+6)/7) );
+    nbsi.clear(false);
+    assertThat( nbsi.size(), is(0) );
+    assertFalse( nbsi.contains(7) );
+  }
+
+  // Round trip through the binary codec, raw bitvector words
+  public void testBinaryCodec() throws Exception {
+    for( int i=0; i<100000; i+=3 ) _nbsi.add(i);
+    for( int i=63; i<100000; i+=64 ) _nbsi.add(i); // The nested every-64th bits
+    _nbsi.add(1<<20);
+    File f = File.createTempFile("nbsi",".bin");
+    f.deleteOnExit();
+    try( java.nio.channels.FileChannel ch = new RandomAccessFile(f,"rw").getChannel() ) {
+      BinaryCodec.write(_nbsi,ch);
+    }
+    NonBlockingSetInt nbsi2;
+    try( java.nio.channels.FileChannel ch = new RandomAccessFile(f,"r").getChannel() ) {
+      nbsi2 = BinaryCodec.readSetInt(ch);
+    }
+    assertThat( nbsi2.size(), is(_nbsi.size()) );
+    assertEquals( _nbsi, nbsi2 );
+
+    java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(1<<19);
+    BinaryCodec.write(_nbsi,buf);
+    buf.flip();
+    nbsi2 = BinaryCodec.readSetInt(buf);
+    assertThat( nbsi2.size(), is(_nbsi.size()) );
+    assertEquals( _nbsi, nbsi2 );
+    assertTrue( nbsi2.add(1<<21) );
+  }
+
+  // Exact and estimated sizes, and the cheap isEmpty
+  public void testSizes() throws Exception {
+    assertTrue( _nbsi.isEmpty() );
+    final int CNT = 100000;
+    Thread[] ts = new Thread[8];
+    for( int t=0; t<ts.length; t++ ) {
+      final int base = t*CNT;
+      ts[t] = new Thread() { public void run() {
+        for( int i=base; i<base+CNT; i++ ) { _nbsi.add(i); _nbsi.remove(i); _nbsi.add(i); }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( _nbsi.exactSize(), is((long)ts.length*CNT) );
+    Thread.sleep(2);            // Let the cached estimate go stale
+    assertThat( _nbsi.estimatedSize(), is((long)ts.length*CNT) );
+    for( int i=0; i<ts.length*CNT; i++ ) if( i != 500063 ) _nbsi.remove(i);
+    for( int i=0; i<3; i++ ) assertFalse( _nbsi.isEmpty() ); // Nested element
+    _nbsi.remove(500063);
+    assertTrue( _nbsi.isEmpty() );
+    _nbsi.add(777777);
+    assertFalse( _nbsi.isEmpty() );
+  }
+
+  // Opt-in JMX bean, read through the platform MBean server
+  public void testMBean() throws Exception {
+    final javax.management.MBeanServer mbs = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+    final javax.management.ObjectName on = _nbsi.registerMBean("test-nbsi");
+    try {
+      for( int i=0; i<10000; i++ ) _nbsi.add(i);
+      assertThat( (Long)mbs.getAttribute(on,"Size"), is(_nbsi.estimatedSize()) );
+      assertTrue( (Long)mbs.getAttribute(on,"Resizes") > 0 );
+      assertTrue( (Long)mbs.getAttribute(on,"Capacity") >= 10000 );
+      assertThat( (Long)mbs.getAttribute(on,"Slots"), is(-1L) );
+    } finally {
+      _nbsi.unregisterMBean();
+    }
+    assertFalse( mbs.isRegistered(on) );
+  }
+
+  // Copies run on a resize executor; ensureCapacity still finishes its own
+  public void testResizeExecutor() throws InterruptedException {
+    final ExecutorService ex = Executors.newSingleThreadExecutor();
+    final NonBlockingSetInt nbsi = new NonBlockingSetInt();
+    nbsi.setResizeExecutor(ex);
+    assertThat( nbsi.getResizeExecutor(), is((Executor)ex) );
+    for( int i=0; i<100000; i+=3 ) nbsi.add(i);
+    nbsi.ensureCapacity(1<<20);
+    assertTrue( nbsi.add(1<<19) );
+    ex.shutdown();
+    assertTrue( ex.awaitTermination(10,TimeUnit.SECONDS) );
+    assertThat( nbsi.size(), is(33334+1) );
+    for( int i=0; i<100000; i++ ) assertThat( nbsi.contains(i), is(i%3==0) );
+    assertTrue( nbsi.contains(1<<19) );
+  }
+
   void work_helper(NonBlockingSetInt nbsi, String thrd, int d) {
     final int ITERS = 100000;
     for( int j=0; j<10; j++ ) {
@@ -482,7 +482,7 @@ class build {
       try { 
         // Inhale NBHM.java
         FileInputStream bits = new FileInputStream(_srcs[0]._dst);
-        byte[] buf = new byte[100000];
+        byte[] buf = new byte[(int)_srcs[0]._dst.length()+1]; // Room to see EOF
         int len = bits.read(buf);
         if( len < 1000 || len == buf.length ) 
           throw new IOException("Unexpected file length read, "+len+" bytes read from "+_srcs[0]._target);
@@ -514,7 +514,22 @@ class build {
   // =========================================================================
 
   // Some common strings
-  static final String javac = "javac -cp %top %src";
+  static final String javac = "javac -source 8 -target 8 "+boot8()+"-cp %top %src"; // Base classes of the multi-release jar
+
+  // The base classes must link on JDK 8, so compile them against a JDK 8
+  // runtime found via $JAVA8_HOME (a JDK or a JRE).  --release 8 is no
+  // good, as it hides sun.misc.Unsafe.  Without a JDK 8 just silence the
+  // bootclasspath warning; the sources avoid the newer JDKs' covariant
+  // overrides (e.g. ByteBuffer.flip) by hand.
+  static String boot8() {
+    String home = System.getenv("JAVA8_HOME");
+    if( home != null ) {
+      File rt = new File(home,"jre/lib/rt.jar");
+      if( !rt.exists() ) rt = new File(home,"lib/rt.jar");
+      if( rt.exists() ) return "-bootclasspath "+rt.getPath()+" ";
+    }
+    return "-Xlint:-options ";
+  }
 
   // The build-self dependency every project needs
   static final Q _build_j = new Q("build.java");
@@ -531,6 +546,26 @@ class build {
   static final Q _nbhs_j  = new Q(HSL+"/NonBlockingHashSet.java");
   static final Q _nbsi_j  = new Q(HSL+"/NonBlockingSetInt.java");
   static final Q _unsaf_j = new Q(HSL+"/UtilUnsafe.java");
+  static final Q _acces_j = new Q(HSL+"/UtilAccess.java");
+  static final Q _rswt_j  = new Q(HSL+"/ResizeWait.java");
+  static final Q _hstr_j  = new Q(HSL+"/HashingStrategy.java");
+  static final Q _ser_j   = new Q(HSL+"/Serializer.java");
+  static final Q _bcod_j  = new Q(HSL+"/BinaryCodec.java");
+  static final Q _tmxb_j  = new Q(HSL+"/TableMXBean.java");
+  static final Q _tmbs_j  = new Q(HSL+"/TableMBeans.java");
+  static final Q _jfr_j   = new Q(HSL+"/JfrEvents.java");
+  static final Q _tsts_j  = new Q(HSL+"/TableStats.java");
+  static final Q _rpol_j  = new Q(HSL+"/ResizePolicy.java");
+  static final Q _hprb_j  = new Q(HSL+"/HashProbe.java");
+  // JDK 9+ replacements, packed under META-INF/versions/9 of the jar
+  static final String V9 = "versions/9";
+  static final Q _acc9_j  = new Q(V9+"/"+HSL+"/UtilAccess.java");
+  // JDK 11+ replacements, packed under META-INF/versions/11 of the jar
+  static final String V11 = "versions/11";
+  static final Q _jfr11_j = new Q(V11+"/"+HSL+"/JfrEvents.java");
+  // JDK 17+ replacements, packed under META-INF/versions/17 of the jar
+  static final String V17 = "versions/17";
+  static final Q _hprb17_j= new Q(V17+"/"+HSL+"/HashProbe.java");
 
   // The High Scale Lib class files
   static final Q _absen_cls = new QS(HSL+"/AbstractEntry.class"         , javac, _absen_j);
@@ -542,6 +577,20 @@ class build {
   static final Q _nbhs_cls  = new QS(HSL+"/NonBlockingHashSet.class"    , javac, _nbhs_j );
   static final Q _nbsi_cls  = new QS(HSL+"/NonBlockingSetInt.class"     , javac, _nbsi_j );
   static final Q _unsaf_cls = new QS(HSL+"/UtilUnsafe.class"            , javac, _unsaf_j);
+  static final Q _acces_cls = new QS(HSL+"/UtilAccess.class"            , javac, _acces_j);
+  static final Q _rswt_cls  = new QS(HSL+"/ResizeWait.class"            , javac, _rswt_j );
+  static final Q _hstr_cls  = new QS(HSL+"/HashingStrategy.class"       , javac, _hstr_j );
+  static final Q _ser_cls   = new QS(HSL+"/Serializer.class"            , javac, _ser_j  );
+  static final Q _bcod_cls  = new QS(HSL+"/BinaryCodec.class"           , javac, _bcod_j );
+  static final Q _tmxb_cls  = new QS(HSL+"/TableMXBean.class"           , javac, _tmxb_j );
+  static final Q _tmbs_cls  = new QS(HSL+"/TableMBeans.class"           , javac, _tmbs_j );
+  static final Q _jfr_cls   = new QS(HSL+"/JfrEvents.class"             , javac, _jfr_j  );
+  static final Q _tsts_cls  = new QS(HSL+"/TableStats.class"            , javac, _tsts_j );
+  static final Q _rpol_cls  = new QS(HSL+"/ResizePolicy.class"          , javac, _rpol_j );
+  static final Q _hprb_cls  = new QS(HSL+"/HashProbe.class"             , javac, _hprb_j );
+  static final Q _acc9_cls  = new QS(V9+"/"+HSL+"/UtilAccess.class", "javac --release 9 -cp %top %src", _acc9_j);
+  static final Q _jfr11_cls = new QS(V11+"/"+HSL+"/JfrEvents.class", "javac --release 11 -cp %top %src", _jfr11_j);
+  static final Q _hprb17_cls= new QS(V17+"/"+HSL+"/HashProbe.class", "javac --release 17 --add-modules jdk.incubator.vector -cp %top %src", _hprb17_j);
 
   // The testing files.  JUnit output is in a corresponding .log file.
   static final String TNBHM = "Testing/NBHM_Tester";
@@ -573,9 +622,13 @@ class build {
 
 
   // The high-scale-lib.jar file.  Demand JUnit testing in addition to class
-  // files (the testing demands the relavent class files).
-  static final Q _hsl_jar = new QS("lib/high-scale-lib.jar","jar -cf %dst "+HSL,' ',
-                                   _absen_cls, _cat_cls, _cntr_cls, _tnbhm_tst, _tnbhml_tst, _tnbhmid_tst, _tnbhs_tst, _tnbsi_tst, _ctnbq_tst,_unsaf_cls );
+  // files (the testing demands the relavent class files).  It is a
+  // multi-release jar: the VarHandle based UtilAccess replaces the Unsafe one
+  // on JDK 9 and later, the Flight Recorder JfrEvents replaces the
+  // do-nothing one on JDK 11 and later, and the Vector API HashProbe replaces
+  // the scalar one on JDK 17 and later.
+  static final Q _hsl_jar = new QS("lib/high-scale-lib.jar","jar -cf %dst "+HSL+" --release 9 -C "+V9+" "+HSL+" --release 11 -C "+V11+" "+HSL+" --release 17 -C "+V17+" "+HSL,' ',
+                                   _absen_cls, _cat_cls, _cntr_cls, _tnbhm_tst, _tnbhml_tst, _tnbhmid_tst, _tnbhs_tst, _tnbsi_tst, _ctnbq_tst,_unsaf_cls,_acces_cls,_acc9_cls,_rswt_cls,_hstr_cls,_ser_cls,_bcod_cls,_tmxb_cls,_tmbs_cls,_jfr_cls,_jfr11_cls,_tsts_cls,_rpol_cls,_hprb_cls,_hprb17_cls );
 
   // Wrappers for common JDK files
   static final String JU = "java/util";
@@ -595,7 +648,7 @@ class build {
 
 
   // The High Scale Lib javadoc files
-  static final Q _docs = new QS("doc/index.html","javadoc -quiet -classpath %top -d %top/doc -package -link http://java.sun.com/j2se/1.5.0/docs/api %src",' ',_absen_j,_cat_j,_cntr_j,_nbhm_j,_nbht_j,_nbhml_j,_nbhmid_j,_nbhs_j,_nbsi_j,_unsaf_j);
+  static final Q _docs = new QS("doc/index.html","javadoc -quiet -classpath %top -d %top/doc -package -link http://java.sun.com/j2se/1.5.0/docs/api %src",' ',_absen_j,_cat_j,_cntr_j,_nbhm_j,_nbht_j,_nbhml_j,_nbhmid_j,_nbhs_j,_nbsi_j,_unsaf_j,_acces_j,_rswt_j,_hstr_j,_ser_j,_bcod_j,_tmxb_j,_tmbs_j,_jfr_j,_tsts_j,_rpol_j,_hprb_j);
 
   // Build everything
   static final Q _all = new Q_touch("all", _docs, _libs);
@@ -0,0 +1,376 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A compact binary format for {@link NonBlockingHashMap}, {@link
+ * NonBlockingHashMapLong} and {@link NonBlockingSetInt}, much smaller and
+ * faster than Java serialization.  Maps and sets are streamed to or from a
+ * channel (such as a {@link java.nio.channels.FileChannel}) through one
+ * reusable buffer, or written straight into or read straight out of a
+ * caller's {@link ByteBuffer}.  Keys and values are turned into bytes by a
+ * pluggable {@link Serializer}; serializers for strings, boxed integers and
+ * longs, and byte arrays are provided here.
+ *
+ * <p>The format is big-endian, and a caller's buffer must have the default
+ * big-endian byte order.  A header holds a magic number, the kind of
+ * table, and the element count at the start of the write.  The count is
+ * only a hint: the reader presizes the new table for it, up to a bound (so
+ * a corrupt header cannot make it allocate a giant table), and the table
+ * grows as usual if more records follow.  The header is followed by:
+ * <ul>
+ * <li>{@link NonBlockingHashMap}: one <tt>[int klen][key][int vlen][value]</tt>
+ *     record per mapping, then an <tt>int -1</tt>.
+ * <li>{@link NonBlockingHashMapLong}: one <tt>[int vlen][long key][value]</tt>
+ *     record per mapping, with the key as a raw 8-byte long, then an
+ *     <tt>int -1</tt>.
+ * <li>{@link NonBlockingSetInt}: an <tt>int</tt> word count, then the
+ *     bitvector as raw 64-bit words, element <tt>i</tt> being bit
+ *     <tt>i&amp;63</tt> of word <tt>i&gt;&gt;6</tt>.
+ * </ul>
+ *
+ * <p>Writing walks the table like the table's own iterators: it does not stop
+ * racing updates, and writes each mapping or element as it finds it.  The
+ * header count is then only a presizing hint.  Writing into a caller's
+ * buffer which is too small throws {@link BufferOverflowException}, and
+ * reading a buffer which ends early throws {@link BufferUnderflowException};
+ * with a channel the buffer is drained or refilled as needed instead.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public final class BinaryCodec {
+  private BinaryCodec() { } // dummy private constructor
+
+  private static final int MAGIC = 0x48534c42; // "HSLB"
+  private static final byte KIND_NBHM  = 1;
+  private static final byte KIND_NBHML = 2;
+  private static final byte KIND_NBSI  = 3;
+  private static final int END = -1; // Marks the end of a map's records
+  // Most entries a reader presizes a table for, whatever the header says
+  private static final int MAX_PRESIZE = 1<<20;
+
+  // Size of the buffer used when streaming to or from a channel.  Records
+  // bigger than this get a temporarily bigger buffer.  Buffers are moved
+  // around through java.nio.Buffer: JDK 9 added covariant overrides of
+  // flip, clear, position and limit to ByteBuffer, which JDK 8 lacks.
+  private static final int BUF_SIZE = 1<<16;
+
+  // --- Serializers ---------------------------------------------------------
+  /** Strings as UTF-8 bytes. */
+  public static final Serializer<String> STRING = new Serializer<String>() {
+    public void write( String s, ByteBuffer buf ) { buf.put(s.getBytes(StandardCharsets.UTF_8)); }
+    public String read( ByteBuffer buf, int len ) {
+      if( !buf.hasArray() ) return new String(BYTES.read(buf,len),StandardCharsets.UTF_8);
+      final String s = new String(buf.array(),buf.arrayOffset()+buf.position(),len,StandardCharsets.UTF_8);
+      ((Buffer)buf).position(buf.position()+len);
+      return s;
+    }
+  };
+  /** Integers as 4 bytes. */
+  public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+    public void write( Integer i, ByteBuffer buf ) { buf.putInt(i); }
+    public Integer read( ByteBuffer buf, int len ) { return buf.getInt(); }
+  };
+  /** Longs as 8 bytes. */
+  public static final Serializer<Long> LONG = new Serializer<Long>() {
+    public void write( Long l, ByteBuffer buf ) { buf.putLong(l); }
+    public Long read( ByteBuffer buf, int len ) { return buf.getLong(); }
+  };
+  /** Byte arrays as themselves. */
+  public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+    public void write( byte[] b, ByteBuffer buf ) { buf.put(b); }
+    public byte[] read( ByteBuffer buf, int len ) {
+      final byte[] b = new byte[len];
+      buf.get(b);
+      return b;
+    }
+  };
+
+  // --- NonBlockingHashMap --------------------------------------------------
+  /** Writes all mappings of 'map' to the channel 'ch'. */
+  public static <K,V> void write( NonBlockingHashMap<K,V> map, Serializer<? super K> ks, Serializer<? super V> vs, WritableByteChannel ch ) throws IOException {
+    final Out out = new Out(ch);
+    write(map,ks,vs,out);
+    out.flush();
+  }
+  /** Writes all mappings of 'map' into 'dst', advancing its position.
+   *  @throws BufferOverflowException if 'dst' is too small */
+  public static <K,V> void write( NonBlockingHashMap<K,V> map, Serializer<? super K> ks, Serializer<? super V> vs, ByteBuffer dst ) {
+    try { write(map,ks,vs,new Out(dst)); } catch( IOException e ) { throw new InternalError(); }
+  }
+  private static <K,V> void write( NonBlockingHashMap<K,V> map, Serializer<? super K> ks, Serializer<? super V> vs, Out out ) throws IOException {
+    out.header(KIND_NBHM,map.size());
+    for( Map.Entry<K,V> e : map.entrySet() ) {
+      out.item(ks,e.getKey());
+      out.item(vs,e.getValue());
+    }
+    out.room(4);
+    out._buf.putInt(END);
+  }
+
+  /** Reads a map written by {@link #write(NonBlockingHashMap,Serializer,Serializer,WritableByteChannel)}. */
+  public static <K,V> NonBlockingHashMap<K,V> readHashMap( Serializer<K> ks, Serializer<V> vs, ReadableByteChannel ch ) throws IOException {
+    return readHashMap(ks,vs,new In(ch));
+  }
+  /** Reads a map from 'src', advancing its position.
+   *  @throws BufferUnderflowException if 'src' ends too soon */
+  public static <K,V> NonBlockingHashMap<K,V> readHashMap( Serializer<K> ks, Serializer<V> vs, ByteBuffer src ) throws IOException {
+    return readHashMap(ks,vs,new In(src));
+  }
+  private static <K,V> NonBlockingHashMap<K,V> readHashMap( Serializer<K> ks, Serializer<V> vs, In in ) throws IOException {
+    final NonBlockingHashMap<K,V> map = new NonBlockingHashMap<K,V>(in.header(KIND_NBHM));
+    int klen;
+    while( (klen=in.len()) != END ) {
+      final K key = in.item(ks,klen);
+      map.put(key,in.item(vs,in.len()));
+    }
+    return map;
+  }
+
+  // --- NonBlockingHashMapLong ----------------------------------------------
+  /** Writes all mappings of 'map' to the channel 'ch'. */
+  public static <V> void write( NonBlockingHashMapLong<V> map, Serializer<? super V> vs, WritableByteChannel ch ) throws IOException {
+    final Out out = new Out(ch);
+    write(map,vs,out);
+    out.flush();
+  }
+  /** Writes all mappings of 'map' into 'dst', advancing its position.
+   *  @throws BufferOverflowException if 'dst' is too small */
+  public static <V> void write( NonBlockingHashMapLong<V> map, Serializer<? super V> vs, ByteBuffer dst ) {
+    try { write(map,vs,new Out(dst)); } catch( IOException e ) { throw new InternalError(); }
+  }
+  private static <V> void write( NonBlockingHashMapLong<V> map, Serializer<? super V> vs, Out out ) throws IOException {
+    out.header(KIND_NBHML,map.size());
+    final NonBlockingHashMapLong<V>.IteratorLong it = map.new IteratorLong();
+    while( it.hasNext() ) {
+      final long key = it.nextLong();
+      final V val = map.get(key);
+      if( val == null ) continue; // Removed since the iterator saw it
+      out.item(vs,val,key);
+    }
+    out.room(4);
+    out._buf.putInt(END);
+  }
+
+  /** Reads a map written by {@link #write(NonBlockingHashMapLong,Serializer,WritableByteChannel)}. */
+  public static <V> NonBlockingHashMapLong<V> readHashMapLong( Serializer<V> vs, ReadableByteChannel ch ) throws IOException {
+    return readHashMapLong(vs,new In(ch));
+  }
+  /** Reads a map from 'src', advancing its position.
+   *  @throws BufferUnderflowException if 'src' ends too soon */
+  public static <V> NonBlockingHashMapLong<V> readHashMapLong( Serializer<V> vs, ByteBuffer src ) throws IOException {
+    return readHashMapLong(vs,new In(src));
+  }
+  private static <V> NonBlockingHashMapLong<V> readHashMapLong( Serializer<V> vs, In in ) throws IOException {
+    final NonBlockingHashMapLong<V> map = new NonBlockingHashMapLong<V>();
+    map.ensureCapacity(in.header(KIND_NBHML));
+    int vlen;
+    while( (vlen=in.len()) != END ) {
+      in.need(8);
+      final long key = in._buf.getLong();
+      map.put(key,in.item(vs,vlen));
+    }
+    return map;
+  }
+
+  // --- NonBlockingSetInt ---------------------------------------------------
+  /** Writes all elements of 'set' to the channel 'ch'. */
+  public static void write( NonBlockingSetInt set, WritableByteChannel ch ) throws IOException {
+    final Out out = new Out(ch);
+    write(set,out);
+    out.flush();
+  }
+  /** Writes all elements of 'set' into 'dst', advancing its position.
+   *  @throws BufferOverflowException if 'dst' is too small */
+  public static void write( NonBlockingSetInt set, ByteBuffer dst ) {
+    try { write(set,new Out(dst)); } catch( IOException e ) { throw new InternalError(); }
+  }
+  private static void write( NonBlockingSetInt set, Out out ) throws IOException {
+    out.header(KIND_NBSI,set.size());
+    final int words = set.words();
+    out.room(4);
+    out._buf.putInt(words);
+    for( int w=0; w<words; w++ ) {
+      out.room(8);
+      out._buf.putLong(set.word(w));
+    }
+  }
+
+  /** Reads a set written by {@link #write(NonBlockingSetInt,WritableByteChannel)}. */
+  public static NonBlockingSetInt readSetInt( ReadableByteChannel ch ) throws IOException {
+    return readSetInt(new In(ch));
+  }
+  /** Reads a set from 'src', advancing its position.
+   *  @throws BufferUnderflowException if 'src' ends too soon */
+  public static NonBlockingSetInt readSetInt( ByteBuffer src ) throws IOException {
+    return readSetInt(new In(src));
+  }
+  private static NonBlockingSetInt readSetInt( In in ) throws IOException {
+    in.header(KIND_NBSI);
+    in.need(4);
+    final int words = in._buf.getInt();
+    if( words < 0 || words > (1<<25) ) throw new IOException("bad word count "+words);
+    final NonBlockingSetInt set = new NonBlockingSetInt();
+    set.ensureCapacity((int)Math.min((long)words<<6,Integer.MAX_VALUE));
+    for( int w=0; w<words; w++ ) {
+      in.need(8);
+      final long bits = in._buf.getLong();
+      if( bits != 0 ) set.add_word(w,bits);
+    }
+    return set;
+  }
+
+  private static ByteBuffer big_endian( ByteBuffer buf ) {
+    if( buf.order() != java.nio.ByteOrder.BIG_ENDIAN ) throw new IllegalArgumentException("buffer must be big-endian");
+    return buf;
+  }
+
+  // --- Out -----------------------------------------------------------------
+  // The write side: a buffer which is either the final destination, or is
+  // drained to a channel whenever it fills up.
+  private static final class Out {
+    private final WritableByteChannel _ch; // Null if the buffer is the destination
+    ByteBuffer _buf;
+    Out( WritableByteChannel ch ) { _ch = ch; _buf = ByteBuffer.allocateDirect(BUF_SIZE); }
+    Out( ByteBuffer dst ) { _ch = null; _buf = big_endian(dst); }
+
+    void header( byte kind, long cnt ) throws IOException {
+      room(13);
+      _buf.putInt(MAGIC).put(kind).putLong(cnt);
+    }
+
+    // Make sure 'n' more bytes fit, draining the buffer if needed.
+    void room( int n ) throws IOException {
+      if( _buf.remaining() >= n ) return;
+      if( _ch == null ) throw new BufferOverflowException();
+      flush();
+      if( _buf.capacity() < n ) _buf = ByteBuffer.allocateDirect(n);
+    }
+
+    void flush() throws IOException {
+      if( _ch == null ) return;
+      ((Buffer)_buf).flip();
+      while( _buf.hasRemaining() ) _ch.write(_buf);
+      ((Buffer)_buf).clear();
+    }
+
+    // Write 't' behind its length.  The length is filled in after the
+    // serializer runs, so items are never sized twice.
+    <T> void item( Serializer<? super T> s, T t ) throws IOException {
+      while( true ) {
+        room(4);
+        final int p = _buf.position();
+        ((Buffer)_buf).position(p+4);
+        try {
+          s.write(t,_buf);
+          _buf.putInt(p,_buf.position()-p-4);
+          return;
+        } catch( BufferOverflowException e ) {
+          ((Buffer)_buf).position(p);
+          overflow(p,e);
+        }
+      }
+    }
+    // Same, with an 8-byte raw long after the length; for NBHML records.
+    <T> void item( Serializer<? super T> s, T t, long key ) throws IOException {
+      while( true ) {
+        room(12);
+        final int p = _buf.position();
+        ((Buffer)_buf).position(p+4);
+        _buf.putLong(key);
+        try {
+          s.write(t,_buf);
+          _buf.putInt(p,_buf.position()-p-12);
+          return;
+        } catch( BufferOverflowException e ) {
+          ((Buffer)_buf).position(p);
+          overflow(p,e);
+        }
+      }
+    }
+    // An item starting at 'p' did not fit: drain the buffer, or if the item
+    // did not fit even in an empty buffer then double the buffer.
+    private void overflow( int p, BufferOverflowException e ) throws IOException {
+      if( _ch == null ) throw e;
+      if( p > 0 ) flush();
+      else _buf = ByteBuffer.allocateDirect(_buf.capacity()<<1);
+    }
+  }
+
+  // --- In ------------------------------------------------------------------
+  // The read side: a buffer which is either the whole source, or is refilled
+  // from a channel whenever a read would run past its end.
+  private static final class In {
+    private final ReadableByteChannel _ch; // Null if the buffer is the source
+    ByteBuffer _buf;
+    In( ReadableByteChannel ch ) { _ch = ch; _buf = ByteBuffer.allocate(BUF_SIZE); ((Buffer)_buf).limit(0); }
+    In( ByteBuffer src ) { _ch = null; _buf = big_endian(src); }
+
+    // Check the magic and the kind, and return the element count, capped for
+    // presizing.
+    int header( byte kind ) throws IOException {
+      need(13);
+      final int magic = _buf.getInt();
+      final byte k = _buf.get();
+      if( magic != MAGIC || k != kind )
+        throw new IOException("not a binary "+(kind==KIND_NBHM ? "NonBlockingHashMap" : kind==KIND_NBHML ? "NonBlockingHashMapLong" : "NonBlockingSetInt"));
+      final long cnt = _buf.getLong();
+      if( cnt < 0 ) throw new IOException("bad element count "+cnt);
+      return (int)Math.min(cnt,MAX_PRESIZE);
+    }
+
+    // Make sure 'n' more bytes are in the buffer, refilling it if needed.
+    void need( int n ) throws IOException {
+      if( _buf.remaining() >= n ) return;
+      if( _ch == null ) throw new BufferUnderflowException();
+      if( _buf.capacity() < n ) {
+        final ByteBuffer buf = ByteBuffer.allocate(n);
+        buf.put(_buf);
+        _buf = buf;
+      } else {
+        _buf.compact();
+      }
+      while( _buf.position() < n )
+        if( _ch.read(_buf) < 0 ) throw new EOFException();
+      ((Buffer)_buf).flip();
+    }
+
+    // Read a length word: an item length or the END marker.
+    int len() throws IOException {
+      need(4);
+      final int len = _buf.getInt();
+      if( len < END ) throw new IOException("bad record length "+len);
+      return len;
+    }
+
+    // Read an item of 'len' bytes.  The serializer sees only those bytes,
+    // and the buffer is left just past them whatever it consumed.
+    <T> T item( Serializer<T> s, int len ) throws IOException {
+      if( len < 0 ) throw new IOException("bad record length "+len);
+      need(len);
+      final int end = _buf.position()+len;
+      final int lim = _buf.limit();
+      ((Buffer)_buf).limit(end);
+      try {
+        return s.read(_buf,len);
+      } finally {
+        ((Buffer)_buf).limit(lim);
+        ((Buffer)_buf).position(end);
+      }
+    }
+  }
+}
@@ -6,7 +6,6 @@
 package org.cliffc.high_scale_lib;
 import java.io.Serializable;
 import java.util.concurrent.atomic.*;
-import sun.misc.Unsafe;
 
 /**
  * An auto-resizing table of {@code longs}, supporting low-contention CAS
@@ -113,16 +112,10 @@ public class ConcurrentAutoTable implements Serializable {
   // --- CAT -----------------------------------------------------------------
   private static class CAT implements Serializable {
     
-    // Unsafe crud: get a function which will CAS arrays
-    private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
-    private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
-    private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
-    private static long rawIndex(long[] ary, int i) {
-      assert i >= 0 && i < ary.length;
-      return _Lbase + i * _Lscale;
-    }
+    // Stripes are only summed approximately and publish nothing, so the CAS
+    // needs atomicity but no ordering.  A spurious failure just retries.
     private final static boolean CAS( long[] A, int idx, long old, long nnn ) {
-      return _unsafe.compareAndSwapLong( A, rawIndex(A,idx), old, nnn );
+      return UtilAccess.weakCAS_plain( A, idx, old, nnn );
     }
    
     volatile long _resizers;    // count of threads attempting a resize
@@ -175,20 +168,17 @@ public class ConcurrentAutoTable implements Serializable {
         r = _resizers;
       r += newbytes;
       if( master._cat != this ) return old; // Already doubled, don't bother
-      if( (r>>17) != 0 ) {      // Already too much allocation attempts?
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new
-        // table is ready, or after the timeout in any case.  Annoyingly, this
-        // breaks the non-blocking property - so for now we just briefly sleep.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        try { Thread.sleep(r>>17); } catch( InterruptedException e ) { }
-        if( master._cat != this ) return old;
-      }
+      // Already too much allocation attempts?  Then leave the doubling to the
+      // threads already allocating, and carry on with this table: our add is
+      // already done, and waiting here would only add latency.
+      if( (r>>17) != 0 && r > newbytes ) return old;
 
       CAT newcat = new CAT(this,t.length*2,0);
       // Take 1 stab at updating the CAT with the new larger size.  If this
       // fails, we assume some other thread already expanded the CAT - so we
       // do not need to retry until it succeeds.
-      master.CAS_cat(this,newcat);
+      if( master.CAS_cat(this,newcat) )
+        JfrEvents.counter_grow(master,t.length,t.length*2);
       return old;
     }
     
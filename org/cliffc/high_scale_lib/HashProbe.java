@@ -0,0 +1,61 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+
+/**
+ * Bulk skipping of a probe sequence: from a key's first slot, count the
+ * slots which certainly hold some other key, so that a lookup can jump past
+ * them all at once.  For a {@link NonBlockingHashMap} probing fingerprints
+ * the slots are its memoized hashes, and for a {@link
+ * NonBlockingHashMapLong} the keys themselves.  A slot stops the skip if it
+ * matches, or is zero (empty, or a hash not yet memoized); the lookup then
+ * handles that slot as usual.  Slots only ever go from zero to their final
+ * value, so plain loads are enough: the lookup re-reads the slot it stops at
+ * with the usual ordering.
+ *
+ * <p>This is the scalar version in the main source tree, used up to JDK 16.
+ * JDK 17 and later instead load the version from
+ * <tt>META-INF/versions/17</tt> of the multi-release jar, which compares a
+ * whole vector of slots at a time when the <tt>jdk.incubator.vector</tt>
+ * module is present.  Both versions must keep the same package-private API.
+ * The maps only call in when {@link #VECTOR} is true, so here the calls fold
+ * away and the maps keep their own scalar loops.
+ */
+final class HashProbe {
+  private HashProbe() { } // dummy private constructor
+
+  /** True if skipping is vectorized, and worth calling.  Not a constant
+   *  expression, lest javac fold it into the callers, which must pick up
+   *  the JDK 17 version's value; the JIT folds it all the same. */
+  static final boolean VECTOR = vectorized();
+  private static boolean vectorized() { return false; }
+
+  /** Count of slots from idx on (wrapping) holding a hash other than
+   *  'fullhash' and 0; at most 'max'. */
+  static int skip( final int[] hashes, final int idx, final int fullhash, final int max ) {
+    final int mask = hashes.length-1;
+    int n = 0;
+    while( n < max ) {
+      final int h = hashes[(idx+n)&mask];
+      if( h == 0 || h == fullhash ) break;
+      n++;
+    }
+    return n;
+  }
+
+  /** Count of slots from idx on (wrapping) holding a key other than 'key'
+   *  and 0; at most 'max'. */
+  static int skip( final long[] keys, final int idx, final long key, final int max ) {
+    final int mask = keys.length-1;
+    int n = 0;
+    while( n < max ) {
+      final long K = keys[(idx+n)&mask];
+      if( K == 0 || K == key ) break;
+      n++;
+    }
+    return n;
+  }
+}
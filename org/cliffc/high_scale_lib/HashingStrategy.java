@@ -0,0 +1,32 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+
+/**
+ * The hash and equivalence used by a {@link NonBlockingHashMap} in place of
+ * the keys' own <tt>hashCode</tt> and <tt>equals</tt>.  This lets keys which
+ * lack a useful <tt>equals</tt>, such as arrays, be used directly without
+ * wrapping each key (and each lookup) in a new object, and lets keys be
+ * compared by some other notion of equality, such as ignoring case.
+ *
+ * <p>The two methods must agree: equivalent keys must have equal hash codes.
+ * The map spreads the returned hash itself, so a plain or even poorly mixed
+ * hash is fine; a strategy for keys carrying a precomputed 64-bit fingerprint
+ * can simply fold the fingerprint to an int.  Neither method is ever called
+ * with a null key.  Both methods are called in the map's probe loops and
+ * should be fast and free of side effects.  A map is only serializable if its
+ * strategy is.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public interface HashingStrategy<K> {
+  /** Returns the hash code of the given key. */
+  int hashCode( K key );
+  /** Returns true if the given keys are equivalent; 'key' is the key being
+   *  looked up and 'K' a key already in the map. */
+  boolean equals( K key, K K );
+}
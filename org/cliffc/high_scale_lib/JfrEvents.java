@@ -0,0 +1,37 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+
+/**
+ * Java Flight Recorder events for the tables' rare internal transitions:
+ * resizes, copy chunks and panic copies, promotions, bitvector growth and
+ * counter stripe doubling.
+ *
+ * <p>This is the do-nothing version in the main source tree, used where
+ * there is no <tt>jdk.jfr</tt> (JDK 8 and up to JDK 10); every method is
+ * empty and inlines away.  JDK 11 and later instead load the version from
+ * <tt>META-INF/versions/11</tt> of the multi-release jar, which emits real
+ * events.  Both versions must keep the same package-private API.  The
+ * callers are only on resize and copy paths, never in a plain get or put,
+ * and pass the table itself so that naming it costs nothing unless the
+ * event is enabled.
+ */
+final class JfrEvents {
+  private JfrEvents() { } // dummy private constructor
+
+  /** A new table of 'newlen' slots was installed to replace 'oldlen' slots,
+   *  by the calling thread, after it waited 'waited_nanos' for others. */
+  static void resize( Object table, long oldlen, long newlen, long waited_nanos ) { }
+  /** A thread copied a chunk of 'chunk' slots, 'workdone' of them newly. */
+  static void copy_chunk( Object table, long oldlen, long chunk, long workdone, boolean panic ) { }
+  /** A thread gave up claiming chunks and began copying the whole table. */
+  static void panic( Object table, long oldlen ) { }
+  /** A copy finished and the new table was promoted; 'copy_nanos' is the
+   *  time from installing the new table. */
+  static void promote( Object table, long oldlen, long newlen, long copy_nanos ) { }
+  /** A striped counter doubled its stripes from 'oldlen' to 'newlen'. */
+  static void counter_grow( Object counter, long oldlen, long newlen ) { }
+}
@@ -6,11 +6,20 @@
 package org.cliffc.high_scale_lib;
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.*;
-import sun.misc.Unsafe;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
 
 /**
  * A lock-free alternate implementation of {@link java.util.concurrent.ConcurrentHashMap}
@@ -77,27 +86,10 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
   private static final long serialVersionUID = 1234123412341234123L;
 
-  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
-
-  // --- Bits to allow Unsafe access to arrays
-  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
-  private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
-  private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
-  private static long rawIndex(final Object[] ary, final int idx) {
-    assert idx >= 0 && idx < ary.length;
-    return _Obase + idx * _Oscale;
-  }
-
-  // --- Setup to use Unsafe
-  private static final long _kvs_offset;
-  static {                      // <clinit>
-    Field f = null;
-    try { f = NonBlockingHashMap.class.getDeclaredField("_kvs"); }
-    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
-    _kvs_offset = _unsafe.objectFieldOffset(f);
-  }
+  // --- Setup to CAS the _kvs field; see UtilAccess
+  private static final UtilAccess.RefField _kvs_field = new UtilAccess.RefField(NonBlockingHashMap.class,"_kvs");
   private final boolean CAS_kvs( final Object[] oldkvs, final Object[] newkvs ) {
-    return _unsafe.compareAndSwapObject(this, _kvs_offset, oldkvs, newkvs );
+    return _kvs_field.CAS(this, oldkvs, newkvs );
   }
 
   // --- Adding a 'prime' bit onto Values via wrapping with a junk wrapper class
@@ -109,10 +101,17 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
   // --- hash ----------------------------------------------------------------
   // Helper function to spread lousy hashCodes
-  private static final int hash(final Object key) {
-    int h = key.hashCode();     // The real hashCode call
-    // Spread bits to regularize both segment and index locations,
-    // using variant of single-word Wang/Jenkins hash.
+  private final int hash(final Object key) {
+    final HashingStrategy hs = _strategy;
+    int h;
+    if( hs == null ) h = key.hashCode(); // The real hashCode call
+    else if( key == null ) throw new NullPointerException();
+    else h = hs.hashCode(key);  // The user's hash
+    return spread(h);
+  }
+  // Spread bits to regularize both segment and index locations,
+  // using variant of single-word Wang/Jenkins hash.
+  private static int spread( int h ) {
     h += (h <<  15) ^ 0xffffcd7d;
     h ^= (h >>> 10);
     h += (h <<   3);
@@ -120,6 +119,30 @@ public class NonBlockingHashMap<TypeK, TypeV>
     h += (h <<   2) + (h << 14);
     return h ^ (h >>> 16);
   }
+  // The hash of 'key' in a table with the given seed, from its unseeded hash
+  // 'hash0'.  A seeded table hashes String keys by their chars, so that
+  // Strings with equal hashCodes (which are easy to make) still hash apart;
+  // other keys just have their hash scrambled by the seed.
+  private final int hash( final Object key, final int hash0, final int seed ) {
+    if( seed == 0 ) return hash0; // Unseeded table
+    if( _strategy == null && key instanceof String ) return string_hash((String)key,seed);
+    return spread(hash0 ^ seed);
+  }
+  // Seeded Murmur3-style hash of a String's chars, two chars a round
+  private static int string_hash( final String s, final int seed ) {
+    final int n = s.length();
+    int h = seed, i = 0;
+    for( ; i+1 < n; i += 2 ) h = murmur(h,s.charAt(i) | (s.charAt(i+1)<<16));
+    if( i < n ) h = murmur(h,s.charAt(i));
+    h ^= n;
+    h ^= h >>> 16;  h *= 0x85ebca6b;
+    h ^= h >>> 13;  h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+  private static int murmur( final int h, int k ) {
+    k *= 0xcc9e2d51;  k = Integer.rotateLeft(k,15);  k *= 0x1b873593;
+    return Integer.rotateLeft(h^k,13)*5 + 0xe6546b64;
+  }
 
   // --- The Hash Table --------------------
   // Slot 0 is always used for a 'CHM' entry below to hold the interesting
@@ -141,11 +164,27 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // Time since last resize
   private transient long _last_resize_milli;
 
+  // Probe the memoized hashes before the keys; see get_impl
+  private final boolean _fingerprint_probe;
+
+  // Key hash and equivalence, or null for the keys' own hashCode and equals
+  private final HashingStrategy<? super TypeK> _strategy;
+
+  // The "how big?" heuristics.  Not final, so that readObject can default it
+  // for streams written before it existed.
+  private ResizePolicy _policy;
+
   // --- Minimum table size ----------------
   // Pick size 8 K/V pairs, which turns into (8*2+2)*4+12 = 84 bytes on a
   // standard 32-bit HotSpot, and (8*2+2)*8+12 = 156 bytes on 64-bit Azul.
   private static final int MIN_SIZE_LOG=3;             //
   private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+  // --- Maximum table size ----------------
+  // The K/V pairs plus 2 slots must fit in a single Java array.
+  private static final int MAX_SIZE_LOG=29;
+  // Tables smaller than this are never shrunk by removes, nor compacted
+  // before they fill up; it is not worth the copy to save a few Kbytes.
+  private static final int MIN_SHRINK_LEN=(1<<10);
 
   // --- Sentinels -------------------------
   // No-Match-Old - putIfMatch does updates only if it matches the old value,
@@ -162,6 +201,13 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // updates can happen to the old table (and since the K/V pair was deleted
   // nothing was copied to the new table).
   private static final Prime TOMBPRIME = new Prime(TOMBSTONE);
+  // Prime'd version of a value parked in the new table's staging array.  A
+  // table copy freezes a live value by CASing it to STAGED rather than to a
+  // freshly allocated box; the value itself is found in the staging array.
+  private static final Prime STAGED = new Prime(null);
+  // A table's staging array when it has none: a first table, a shrinking
+  // copy, or a copy already done.
+  private static final Object[] NO_STAGING = new Object[0];
 
   // --- key,val -------------------------------------------------------------
   // Access K,V for a given idx
@@ -173,15 +219,16 @@ public class NonBlockingHashMap<TypeK, TypeV>
   private static final Object key(Object[] kvs,int idx) { return kvs[(idx<<1)+2]; }
   private static final Object val(Object[] kvs,int idx) { return kvs[(idx<<1)+3]; }
   private static final boolean CAS_key( Object[] kvs, int idx, Object old, Object key ) {
-    return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+2), old, key );
+    return UtilAccess.CAS( kvs, (idx<<1)+2, old, key );
   }
   private static final boolean CAS_val( Object[] kvs, int idx, Object old, Object val ) {
-    return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+3), old, val );
+    return UtilAccess.CAS( kvs, (idx<<1)+3, old, val );
   }
 
 
   // --- dump ----------------------------------------------------------------
-  /** Verbose printout of table internals, useful for debugging.  */
+  /** Verbose printout of table internals, useful for debugging.  See
+   *  {@link #stats} for a summary of the table's health.  */
   public final void print() {
     System.out.println("=========");
     print2(_kvs);
@@ -196,7 +243,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
         Object V = val(kvs,i);
         Object U = Prime.unbox(V);
         String p = (V==U) ? "" : "prime_";
-        String US = (U == TOMBSTONE) ? "tombstone" : U.toString();
+        String US = (U == TOMBSTONE) ? "tombstone" : (U == null ? "staged" : U.toString());
         System.out.println(""+i+" ("+KS+","+p+US+")");
       }
     }
@@ -225,6 +272,42 @@ public class NonBlockingHashMap<TypeK, TypeV>
     }
   }
 
+  // --- stats ---------------------------------------------------------------
+  /** A snapshot of the table's health: live, tombstoned and empty slot
+   *  counts, a probe-length histogram, the depth of in-progress resizes, and
+   *  the memory held by the table arrays.  Unlike {@link #print} nothing is
+   *  printed, and unlike {@link #reprobes} nothing is reset.  Every slot of
+   *  the table is visited, so a snapshot costs about as much as iterating
+   *  over the map.
+   *  @return a new {@link TableStats} */
+  public TableStats stats() {
+    final Object[] kvs = _kvs;
+    final int len = len(kvs);
+    final int[] hashes = hashes(kvs);
+    final TableStats.Tally t = new TableStats.Tally();
+    for( int i=0; i<len; i++ ) {
+      final Object K = key(kvs,i);
+      if( K == null ) continue; // Empty
+      final Object V = val(kvs,i);
+      if( K == TOMBSTONE || V == null || V == TOMBSTONE || V == TOMBPRIME ) {
+        t.tombstone();
+        continue;
+      }
+      int h = hashes[i];
+      if( h == 0 ) h = hash(K,hash(K),chm(kvs)._seed); // Not memoized yet
+      t.live((i-h)&(len-1));
+    }
+    int depth = 0;
+    long bytes = 0;
+    for( Object[] x = kvs; x != null; x = chm(x)._newkvs ) {
+      depth++;
+      bytes += TableStats.array_bytes(x.length,TableStats.REF_BYTES) + TableStats.array_bytes(len(x),4);
+      final Object[] staged = chm(x)._staged;
+      if( staged != null && staged != NO_STAGING ) bytes += TableStats.array_bytes(staged.length,TableStats.REF_BYTES);
+    }
+    return new TableStats(t,len,depth,bytes);
+  }
+
   // Count of reprobes
   private transient Counter _reprobes = new Counter();
   /** Get and clear the current count of reprobes.  Reprobes happen on key
@@ -234,14 +317,180 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Count of, and total time spent by, threads parked in a resize waiting for
+  // another thread to allocate the new table.
+  private transient volatile long _resize_waits, _resize_wait_nanos;
+  private static final AtomicLongFieldUpdater<NonBlockingHashMap> _resizeWaitsUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingHashMap.class, "_resize_waits");
+  private static final AtomicLongFieldUpdater<NonBlockingHashMap> _resizeWaitNanosUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingHashMap.class, "_resize_wait_nanos");
+  private final void record_resize_wait( long nanos ) {
+    _resizeWaitsUpdater.addAndGet(this,1);
+    _resizeWaitNanosUpdater.addAndGet(this,nanos);
+  }
+  /** Count of times a thread waited for another thread to allocate a new,
+   *  larger table.  Only large tables (a megabyte or more) are waited for.
+   *  @return the count of resize waits since the map was created */
+  public long resizeWaits() { return _resize_waits; }
+  /** Total time threads spent waiting for another thread to allocate a new,
+   *  larger table.
+   *  @return nanoseconds of resize waits since the map was created */
+  public long resizeWaitNanos() { return _resize_wait_nanos; }
+
+  // Count of resizes, and how long the last one took from installing the new
+  // table to promoting it.  Only the thread promoting a table writes these.
+  private transient volatile long _resizes, _last_resize_nanos;
+
+  // --- Hash seeding --------------------------------------------------------
+  // Give new tables random hash seeds
+  private volatile boolean _hash_seeding;
+  /** Turn randomized hashing on or off.  Normally a key's place in the table
+   *  follows from its <tt>hashCode</tt> alone, so whoever picks the keys can
+   *  pick a flood of them that all land in one spot, and every insert then
+   *  runs to the reprobe limit and forces a resize of a mostly empty table.
+   *  With seeding on, each table is hashed with a random seed of its own.
+   *  String keys are then hashed by their chars, so Strings with equal
+   *  hashCodes no longer collide; other keys (and keys hashed by a {@link
+   *  HashingStrategy}) still rely on their hashCode being hard to collide.
+   *  A table an insert runs out of reprobes in is taken to be under attack,
+   *  and is copied into a table with a fresh seed.
+   *  <p>Seeded String hashes are computed afresh on every lookup, instead of
+   *  using the String's cached hashCode, and iteration order is no longer
+   *  repeatable from run to run.  Turning seeding on copies the current
+   *  table into a seeded one before returning; turning it off takes effect
+   *  at the next resize.  The setting is serialized with the map.
+   *  @param on true to seed new tables */
+  public void setHashSeeding( final boolean on ) {
+    _hash_seeding = on;
+    Object[] kvs;
+    while( _hash_seeding && chm(kvs = _kvs)._seed == 0 ) {
+      final CHM chm = chm(kvs);
+      chm.resize(this,kvs,len(kvs),len(kvs)); // Start a same-size copy, or find one in-progress
+      chm.help_copy_impl(this,kvs,true);      // And finish it
+    }
+  }
+  /** True if new tables get random hash seeds; see {@link #setHashSeeding}.
+   *  @return true if hash seeding is on */
+  public boolean getHashSeeding() { return _hash_seeding; }
+
+  // A seed for a new table not copied from another: random when seeding,
+  // else 0 (for no seed)
+  private final int new_seed() { return _hash_seeding ? fresh_seed() : 0; }
+  private static int fresh_seed() {
+    int seed;
+    while( (seed = ThreadLocalRandom.current().nextInt()) == 0 ) ;
+    return seed;
+  }
+
+  // --- Resize executor -----------------------------------------------------
+  // Runs table copies in the background, if set
+  private transient volatile Executor _resize_executor;
+  /** Set an executor to run table copies on.  Normally a resize is copied a
+   *  chunk at a time by whichever threads use the map while it is in
+   *  progress, charging the copy to their calls, and a map nobody touches
+   *  never finishes copying.  With an executor, each resize hands its copy
+   *  to a task on the executor, and the map's own callers stop helping: they
+   *  only copy the odd slot they trip over mid-copy.  The task claims chunks
+   *  of the table just as the callers would, so callers and task never copy
+   *  the same chunk twice.  The executor should run the task promptly, say
+   *  on a thread set aside for it; until it does, the copy advances only by
+   *  the slots callers trip over.  If the executor rejects the task, the
+   *  callers help copy as usual.
+   *  @param ex the executor, or null to have callers do all the copying */
+  public void setResizeExecutor( final Executor ex ) { _resize_executor = ex; }
+  /** The executor table copies run on, or null; see {@link #setResizeExecutor}.
+   *  @return the resize executor, or null */
+  public Executor getResizeExecutor() { return _resize_executor; }
+
+  // Hand the copy out of 'chm' to the resize executor, if there is one.  The
+  // flag goes up first, so callers stop helping as soon as may be.
+  private final void copy_in_background( final CHM chm ) {
+    final Executor ex = _resize_executor;
+    if( ex == null ) return;
+    chm._background = true;
+    try { ex.execute(this::copy_all); }
+    catch( RejectedExecutionException e ) { chm._background = false; }
+  }
+  // The resize executor's task: finish the top-level copy, and any nested
+  // copies started meanwhile (callers no longer help those along either).
+  private final void copy_all() {
+    Object[] topkvs;
+    while( chm(topkvs = _kvs)._newkvs != null )
+      chm(topkvs).help_copy_impl(this,topkvs,true);
+  }
+
+  // --- JMX -----------------------------------------------------------------
+  // The name this map's TableMXBean is registered under, if any
+  private transient volatile javax.management.ObjectName _mbean;
+  /** Register a JMX {@link TableMXBean} for this map with the platform
+   *  MBean server, as
+   *  <tt>org.cliffc.high_scale_lib:type=NonBlockingHashMap,name=</tt><em>name</em>.
+   *  The bean reads the live map on each call and adds no cost to the map's
+   *  own operations.
+   *  @param name the name for the bean
+   *  @return the bean's ObjectName
+   *  @throws IllegalStateException if a bean is already registered for this map
+   *  @throws javax.management.JMException if the bean cannot be registered,
+   *  such as when another bean has the same name */
+  public javax.management.ObjectName registerMBean( final String name ) throws javax.management.JMException {
+    if( _mbean != null ) throw new IllegalStateException("already registered as "+_mbean);
+    return _mbean = TableMBeans.register("NonBlockingHashMap",name,new MBean(name));
+  }
+  /** Unregister the bean registered by {@link #registerMBean}, if any.
+   *  @throws javax.management.JMException if the bean cannot be unregistered */
+  public void unregisterMBean() throws javax.management.JMException {
+    final javax.management.ObjectName on = _mbean;
+    if( on == null ) return;
+    _mbean = null;
+    TableMBeans.unregister(on);
+  }
+
+  private final class MBean implements TableMXBean {
+    private final String _name;
+    MBean( final String name ) { _name = name; }
+    public String getName() { return _name; }
+    public long getSize() { return estimatedSize(); }
+    public long getCapacity() { return len(_kvs); }
+    public long getSlots() { return chm(_kvs)._slots.estimate_get(); }
+    public long getTombstones() {
+      final CHM chm = chm(_kvs);
+      return Math.max(0,chm._slots.estimate_get()-chm._size.estimate_get());
+    }
+    public double getAverageProbeLength() { return probe_length(_kvs); }
+    public long getResizes() { return _resizes; }
+    public long getLastResizeNanos() { return _last_resize_nanos; }
+    public long getCopyDone() { final CHM chm = chm(_kvs); return chm._newkvs == null ? 0 : chm._copyDone; }
+    public long getCopyTotal() { final Object[] kvs = _kvs; return chm(kvs)._newkvs == null ? 0 : len(kvs); }
+    public long getResizeWaits() { return resizeWaits(); }
+    public long getResizeWaitNanos() { return resizeWaitNanos(); }
+  }
+
+  // Average distance of keys from their home slots, over the first
+  // PROBE_SAMPLE slots of the table.  Uses the memoized hashes, so user
+  // hashCodes are never called.
+  private static final int PROBE_SAMPLE = 1<<12;
+  private static final double probe_length( final Object[] kvs ) {
+    final int len = len(kvs);
+    final int[] hashes = hashes(kvs);
+    long keys=0, dist=0;
+    for( int i=0; i<Math.min(len,PROBE_SAMPLE); i++ ) {
+      final Object K = key(kvs,i);
+      final int h = hashes[i];
+      if( K == null || K == TOMBSTONE || h == 0 ) continue; // Empty, or hash not memoized yet
+      dist += (i-h)&(len-1);
+      keys++;
+    }
+    return keys == 0 ? 0 : (double)dist/keys;
+  }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
   // the reprobe limit on a 'get' call acts as a 'miss'; on a 'put' call it
   // can trigger a table resize.  Several places must have exact agreement on
   // what the reprobe_limit is, so we share it here.
-  private static final int reprobe_limit( int len ) {
-    return REPROBE_LIMIT + (len>>2);
+  private final int reprobe_limit( int len ) {
+    return (int)_policy.reprobe_limit(len);
   }
 
   // --- NonBlockingHashMap --------------------------------------------------
@@ -256,20 +505,83 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  appropriate size.  Large numbers here when used with a small count of
    *  elements will sacrifice space for a small amount of time gained.  The
    *  initial size will be rounded up internally to the next larger power of 2. */
-  public NonBlockingHashMap( final int initial_sz ) { initialize(initial_sz); }
+  public NonBlockingHashMap( final int initial_sz ) { this(initial_sz,false); }
+
+  /** Create a new NonBlockingHashMap, optionally probing by fingerprint.  A
+   *  fingerprint-probing map checks the memoized full hash of each probed
+   *  slot before touching the slot's key and value, and skips slots holding
+   *  a different hash without reading them at all.  A run of reprobes then
+   *  reads a single cache line of hashes instead of pulling in the key/value
+   *  lines (and the key objects) of every slot passed over.  This suits big
+   *  read-mostly maps whose lookups use equal, but not identical, key
+   *  objects.  Lookups with the very same key object as was inserted do
+   *  better without it, as they otherwise never read the hashes at all.
+   *  On JDK 17 and later, started with <tt>--add-modules
+   *  jdk.incubator.vector</tt>, a run of hashes is compared a vector at a
+   *  time, which makes long probe runs (as in a dense {@link ResizePolicy})
+   *  cheap.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param fingerprint_probe probe the memoized hashes first */
+  public NonBlockingHashMap( final int initial_sz, final boolean fingerprint_probe ) {
+    this(initial_sz,fingerprint_probe,null);
+  }
+
+  /** Create a new NonBlockingHashMap which hashes and compares keys with the
+   *  given strategy instead of the keys' own <tt>hashCode</tt> and
+   *  <tt>equals</tt>.  All key lookups, including those of the key and entry
+   *  views, use the strategy.
+   *  @param strategy the key hash and equivalence */
+  public NonBlockingHashMap( final HashingStrategy<? super TypeK> strategy ) {
+    this(MIN_SIZE,false,strategy);
+  }
+
+  /** Create a new NonBlockingHashMap with the given resize heuristics; see
+   *  {@link ResizePolicy}.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param policy the resize heuristics */
+  public NonBlockingHashMap( final int initial_sz, final ResizePolicy policy ) {
+    this(initial_sz,false,null,policy);
+  }
+
+  /** Create a new NonBlockingHashMap with the default resize heuristics.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param fingerprint_probe probe the memoized hashes first
+   *  @param strategy the key hash and equivalence, or null for the keys' own */
+  public NonBlockingHashMap( final int initial_sz, final boolean fingerprint_probe, final HashingStrategy<? super TypeK> strategy ) {
+    this(initial_sz,fingerprint_probe,strategy,ResizePolicy.DEFAULT);
+  }
+
+  /** Create a new NonBlockingHashMap with all options.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param fingerprint_probe probe the memoized hashes first
+   *  @param strategy the key hash and equivalence, or null for the keys' own
+   *  @param policy the resize heuristics */
+  public NonBlockingHashMap( final int initial_sz, final boolean fingerprint_probe, final HashingStrategy<? super TypeK> strategy, final ResizePolicy policy ) {
+    if( policy == null ) throw new NullPointerException();
+    _fingerprint_probe = fingerprint_probe;
+    _strategy = strategy;
+    _policy = policy;
+    initialize(initial_sz);
+  }
   private final void initialize( int initial_sz ) {
     if( initial_sz < 0 ) throw new IllegalArgumentException();
+    if( _policy == null ) _policy = ResizePolicy.DEFAULT; // Stream from before policies
+    final long minsz = _policy.padded(initial_sz);
     int i;                      // Convert to next largest power-of-2
-    if( initial_sz > 1024*1024 ) initial_sz = 1024*1024;
-    for( i=MIN_SIZE_LOG; (1<<i) < (initial_sz<<2); i++ ) ;
-    // Double size for K,V pairs, add 1 for CHM and 1 for hashes
-    _kvs = new Object[((1<<i)<<1)+2];
-    _kvs[0] = new CHM(new Counter()); // CHM in slot 0
-    _kvs[1] = new int[1<<i];          // Matching hash entries
+    for( i=MIN_SIZE_LOG; (1L<<i) < minsz && i < MAX_SIZE_LOG; i++ ) ;
+    _kvs = empty_kvs(1<<i,new_seed());
     _last_resize_milli = System.currentTimeMillis();
   }
   // Version for subclassed readObject calls, to be called after the defaultReadObject
   protected final void initialize() { initialize(MIN_SIZE); }
+  // A new empty table with room for 'len' K/V pairs; 'len' a power of 2
+  private static final Object[] empty_kvs( final int len, final int seed ) {
+    // Double size for K,V pairs, add 1 for CHM and 1 for hashes
+    final Object[] kvs = new Object[(len<<1)+2];
+    kvs[0] = new CHM(new Counter(),false,seed); // CHM in slot 0
+    kvs[1] = new int[len];      // Matching hash entries
+    return kvs;
+  }
 
   // --- wrappers ------------------------------------------------------------
 
@@ -277,10 +589,49 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  @return the number of key-value mappings in this map */
   @Override 
   public int     size       ( )                       { return chm(_kvs).size(); }
-  /** Returns <tt>size() == 0</tt>.
+  /** Returns the number of key-value mappings in this map, summing every
+   *  stripe of the size counter.  The count is exact while the map is not
+   *  being updated, and always includes the calling thread's own updates;
+   *  but under heavy concurrent updates the counter has many stripes, and
+   *  summing them all is costly.
+   *  @return the number of key-value mappings in this map */
+  public long    exactSize  ( )                       { return chm(_kvs)._size.get(); }
+  /** Returns a cheap estimate of the number of key-value mappings, for
+   *  callers which check the size often (admission control, metrics).
+   *  Once the size counter has grown past a few stripes, the estimate is
+   *  a cached sum refreshed at most once a millisecond, so it may miss the
+   *  latest updates, even the calling thread's own.
+   *  @return an estimate of the number of key-value mappings */
+  public long    estimatedSize( )                     { return Math.max(0,chm(_kvs)._size.estimate_get()); }
+  /** Returns {@link #estimatedSize}; the name used by {@link
+   *  java.util.concurrent.ConcurrentHashMap} for its own size estimate.
+   *  @return an estimate of the number of key-value mappings */
+  public long    mappingCount( )                      { return estimatedSize(); }
+  /** Returns <tt>size() == 0</tt>.  A live mapping near where the last call
+   *  found one proves the map is not empty without summing the size
+   *  counter; only an empty (or nearly empty) map pays for the full sum.
    *  @return <tt>size() == 0</tt> */
   @Override 
-  public boolean isEmpty    ( )                       { return size() == 0;      }
+  public boolean isEmpty    ( ) {
+    final Object[] kvs = _kvs;
+    final int len = len(kvs);
+    int idx = _live_hint;
+    for( int i=0; i<LIVE_PROBES; i++, idx++ ) {
+      // Any value but null or a tombstone is a live mapping, including a
+      // Prime or STAGED value still being copied to a newer table.
+      final Object V = val(kvs,idx&(len-1));
+      if( V != null && V != TOMBSTONE && V != TOMBPRIME ) {
+        _live_hint = idx;       // Start here next time
+        return false;
+      }
+    }
+    _live_hint = idx;           // Look further along next time
+    return exactSize() == 0;
+  }
+  // Slots checked by isEmpty for a live mapping, before summing the counter.
+  private static final int LIVE_PROBES = 8;
+  // Where isEmpty last found a live mapping.  Racy, it is only a hint.
+  private transient int _live_hint;
 
   /** Tests if the key in the table using the <tt>equals</tt> method.
    * @return <tt>true</tt> if the key is in the table using the <tt>equals</tt> method
@@ -352,19 +703,211 @@ public class NonBlockingHashMap<TypeK, TypeV>
   }
 
 
+  // --- compute, merge ------------------------------------------------------
+  // Native versions of the Java 8 ConcurrentMap defaults.  The defaults loop
+  // on get() plus a replace()/putIfAbsent()/remove(), re-hashing the key on
+  // every attempt.  These versions hash the key once and run each attempt
+  // directly on putIfMatch with the value just read as the expected value.
+  //
+  // The functions are never called while holding any lock (there are none)
+  // and so may run concurrently with other updates to the same key.  If
+  // another thread changes the mapping between the read and the update, the
+  // function result is discarded and the function is re-applied to the new
+  // value; functions should therefore be quick and free of side effects.
+
+  /** If the key is not already mapped, attempts to compute its value using
+   *  the given mapping function and enters it into this map unless null.
+   *  The function is applied at most once per call, and not at all if the
+   *  key is already mapped.  If another thread installs a mapping for the
+   *  key while the function runs, the other mapping wins and is returned.
+   *  @return the current (existing or computed) value associated with the
+   *          key, or null if the computed value is null
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV computeIfAbsent( TypeK key, Function<? super TypeK, ? extends TypeV> mappingFunction ) {
+    if( mappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(key); // throws NullPointerException if key is null
+    Object V = get_impl(this,_kvs,key,fullhash);
+    if( V != null ) return (TypeV)V;
+    final TypeV newV = mappingFunction.apply(key);
+    if( newV == null ) return null;
+    final Object res = putIfMatch(this,_kvs,key,newV,TOMBSTONE,fullhash);
+    assert !(res instanceof Prime);
+    return res == TOMBSTONE ? newV : (TypeV)res; // Lost the race?  Return the winner
+  }
+
+  /** If the key is mapped, attempts to compute a new mapping given the key
+   *  and its current value.  If the function returns null, the mapping is
+   *  removed.  The function may be re-applied if the value changes
+   *  concurrently.
+   *  @return the new value associated with the key, or null if none
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV computeIfPresent( TypeK key, BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( remappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(key); // throws NullPointerException if key is null
+    while( true ) {
+      final Object V = get_impl(this,_kvs,key,fullhash);
+      if( V == null ) return null;
+      final TypeV newV = remappingFunction.apply(key,(TypeV)V);
+      if( putIfMatchHash(key,newV,V,fullhash) ) return newV;
+    }
+  }
+
+  /** Attempts to compute a mapping for the key and its current mapped value
+   *  (or null if there is no current mapping).  If the function returns
+   *  null, the mapping is removed (or remains absent).  The function may be
+   *  re-applied if the value changes concurrently.
+   *  @return the new value associated with the key, or null if none
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV compute( TypeK key, BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( remappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(key); // throws NullPointerException if key is null
+    while( true ) {
+      final Object V = get_impl(this,_kvs,key,fullhash);
+      final TypeV newV = remappingFunction.apply(key,(TypeV)V);
+      if( putIfMatchHash(key,newV,V==null ? TOMBSTONE : V,fullhash) ) return newV;
+    }
+  }
+
+  /** If the key is not mapped, maps it to the given value.  Otherwise
+   *  replaces the value with the result of the given function applied to
+   *  the old and given values, or removes the mapping if the result is null.
+   *  This is the lock-free equivalent of the common {@code merge(key, 1L,
+   *  Long::sum)} counting idiom.  The function may be re-applied if the
+   *  value changes concurrently.
+   *  @return the new value associated with the key, or null if none
+   *  @throws NullPointerException if the specified key, value or function is null */
+  @Override
+  public TypeV merge( TypeK key, TypeV value, BiFunction<? super TypeV, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( value == null || remappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(key); // throws NullPointerException if key is null
+    while( true ) {
+      final Object V = get_impl(this,_kvs,key,fullhash);
+      final TypeV newV = V == null ? value : remappingFunction.apply((TypeV)V,value);
+      if( putIfMatchHash(key,newV,V==null ? TOMBSTONE : V,fullhash) ) return newV;
+    }
+  }
+
+  // One update attempt for the compute family.  Replace expVal (TOMBSTONE
+  // for absent) with newV, or remove the key if newV is null.  Returns true
+  // if the update happened (or, for a null newV, the key is absent).  Note
+  // that putIfMatch matches the expected value with 'equals' and returns the
+  // value actually replaced, which need not be the same object.
+  private final boolean putIfMatchHash( Object key, Object newV, Object expVal, int fullhash ) {
+    if( newV == null && expVal == TOMBSTONE ) return true; // Absent, and stays absent
+    final Object res = putIfMatch(this,_kvs,key,newV==null ? TOMBSTONE : newV,expVal,fullhash);
+    assert !(res instanceof Prime);
+    if( expVal == TOMBSTONE ) return res == TOMBSTONE;
+    return res == expVal || (res != TOMBSTONE && expVal.equals(res));
+  }
+
   /** Copies all of the mappings from the specified map to this one, replacing
-   *  any existing mappings.
+   *  any existing mappings.  The table is first grown (once) to hold all the
+   *  new mappings, instead of doubling repeatedly as they are inserted.
    *  @param m mappings to be stored in this map */
   @Override
   public void putAll(Map<? extends TypeK, ? extends TypeV> m) {
+    presize(m.size());
     for (Map.Entry<? extends TypeK, ? extends TypeV> e : m.entrySet())
       put(e.getKey(), e.getValue());
   }
 
+  // --- presize -------------------------------------------------------------
+  // Grow the table, if needed, so that 'n' more keys fit without further
+  // resizing.  Uses the normal cooperative table copy (so racing updates are
+  // not lost), then finishes the copy before returning.  Same sizing rule as
+  // the constructor: the table is padded to the policy's load factor.
+  private final void presize( long n ) {
+    if( n <= 0 ) return;
+    grow(_policy.padded(size()+n));
+  }
+  // Grow the table to at least 'minsz' K/V pairs, capped at the largest table
+  private final void grow( long minsz ) {
+    minsz = Math.min(minsz, 1L<<MAX_SIZE_LOG);
+    while( true ) {
+      final Object[] kvs = _kvs;
+      if( len(kvs) >= minsz ) return;
+      final CHM chm = chm(kvs);
+      chm.resize(this,kvs,minsz,Long.MAX_VALUE); // Start a copy, or find one in-progress
+      chm.help_copy_impl(this,kvs,true); // And finish it
+    }
+  }
+
+  // --- ensureCapacity ------------------------------------------------------
+  /** Grow the table, if needed, so that it holds <tt>n</tt> mappings in total
+   *  without further resizing.  The table is sized as if by the constructor
+   *  taking an initial size.  Racing updates are not lost: the table is grown
+   *  by the normal cooperative copy, which is finished before returning.
+   *  @param n the number of mappings to make room for
+   *  @throws IllegalArgumentException if <tt>n</tt> is negative */
+  public void ensureCapacity( final int n ) {
+    if( n < 0 ) throw new IllegalArgumentException();
+    grow(_policy.padded(n));
+  }
+
+  // --- trimToSize ----------------------------------------------------------
+  /** Shrink the table, if it is larger than needed, to the size the
+   *  constructor would pick for the current number of mappings.  Useful
+   *  after removing most of the mappings of a large map.  The table is
+   *  shrunk by the normal cooperative copy, which is finished before
+   *  returning; racing inserts may of course grow it again. */
+  public void trimToSize() {
+    // The first pass may only finish a copy already in progress
+    for( int pass=0; pass<2; pass++ ) {
+      final Object[] kvs = _kvs;
+      final long maxsz = Math.max(MIN_SIZE, _policy.padded(size()));
+      if( (len(kvs)>>1) < maxsz ) return; // Already as small as it gets
+      final CHM chm = chm(kvs);
+      chm.resize(this,kvs,0,maxsz); // Start a copy, or find one in-progress
+      chm.help_copy_impl(this,kvs,true); // And finish it
+    }
+  }
+
+  // --- bulkLoad ------------------------------------------------------------
+  /** Build a new map from parallel arrays of keys and values.  The table is
+   *  sized once up front and then filled in parallel (using the common
+   *  ForkJoin pool) before the map is returned, so no resizing happens
+   *  during the load.  If a key appears more than once, which of its values
+   *  ends up in the map is unspecified.
+   *  @param keys the keys, none null
+   *  @param vals the matching values, none null
+   *  @return a new map holding the given mappings
+   *  @throws IllegalArgumentException if the arrays differ in length
+   *  @throws NullPointerException if any key or value is null */
+  public static <K,V> NonBlockingHashMap<K,V> bulkLoad( final K[] keys, final V[] vals ) {
+    if( keys.length != vals.length ) throw new IllegalArgumentException();
+    final NonBlockingHashMap<K,V> map = new NonBlockingHashMap<K,V>(keys.length);
+    java.util.stream.IntStream.range(0,keys.length).parallel().forEach(i -> map.put(keys[i],vals[i]));
+    return map;
+  }
+
+  /** Build a new map from a stream of entries, presized for the expected
+   *  number of entries.  The stream is consumed in parallel (using the
+   *  common ForkJoin pool) before the map is returned.  If a key appears more
+   *  than once, which of its values ends up in the map is unspecified.
+   *  @param entries the mappings, no key or value null
+   *  @param expected_sz the expected number of mappings, to size the table
+   *  @return a new map holding the given mappings
+   *  @throws NullPointerException if any key or value is null */
+  public static <K,V> NonBlockingHashMap<K,V> bulkLoad( final java.util.stream.Stream<? extends Map.Entry<? extends K,? extends V>> entries, final int expected_sz ) {
+    final NonBlockingHashMap<K,V> map = new NonBlockingHashMap<K,V>(expected_sz);
+    entries.parallel().forEach(e -> map.put(e.getKey(),e.getValue()));
+    return map;
+  }
+
   /** Removes all of the mappings from this map. */
   @Override
-  public void clear() {         // Smack a new empty table down
-    Object[] newkvs = new NonBlockingHashMap(MIN_SIZE)._kvs;
+  public void clear() { clear(false); }
+
+  /** Removes all of the mappings from this map.  With <tt>keepCapacity</tt>
+   *  the new empty table is the same size as the current one, so a map which
+   *  is cleared and refilled over and over does not grow its table from
+   *  scratch every time; otherwise the table goes back to the minimum size.
+   *  @param keepCapacity true to keep the current table size */
+  public void clear( final boolean keepCapacity ) { // Smack a new empty table down
+    Object[] newkvs = empty_kvs(keepCapacity ? len(_kvs) : MIN_SIZE,new_seed());
     while( !CAS_kvs(_kvs,newkvs) ) // Spin until the clear works
       ;
   }
@@ -393,7 +936,10 @@ public class NonBlockingHashMap<TypeK, TypeV>
   /**
    * Creates a shallow copy of this hashtable. All the structure of the
    * hashtable itself is copied, but the keys and values are not cloned.
-   * This is a relatively expensive operation.
+   * The table is copied slot for slot, in parallel (using the common
+   * ForkJoin pool) for large tables, so no key is re-hashed or re-inserted.
+   * Like iteration, the copy reflects each mapping as of some point during
+   * the call.
    *
    * @return  a clone of the hashtable.
    */
@@ -407,13 +953,11 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // structure is undergoing rapid change.  If I just clone the _kvs
       // field, the CHM in _kvs[0] won't be in sync.
       //
-      // Wipe out the cloned array (it was shallow anyways).
-      t.clear();
-      // Now copy sanely
-      for( TypeK K : keySet() ) {
-        final TypeV V = get(K);  // Do an official 'get'
-        t.put(K,V);
-      }
+      // Replace the cloned array (it was shallow anyways) with a copy made
+      // slot by slot, with its own CHM.
+      t._kvs = copy_table();
+      t._reprobes = new Counter();
+      t._mbean = null;          // The clone is not registered
       return t;
     } catch (CloneNotSupportedException e) {
       // this shouldn't happen, since we are Cloneable
@@ -421,6 +965,54 @@ public class NonBlockingHashMap<TypeK, TypeV>
     }
   }
 
+  // --- copy_table ----------------------------------------------------------
+  // Copy the table for clone().  Any copy in progress is finished first, so
+  // there is just the one table to copy.  The new table has the same length,
+  // so every key lands in the same slot with its memoized hash; keys with
+  // dead values are kept so the probe chains through them stay intact.
+  private final Object[] copy_table() {
+    Object[] kvs;
+    while( true ) {
+      kvs = _kvs;
+      final CHM chm = chm(kvs);
+      if( chm._newkvs == null ) break;
+      chm.help_copy_impl(this,kvs,true);
+    }
+    final Object[] oldkvs = kvs;
+    final int len = len(oldkvs);
+    final Object[] newkvs = empty_kvs(len,chm(oldkvs)._seed); // Same slots, same hashes
+    final int CHUNK = 1<<14;    // Slots per parallel work unit
+    java.util.stream.IntStream chunks = java.util.stream.IntStream.range(0,(len+CHUNK-1)/CHUNK);
+    if( len > CHUNK ) chunks = chunks.parallel();
+    chunks.forEach(c -> copy_slots(oldkvs,newkvs,c*CHUNK,Math.min(len,(c+1)*CHUNK)));
+    return newkvs;
+  }
+
+  // Copy slots [lo,hi) for copy_table.  A racing resize may have started
+  // since, in which case a slot may hold a Prime, or a TOMBSTONE key where
+  // it was empty; a Prime's current value is then looked up in the map.
+  private final void copy_slots( final Object[] oldkvs, final Object[] newkvs, final int lo, final int hi ) {
+    final int[] hashes = hashes(oldkvs), newhashes = hashes(newkvs);
+    long size = 0, slots = 0;
+    for( int idx=lo; idx<hi; idx++ ) {
+      final Object K = key(oldkvs,idx);
+      if( K == null || K == TOMBSTONE ) continue;
+      Object V = val(oldkvs,idx);
+      if( V instanceof Prime ) {
+        V = get(K);
+        if( V == null ) V = TOMBSTONE;
+      }
+      newkvs[(idx<<1)+2] = K;
+      newkvs[(idx<<1)+3] = V;
+      newhashes[idx] = hashes[idx];
+      slots++;
+      if( V != null && V != TOMBSTONE ) size++;
+    }
+    final CHM newchm = chm(newkvs);
+    newchm._size .add(size);
+    newchm._slots.add(slots);
+  }
+
   /**
    * Returns a string representation of this map.  The string representation
    * consists of a list of key-value mappings in the order returned by the
@@ -457,8 +1049,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // --- keyeq ---------------------------------------------------------------
   // Check for key equality.  Try direct pointer compare first, then see if
   // the hashes are unequal (fast negative test) and finally do the full-on
-  // 'equals' v-call.
-  private static boolean keyeq( Object K, Object key, int[] hashes, int hash, int fullhash ) {
+  // 'equals' v-call, or the map's HashingStrategy if it has one.
+  private static boolean keyeq( Object K, Object key, int[] hashes, int hash, int fullhash, HashingStrategy hs ) {
     return
       K==key ||                 // Either keys match exactly OR
       // hash exists and matches?  hash can be zero during the install of a
@@ -473,7 +1065,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
        // operands (since equals is commutative), but I'm making mega-morphic
        // v-calls in a reprobing loop and nailing down the 'this' argument
        // gives both the JIT and the hardware a chance to prefetch the call target.
-       key.equals(K));          // Finally do the hard match
+       (hs == null ? key.equals(K) : hs.equals(key,K))); // Finally do the hard match
   }
 
   // --- get -----------------------------------------------------------------
@@ -493,20 +1085,43 @@ public class NonBlockingHashMap<TypeK, TypeV>
     return (TypeV)V;
   }
 
-  private static final Object get_impl( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final int fullhash ) {
+  private static final Object get_impl( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final int hash0 ) {
     final int len     = len  (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm     = chm  (kvs); // The CHM, for a volatile read below; reads slot 0 of kvs
     final int[] hashes=hashes(kvs); // The memoized hashes; reads slot 1 of kvs
+    final int fullhash = topmap.hash(key,hash0,chm._seed); // This table's hash of the key
 
     int idx = fullhash & (len-1); // First key hash
+    final boolean fp = topmap._fingerprint_probe;
 
     // Main spin/reprobe loop, looking for a Key hit
     int reprobe_cnt=0;
+    // Fingerprint probing, vectorized: skip the run of slots holding other
+    // keys' hashes in bulk.  Stop short of the reprobe limit, so the loop
+    // below still probes at least once and decides about the new table.
+    if( fp && HashProbe.VECTOR ) {
+      reprobe_cnt = HashProbe.skip(hashes,idx,fullhash,topmap.reprobe_limit(len)-1);
+      idx = (idx+reprobe_cnt)&(len-1);
+    }
     while( true ) {
+      // Fingerprint probing: a slot with a known, different, hash holds some
+      // other key.  Skip it without reading the key or value; this is exactly
+      // what keyeq would decide for it, so put's lookup logic still agrees.
+      if( fp ) {
+        final int h = hashes[idx];
+        if( h != 0 && h != fullhash ) {
+          if( ++reprobe_cnt >= topmap.reprobe_limit(len) ) { // Memoized keys are never TOMBSTONEs
+            final Object[] newkvs = chm._newkvs; // VOLATILE READ
+            return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,hash0); // Retry in the new table
+          }
+          idx = (idx+1)&(len-1);
+          continue;
+        }
+      }
       // Probe table.  Each read of 'val' probably misses in cache in a big
       // table; hopefully the read of 'key' then hits in cache.
-      final Object K = key(kvs,idx); // Get key   before volatile read, could be null
-      final Object V = val(kvs,idx); // Get value before volatile read, could be null or Tombstone or Prime
+      final Object K = UtilAccess.getAcquire(kvs,(idx<<1)+2); // Get key   before volatile read, could be null
+      final Object V = UtilAccess.getAcquire(kvs,(idx<<1)+3); // Get value before volatile read, could be null or Tombstone or Prime
       if( K == null ) return null;   // A clear miss
 
       // We need a volatile-read here to preserve happens-before semantics on
@@ -521,20 +1136,20 @@ public class NonBlockingHashMap<TypeK, TypeV>
       final Object[] newkvs = chm._newkvs; // VOLATILE READ before key compare
 
       // Key-compare
-      if( keyeq(K,key,hashes,idx,fullhash) ) {
+      if( keyeq(K,key,hashes,idx,fullhash,topmap._strategy) ) {
         // Key hit!  Check for no table-copy-in-progress
         if( !(V instanceof Prime) ) // No copy?
           return (V == TOMBSTONE) ? null : V; // Return the value
         // Key hit - but slot is (possibly partially) copied to the new table.
         // Finish the copy & retry in the new table.
-        return get_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,fullhash); // Retry in the new table
+        return get_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,hash0); // Retry in the new table
       }
       // get and put must have the same key lookup logic!  But only 'put'
       // needs to force a table-resize for a too-long key-reprobe sequence.
       // Check for too-many-reprobes on get - and flip to the new table.
-      if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes
-          key == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
-        return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,fullhash); // Retry in the new table
+      if( ++reprobe_cnt >= topmap.reprobe_limit(len) || // too many probes
+          K == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
+        return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,hash0); // Retry in the new table
 
       idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
     }
@@ -547,13 +1162,18 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // the path through copy_slot passes in an expected value of null, and
   // putIfMatch only returns a null if passed in an expected null.
   private static final Object putIfMatch( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final Object putval, final Object expVal ) {
+    return putIfMatch(topmap,kvs,key,putval,expVal,topmap.hash(key)); // throws NullPointerException if key null
+  }
+  // Version with the (unseeded) hash already computed; callers making several
+  // attempts on the same key (e.g. compute and merge) only hash the key once.
+  private static final Object putIfMatch( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final Object putval, final Object expVal, final int hash0 ) {
     assert putval != null;
     assert !(putval instanceof Prime);
     assert !(expVal instanceof Prime);
-    final int fullhash = hash  (key); // throws NullPointerException if key null
     final int len      = len   (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm      = chm   (kvs); // Reads kvs[0]
     final int[] hashes = hashes(kvs); // Reads kvs[1], read before kvs[0]
+    final int fullhash = topmap.hash(key,hash0,chm._seed); // This table's hash of the key
     int idx = fullhash & (len-1);
 
     // ---
@@ -598,20 +1218,21 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // Annoyingly this means we have to volatile-read before EACH key compare.
       newkvs = chm._newkvs;     // VOLATILE READ before key compare
 
-      if( keyeq(K,key,hashes,idx,fullhash) )
+      if( keyeq(K,key,hashes,idx,fullhash,topmap._strategy) )
         break;                  // Got it!
 
       // get and put must have the same key lookup logic!  Lest 'get' give
       // up looking too soon.
       //topmap._reprobes.add(1);
-      if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes or
-          key == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
+      if( ++reprobe_cnt >= topmap.reprobe_limit(len) || // too many probes or
+          K == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
         // We simply must have a new table to do a 'put'.  At this point a
         // 'get' will also go to the new table (if any).  We do not need
         // to claim a key slot (indeed, we cannot find a free one to claim!).
+        if( K != TOMBSTONE ) chm._flooded = true; // Ran out of reprobes: hashes collide
         newkvs = chm.resize(topmap,kvs);
         if( expVal != null ) topmap.help_copy(newkvs); // help along an existing copy
-        return putIfMatch(topmap,newkvs,key,putval,expVal);
+        return putIfMatch(topmap,newkvs,key,putval,expVal,hash0);
       }
 
       idx = (idx+1)&(len-1); // Reprobe!
@@ -631,7 +1252,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // time we get here).
     if( newkvs == null &&       // New table-copy already spotted?
         // Once per fresh key-insert check the hard way
-        ((V == null && chm.tableFull(reprobe_cnt,len)) ||
+        ((V == null && (chm.tableFull(topmap,reprobe_cnt,len) || chm.tableDirty(topmap,reprobe_cnt,len))) ||
          // Or we found a Prime, but the JMM allowed reordering such that we
          // did not spot the new table (very rare race here: the writing
          // thread did a CAS of _newkvs then a store of a Prime.  This thread
@@ -641,10 +1262,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
          // will do a CAS on _newkvs forcing the read.
          V instanceof Prime) )
       newkvs = chm.resize(topmap,kvs); // Force the new table copy to start
+    // Or, with predictive growth, the table will fill up before a copy could
+    // finish: start a growing copy now, while there is still room.
+    if( newkvs == null && V == null && chm.tableFilling(topmap,reprobe_cnt,len) )
+      newkvs = chm.resize(topmap,kvs,(long)len*topmap._policy.growthFactor(),Long.MAX_VALUE);
     // See if we are moving to a new table.
     // If so, copy our slot and retry in the new table.
     if( newkvs != null )
-      return putIfMatch(topmap,chm.copy_slot_and_check(topmap,kvs,idx,expVal),key,putval,expVal);
+      return putIfMatch(topmap,chm.copy_slot_and_check(topmap,kvs,idx,expVal),key,putval,expVal,hash0);
 
     // ---
     // We are finally prepared to update the existing table
@@ -671,7 +1296,15 @@ public class NonBlockingHashMap<TypeK, TypeV>
         if( expVal != null ) {
           // Adjust sizes - a striped counter
           if(  (V == null || V == TOMBSTONE) && putval != TOMBSTONE ) chm._size.add( 1);
-          if( !(V == null || V == TOMBSTONE) && putval == TOMBSTONE ) chm._size.add(-1);
+          if( !(V == null || V == TOMBSTONE) && putval == TOMBSTONE ) {
+            chm._size.add(-1);
+            // Removes can drain a once-huge table down to a handful of live
+            // keys.  Nothing else will ever start a resize on a table which
+            // is only being read, so check here for a mostly-dead table and
+            // start a shrinking copy.  Any later update will help it along.
+            if( chm.tableSparse(topmap,len) )
+              topmap.help_copy(chm.resize(topmap,kvs));
+          }
         }
         return (V==null && expVal!=null) ? TOMBSTONE : V;
       } 
@@ -681,7 +1314,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // new table.  Otherwise we lost the CAS to another racing put.
       // Simply retry from the start.
       if( V instanceof Prime )
-        return putIfMatch(topmap,chm.copy_slot_and_check(topmap,kvs,idx,expVal),key,putval,expVal);
+        return putIfMatch(topmap,chm.copy_slot_and_check(topmap,kvs,idx,expVal),key,putval,expVal,hash0);
     }
   }
 
@@ -697,6 +1330,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
     Object[] topkvs = _kvs;
     CHM topchm = chm(topkvs);
     if( topchm._newkvs == null ) return helper; // No copy in-progress
+    if( topchm._background ) return helper;     // Resize executor has it
     topchm.help_copy_impl(this,topkvs,false);
     return helper;
   }
@@ -745,7 +1379,9 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // throttling attempts to create a new table.  I cannot really block here
     // (lest I lose the non-blocking property) but late-arriving threads can
     // give the initial resizing thread a little time to allocate the initial
-    // new table.  The Right Long Term Fix here is to use array-lets and
+    // new table.  They park on _wait, and the winner wakes them as soon as
+    // the new table is installed; the timeout only matters if the winner
+    // stalls.  The Right Long Term Fix here is to use array-lets and
     // incrementally create the new very large array.  In C I'd make the array
     // with malloc (which would mmap under the hood) which would only eat
     // virtual-address and not real memory - and after Somebody wins then we
@@ -754,12 +1390,59 @@ public class NonBlockingHashMap<TypeK, TypeV>
     volatile long _resizers; // count of threads attempting an initial resize
     private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
       AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+    final ResizeWait _wait = new ResizeWait();
+
+    // ---
+    // Values of the old table, parked here while being copied into this one.
+    // One slot per old-table slot; each slot is written at most once, by the
+    // first copy_slot to stage a value there.  Null until then: the array is
+    // only installed once this table has won the race to be the new table,
+    // so threads losing that race allocate none.  NO_STAGING if there is
+    // none, and once the copy is done.
+    volatile Object[] _staged;
+    private static final AtomicReferenceFieldUpdater<CHM,Object[]> _stagedUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,Object[].class, "_staged");
+    // The staging array for an old table of 'oldlen' slots, installing it
+    // if need be; null if there is none.
+    final Object[] staging( final int oldlen ) {
+      Object[] st = _staged;
+      if( st == null ) {
+        _stagedUpdater.compareAndSet(this,null,new Object[oldlen]);
+        st = _staged;
+      }
+      return st == NO_STAGING ? null : st;
+    }
 
     // ---
     // Simple constructor
-    CHM( Counter size ) {
+    // When this table was made; a new table is made just before it is
+    // installed, so this times the copy into it.
+    final long _born = System.nanoTime();
+    // When this table was promoted to top-level, and its claimed slots then;
+    // 0 until it is.  Set once, by the promoting thread, for tableFilling.
+    volatile long _promoted_nanos, _promoted_slots;
+    // True if the copy out of this table was handed to the resize executor
+    volatile boolean _background;
+
+    // ---
+    // This table's hash seed, or 0 for none; see setHashSeeding.
+    final int _seed;
+    // True if an insert ran out of reprobes here, so the next table gets a
+    // fresh seed.
+    volatile boolean _flooded;
+    // Seed for the table copied out of this one: none unless seeding; a
+    // fresh one for the first seeded table, or after a flood; else the same
+    // seed, as most copies are not for collisions.
+    private final int next_seed( NonBlockingHashMap topmap ) {
+      if( !topmap._hash_seeding ) return 0;
+      return _seed == 0 || _flooded ? fresh_seed() : _seed;
+    }
+
+    CHM( Counter size, boolean staging, int seed ) {
       _size = size;
       _slots= new Counter();
+      _staged = staging ? null : NO_STAGING;
+      _seed = seed;
     }
 
     // --- tableFull ---------------------------------------------------------
@@ -771,12 +1454,80 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // current table, while a 'get' has decided the same key cannot be in this
     // table because of too many reprobes.  The invariant is:
     //   slots.estimate_sum >= max_reprobe_cnt >= reprobe_limit(len)
-    private final boolean tableFull( int reprobe_cnt, int len ) {
+    private final boolean tableFull( NonBlockingHashMap topmap, int reprobe_cnt, int len ) {
       return
         // Do the cheap check first: we allow some number of reprobes always
-        reprobe_cnt >= REPROBE_LIMIT &&
-        // More expensive check: see if the table is > 1/4 full.
-        _slots.estimate_get() >= reprobe_limit(len);
+        reprobe_cnt >= topmap._policy.maxReprobes() &&
+        // More expensive check: see if the table is past the load factor.
+        _slots.estimate_get() >= topmap.reprobe_limit(len);
+    }
+
+    // --- tableDirty --------------------------------------------------------
+    // Heuristic to decide if this table is mostly dead keys, and we should
+    // compact it: copy it into a same-size table, which drops every dead key
+    // and frees their slots.  Removed keys keep their slots claimed, so a
+    // table under key churn (short-lived keys inserted and removed) fills up
+    // with dead keys long before it fills up with live ones.  Called once per
+    // fresh key-insert, since only inserts claim slots.  The table must be
+    // big enough to be worth compacting, must be half-way to its load factor
+    // in claimed slots, and at most 1 in 4 claimed slots may hold a live key.
+    // The cheap checks come first: inserts which do not reprobe skip the
+    // counters.
+    private final boolean tableDirty( NonBlockingHashMap topmap, int reprobe_cnt, int len ) {
+      if( reprobe_cnt < 2 || len < MIN_SHRINK_LEN ) return false;
+      final long slots = _slots.estimate_get();
+      return
+        slots >= (topmap._policy.fill(len)>>1) && // Table half-way to full of keys
+        _size.estimate_get() < (slots>>2); // But <25% of those are live
+    }
+
+    // --- tableFilling ------------------------------------------------------
+    // Heuristic for predictive growth: decide if this table is filling so
+    // fast that it will be full before a copy could finish, and we should
+    // start a growing copy now.  The fill rate is the slots claimed since
+    // this table was promoted, over the time since; the copy time is the
+    // last copy's, scaled up by the growth factor (the next copy moves that
+    // many times more slots).  Called once per fresh
+    // key-insert.  Inserts which do not reprobe, maps without predictive
+    // growth, the first table (with no copy to time), tables which have not
+    // yet filled half the room they had when promoted (too few inserts to
+    // judge a rate by), and tables mostly full of dead keys (a compaction,
+    // not growth, is what they need) are all cut out before the clock is
+    // read.
+    private final boolean tableFilling( NonBlockingHashMap topmap, int reprobe_cnt, int len ) {
+      final ResizePolicy policy = topmap._policy;
+      if( reprobe_cnt < 1 || !policy.predictiveGrowth() ) return false;
+      final long t0 = _promoted_nanos;
+      final long copy = topmap._last_resize_nanos;
+      if( t0 == 0 || copy == 0 ) return false;
+      final long full = topmap.reprobe_limit(len);
+      final long slots = _slots.estimate_get();
+      if( slots >= full ) return false; // tableFull's job
+      final long claimed = slots - _promoted_slots; // Claimed since promotion
+      if( claimed <= 0 || claimed < ((full-_promoted_slots)>>1) ) return false;
+      if( _size.estimate_get() < (slots>>1) ) return false;
+      final double lead = (double)copy*policy.growthFactor();
+      // Time left until full, at the rate so far, is under the lead time?
+      return (double)(full-slots)*(System.nanoTime()-t0) < lead*claimed;
+    }
+
+    // --- tableSparse -------------------------------------------------------
+    // Heuristic to decide if this table is mostly dead, and we should start a
+    // smaller table.  Called after removes.  The table must be big enough to
+    // be worth shrinking, must have been heavily used at some point (claimed
+    // key slots at least half its fill, as any table grown into holds; a
+    // presized-but-empty table is left alone), must now hold fewer live keys
+    // than the policy's shrink factor, and must not have been resized
+    // recently (lest a high-churn table flip-flop between sizes).  The cheap
+    // checks come first; this is on the remove path.
+    private final boolean tableSparse( NonBlockingHashMap topmap, int len ) {
+      final ResizePolicy policy = topmap._policy;
+      return
+        len >= MIN_SHRINK_LEN &&
+        _newkvs == null &&      // No copy already in progress
+        _slots.estimate_get() >= (policy.fill(len)>>1) && // Table once well used
+        policy.sparse(_size.estimate_get(),len) &&   // But now few live keys
+        !policy.recent(System.currentTimeMillis(),topmap._last_resize_milli);
     }
 
     // --- resize ------------------------------------------------------------
@@ -786,6 +1537,11 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // MUST 'help_copy' lest we have a path which forever runs through
     // 'resize' only to discover a copy-in-progress which never progresses.
     private final Object[] resize( NonBlockingHashMap topmap, Object[] kvs) {
+      return resize(topmap,kvs,0,Long.MAX_VALUE);
+    }
+    // Version with a minimum and maximum new table size (in K/V pairs), for
+    // presizing and trimming.
+    private final Object[] resize( NonBlockingHashMap topmap, Object[] kvs, long minsz, long maxsz ) {
       assert chm(kvs) == this;
 
       // Check for resize already in progress, probably triggered by another thread
@@ -796,35 +1552,44 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // No copy in-progress, so start one.  First up: compute new table size.
       int oldlen = len(kvs);    // Old count of K,V pairs allowed
       int sz = size();          // Get current table count of active K,V pairs
-      int newsz = sz;           // First size estimate
+      long newsz = sz;          // First size estimate
 
       // Heuristic to determine new size.  We expect plenty of dead-slots-with-keys
-      // and we need some decent padding to avoid endless reprobing.
-      if( sz >= (oldlen>>2) ) { // If we are >25% full of keys then...
-        newsz = oldlen<<1;      // Double size
-        if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-          newsz = oldlen<<2;    // Double double size
-      }
-      // This heuristic in the next 2 lines leads to a much denser table
-      // with a higher reprobe rate
-      //if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-      //  newsz = oldlen<<1;    // Double size
+      // and we need some decent padding to avoid endless reprobing.  Live keys
+      // past the load factor grow the table (by the growth factor, or by its
+      // square past twice the load factor).
+      final ResizePolicy policy = topmap._policy;
+      newsz = policy.grown(sz,oldlen);
 
-      // Last (re)size operation was very recent?  Then double again; slows
+      // Last (re)size operation was very recent?  Then grow again; slows
       // down resize operations for tables subject to a high key churn rate.
+      // But only if the live keys are half-way to the load factor: with
+      // fewer, a same-size copy (which drops all the dead keys) leaves plenty
+      // of room before the next resize, and growing would grow the table
+      // forever under steady churn.
       long tm = System.currentTimeMillis();
       long q=0;
+      boolean recent = policy.recent(tm,topmap._last_resize_milli);
       if( newsz <= oldlen && // New table would shrink or hold steady?
-          tm <= topmap._last_resize_milli+10000 && // Recent resize (less than 1 sec ago)
+          recent &&
+          sz >= (policy.fill(oldlen)>>1) && // Live keys would soon refill a same-size table?
           (q=_slots.estimate_get()) >= (sz<<1) ) // 1/2 of keys are dead?
-        newsz = oldlen<<1;      // Double the existing size
-
-      // Do not shrink, ever
-      if( newsz < oldlen ) newsz = oldlen;
+        newsz = (long)oldlen*policy.growthFactor(); // Grow the existing size
+
+      // Shrink only if the table is mostly dead (below the shrink factor) and
+      // has not been resized recently.  Shrink to a table at the load factor,
+      // same as the target after growing.  Otherwise hold steady: a same-size
+      // copy still drops all the dead keys.
+      if( newsz < oldlen ) {
+        if( !recent && policy.sparse(sz,oldlen) ) newsz = policy.padded(sz);
+        else newsz = oldlen;
+      }
+      if( newsz < minsz ) newsz = minsz; // Presizing for a bulk load
+      if( newsz > maxsz ) newsz = maxsz; // Trimming
 
       // Convert to power-of-2
       int log2;
-      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+      for( log2=MIN_SIZE_LOG; (1L<<log2) < newsz && log2 < MAX_SIZE_LOG; log2++ ) ; // Compute log2 of size
 
       // Now limit the number of threads actually allocating memory to a
       // handful - lest we have 750 threads all trying to allocate a giant
@@ -836,16 +1601,15 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // guess at 32-bit pointers; 64-bit pointers screws up the size calc by
       // 2x but does not screw up the heuristic very much.
       int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
+      long waited = 0;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
         newkvs = _newkvs;        // Between dorking around, another thread did it
         if( newkvs != null )     // See if resize is already in progress
           return newkvs;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
+        // Wait, with a timeout, for the 2 guys already trying to make the
+        // table; whoever installs it wakes us right away.
+        waited = _wait.await(8L*megs*1000000L, () -> _newkvs != null);
+        if( waited > 0 ) topmap.record_resize_wait(waited);
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -855,7 +1619,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
       // Double size for K,V pairs, add 1 for CHM
       newkvs = new Object[((1<<log2)<<1)+2]; // This can get expensive for big arrays
-      newkvs[0] = new CHM(_size); // CHM in slot 0
+      newkvs[0] = new CHM(_size,(1<<log2) >= oldlen,next_seed(topmap)); // CHM in slot 0; stage unless shrinking
       newkvs[1] = new int[1<<log2]; // hashes in slot 1
 
       // Another check after the slow allocation
@@ -865,7 +1629,9 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // The new table must be CAS'd in so only 1 winner amongst duplicate
       // racing resizing threads.  Extra CHM's will be GC'd.
       if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
-        //notifyAll();            // Wake up any sleepers
+        _wait.release();        // Wake up any waiters
+        JfrEvents.resize(topmap,oldlen,1<<log2,waited);
+        topmap.copy_in_background(this);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
         //if( System.out != null ) System.out.print("["+log2);
@@ -923,8 +1689,10 @@ public class NonBlockingHashMap<TypeK, TypeV>
           while( copyidx < (oldlen<<1) && // 'panic' check
                  !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
             copyidx = (int)_copyIdx;      // Re-read
-          if( !(copyidx < (oldlen<<1)) )  // Panic!
+          if( !(copyidx < (oldlen<<1)) ) { // Panic!
             panic_start = copyidx;        // Record where we started to panic-copy
+            JfrEvents.panic(topmap,oldlen);
+          }
         }
 
         // We now know what to copy.  Try to copy.
@@ -934,6 +1702,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
             workdone++;         // Yes!
         if( workdone > 0 )      // Report work-done occasionally
           copy_check_and_promote( topmap, oldkvs, workdone );// See if we can promote
+        JfrEvents.copy_chunk(topmap,oldlen,MIN_COPY_WORK,workdone,panic_start != -1);
         //for( int i=0; i<MIN_COPY_WORK; i++ )
         //  if( copy_slot(topmap,(copyidx+i)&(oldlen-1),oldkvs,newkvs) ) // Made an oldtable slot go dead?
         //    copy_check_and_promote( topmap, oldkvs, 1 );// See if we can promote
@@ -989,6 +1758,9 @@ public class NonBlockingHashMap<TypeK, TypeV>
         //System.out.print(" "+(copyDone+workdone)*100/oldlen+"%"+"_"+(_copyIdx*100/oldlen)+"%");
       }
 
+      // Every slot copied: drop the staging array, lest it keep old values alive
+      if( copyDone+workdone == oldlen ) chm(_newkvs)._staged = NO_STAGING;
+
       // Check for copy being ALL done, and promote.  Note that we might have
       // nested in-progress copies and manage to finish a nested copy before
       // finishing the top-level copy.  We only promote top-level copies.
@@ -997,6 +1769,12 @@ public class NonBlockingHashMap<TypeK, TypeV>
           // Attempt to promote
           topmap.CAS_kvs(oldkvs,_newkvs) ) {
         topmap._last_resize_milli = System.currentTimeMillis(); // Record resize time for next check
+        topmap._last_resize_nanos = System.nanoTime() - chm(_newkvs)._born;
+        topmap._resizes++;
+        final CHM newchm = chm(_newkvs);
+        newchm._promoted_slots = newchm._slots.estimate_get();
+        newchm._promoted_nanos = System.nanoTime();
+        JfrEvents.promote(topmap,oldlen,len(_newkvs),topmap._last_resize_nanos);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table to "+len(_newkvs));
         //if( System.out != null ) System.out.print("]");
@@ -1026,10 +1804,22 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
       // ---
       // Prevent new values from appearing in the old table.
-      // Box what we see in the old table, to prevent further updates.
+      // Box what we see in the old table, to prevent further updates.  A live
+      // value is first staged in the new table's staging array and frozen
+      // with the shared STAGED box; this does not allocate.  The staged value
+      // never changes, so if a racing put replaced the value after it was
+      // staged, fall back to a real box.
+      Object[] staged = null;
       Object oldval = val(oldkvs,idx); // Read OLD table
       while( !(oldval instanceof Prime) ) {
-        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+        final Prime box;
+        if( oldval == null || oldval == TOMBSTONE ) box = TOMBPRIME;
+        else {
+          if( staged == null ) staged = chm(newkvs).staging(len(oldkvs));
+          if( staged != null && UtilAccess.getVolatile(staged,idx) == null )
+            UtilAccess.CAS(staged,idx,null,oldval);
+          box = staged != null && UtilAccess.getVolatile(staged,idx) == oldval ? STAGED : new Prime(oldval);
+        }
         if( CAS_val(oldkvs,idx,oldval,box) ) { // CAS down a box'd version of oldval
           // If we made the Value slot hold a TOMBPRIME, then we both
           // prevented further updates here but also the (absent)
@@ -1056,6 +1846,11 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // new table - somebody else should have recorded the null-not_null
       // transition in this copy.
       Object old_unboxed = ((Prime)oldval)._V;
+      if( oldval == STAGED ) {  // Staged before it was frozen
+        staged = chm(newkvs)._staged; // Installed before any STAGED box
+        if( staged == NO_STAGING ) return false; // Copy all done and staging dropped
+        while( (old_unboxed = UtilAccess.getVolatile(staged,idx)) == null ) ; // Spin until visible
+      }
       assert old_unboxed != TOMBSTONE;
       boolean copied_into_new = (putIfMatch(topmap, newkvs, key, old_unboxed, null) == null);
 
@@ -1073,31 +1868,114 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
 
   // --- Snapshot ------------------------------------------------------------
-  // The main class for iterating over the NBHM.  It "snapshots" a clean
-  // view of the K/V array.
+  // The main class for iterating over the NBHM.  It "snapshots" the chain
+  // of K/V arrays: the top-level table and, if a copy is in progress, the
+  // tables it is being copied into.  Iteration does not wait for (or help
+  // finish) a copy; beyond the bounded help any 'get' gives, it leaves the
+  // copy to others.  The slots of all the tables form one run of positions.
+  //
+  // Every key lives in at least one table of the chain, and a key can live
+  // in several: a put may claim a slot for its key in an old table before
+  // moving on to the new one.  A key is visited only in the first table of
+  // the chain holding it.  To keep that choice stable against racing puts,
+  // iteration slams empty key slots of tables being copied, exactly as
+  // copy_slot does: both the empty slots it passes, and the empty slot
+  // ending a failed search of an earlier table.  Neither can then take a
+  // key, so a key found only in a later table stays there.
+  private static final class Snapshot {
+    final NonBlockingHashMap _map;
+    final Object[][] _chain;    // Tables, oldest first
+    final long[] _base;         // Position of the first slot of each table
+    final long _len;            // Total slots
+    Snapshot( final NonBlockingHashMap map ) {
+      _map = map;
+      // The "linearization point" for the iteration is the read of the last
+      // table's null _newkvs.  Every key in the chain will be visited, but
+      // keys added later might be skipped or even be added to a following
+      // table (also not iterated over).
+      Object[][] chain = new Object[][]{map._kvs};
+      Object[] newkvs;
+      while( (newkvs = chm(chain[chain.length-1])._newkvs) != null ) {
+        chain = Arrays.copyOf(chain,chain.length+1);
+        chain[chain.length-1] = newkvs;
+      }
+      _chain = chain;
+      _base = new long[chain.length];
+      long len = 0;
+      for( int t=0; t<chain.length; t++ ) { _base[t] = len; len += len(chain[t]); }
+      _len = len;
+    }
+    // Table holding position pos
+    private int table( final long pos ) {
+      int t = _chain.length-1;
+      while( pos < _base[t] ) t--;
+      return t;
+    }
+    // The key at position pos, or null if the slot is empty or the key is
+    // visited in an earlier table.
+    Object key( final long pos ) {
+      final int t = table(pos);
+      final Object[] kvs = _chain[t];
+      final int idx = (int)(pos-_base[t]);
+      Object K = NonBlockingHashMap.key(kvs,idx);
+      if( t < _chain.length-1 ) // Being copied: slam the empty slot
+        while( K == null && !CAS_key(kvs,idx,null,TOMBSTONE) )
+          K = NonBlockingHashMap.key(kvs,idx);
+      if( K == null || K == TOMBSTONE ) return null;
+      if( t > 0 ) {             // Skip keys held by an earlier table
+        final int hash0 = _map.hash(K);
+        for( int j=0; j<t; j++ )
+          if( _map.holds(_chain[j],K,hash0) )
+            return null;
+      }
+      return K;
+    }
+    // The live value for the key K (from 'key') at position pos, or null.
+    // Read straight from the table unless a copy has boxed the value, in
+    // which case do an official 'get'.
+    Object val( final long pos, final Object K ) {
+      if( K == null ) return null;
+      final int t = table(pos);
+      final Object[] kvs = _chain[t];
+      final Object V = NonBlockingHashMap.val(kvs,(int)(pos-_base[t]));
+      // Volatile read before handing out the key & value; see get_impl
+      final Object[] newkvs = chm(kvs)._newkvs;
+      if( V instanceof Prime ) return _map.get(K);
+      return V == TOMBSTONE ? null : V;
+    }
+  }
+
+  // True if the key is in table kvs, which is being copied.  Same probe as
+  // get_impl, but not following the copy; a miss slams the empty key slot
+  // ending the search, so that the key never appears in this table later.
+  private final boolean holds( final Object[] kvs, final Object key, final int hash0 ) {
+    final int len = len(kvs);
+    final int[] hashes = hashes(kvs);
+    final int fullhash = hash(key,hash0,chm(kvs)._seed);
+    int idx = fullhash & (len-1);
+    int reprobe_cnt=0;
+    while( true ) {
+      final Object K = key(kvs,idx);
+      if( K == null ) {
+        if( CAS_key(kvs,idx,null,TOMBSTONE) ) return false;
+        continue;               // Lost the race to a put; look again
+      }
+      if( K == TOMBSTONE ) return false; // Slammed: no more keys
+      final Object[] newkvs = chm(kvs)._newkvs; // VOLATILE READ before key compare
+      if( keyeq(K,key,hashes,idx,fullhash,_strategy) ) return true;
+      if( ++reprobe_cnt >= reprobe_limit(len) ) return false; // All slots past here are puts' overflow
+      idx = (idx+1)&(len-1);
+    }
+  }
+
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
-    final Object[] _sskvs;
+    final Snapshot _ss;
     public SnapshotV() {
-      while( true ) {           // Verify no table-copy-in-progress
-        Object[] topkvs = _kvs;
-        CHM topchm = chm(topkvs);
-        if( topchm._newkvs == null ) { // No table-copy-in-progress
-          // The "linearization point" for the iteration.  Every key in this
-          // table will be visited, but keys added later might be skipped or
-          // even be added to a following table (also not iterated over).
-          _sskvs = topkvs;
-          break;
-        }
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(NonBlockingHashMap.this,topkvs,true);
-      }
+      _ss = new Snapshot(NonBlockingHashMap.this);
       // Warm-up the iterator
       next();
     }
-    int length() { return len(_sskvs); }
-    Object key(int idx) { return NonBlockingHashMap.key(_sskvs,idx); }
-    private int _idx;              // Varies from 0-keys.length
+    private long _idx;             // Varies from 0-_ss._len
     private Object _nextK, _prevK; // Last 2 keys found
     private TypeV  _nextV, _prevV; // Last 2 values found
     public boolean hasNext() { return _nextV != null; }
@@ -1113,18 +1991,17 @@ public class NonBlockingHashMap<TypeK, TypeV>
       _nextV = null;            // We have no more next-key
       // Attempt to set <_nextK,_nextV> to the next K,V pair.
       // _nextV is the trigger: stop searching when it is != null
-      while( _idx<length() ) {  // Scan array
-        _nextK = key(_idx++); // Get a key that definitely is in the set (for the moment!)
-        if( _nextK != null && // Found something?
-            _nextK != TOMBSTONE &&
-            (_nextV=get(_nextK)) != null )
+      while( _idx<_ss._len ) {  // Scan array
+        final long pos = _idx++;
+        _nextK = _ss.key(pos);  // Get a key that definitely is in the set (for the moment!)
+        if( (_nextV=(TypeV)_ss.val(pos,_nextK)) != null )
           break;                // Got it!  _nextK is a valid Key
       }                         // Else keep scanning
       return _prevV;            // Return current value.
     }
     public void remove() {
       if( _prevV == null ) throw new IllegalStateException();
-      putIfMatch( NonBlockingHashMap.this, _sskvs, _prevK, TOMBSTONE, _prevV );
+      putIfMatch( NonBlockingHashMap.this, _ss._chain[0], _prevK, TOMBSTONE, _prevV );
       _prevV = null;
     }
 
@@ -1158,6 +2035,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       @Override public int     size    (          ) { return NonBlockingHashMap.this.size         ( ); }
       @Override public boolean contains( Object v ) { return NonBlockingHashMap.this.containsValue(v); }
       @Override public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      @Override public Spliterator<TypeV> spliterator() { return new SnapshotSV(); }
     };
   }
 
@@ -1198,6 +2076,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       @Override public boolean contains( Object k ) { return NonBlockingHashMap.this.containsKey(k); }
       @Override public boolean remove  ( Object k ) { return NonBlockingHashMap.this.remove  (k) != null; }
       @Override public Iterator<TypeK> iterator()   { return new SnapshotK(); }
+      @Override public Spliterator<TypeK> spliterator() { return new SnapshotSK(); }
     };
   }
 
@@ -1259,9 +2138,217 @@ public class NonBlockingHashMap<TypeK, TypeV>
         return v.equals(e.getValue());
       }
       @Override public Iterator<Map.Entry<TypeK,TypeV>> iterator() { return new SnapshotE(); }
+      @Override public Spliterator<Map.Entry<TypeK,TypeV>> spliterator() { return new SnapshotSE(); }
     };
   }
 
+  // --- Spliterator --------------------------------------------------------
+  // Splittable version of the snapshot iteration, for parallel streams.  The
+  // snapshot is taken the same way as for the iterators, then the range of
+  // snapshotted positions is split in halves; each half picks out its keys
+  // and values exactly as SnapshotV does.  Size estimates start from the map
+  // size and are halved on each split.
+  private abstract class SnapshotS<T> implements Spliterator<T> {
+    final Snapshot _ss;
+    private long _idx, _end;    // Position range still to visit
+    private long _est;          // Estimated count of live keys in the range
+    SnapshotS( ) { _ss = new Snapshot(NonBlockingHashMap.this); _end = _ss._len; _est = estimatedSize(); }
+    SnapshotS( SnapshotS<T> ss, long idx, long end ) { _ss = ss._ss; _idx = idx; _end = end; _est = ss._est; }
+    abstract T make( Object K, Object V );
+    abstract SnapshotS<T> split( long idx, long end );
+    public boolean tryAdvance( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      while( _idx < _end ) {
+        final long pos = _idx++;
+        final Object K = _ss.key(pos), V = _ss.val(pos,K);
+        if( V != null ) {
+          action.accept(make(K,V));
+          return true;
+        }
+      }
+      return false;
+    }
+    public void forEachRemaining( Consumer<? super T> action ) {
+      while( tryAdvance(action) ) ;
+    }
+    public Spliterator<T> trySplit() {
+      final long lo = _idx, mid = (lo+_end)>>>1;
+      if( mid <= lo ) return null; // Too small to split
+      _est >>>= 1;
+      _idx = mid;               // This half keeps the upper slots
+      return split(lo,mid);
+    }
+    public long estimateSize() { return _est; }
+    public int characteristics() { return CONCURRENT | DISTINCT | NONNULL; }
+  }
+  private class SnapshotSK extends SnapshotS<TypeK> {
+    SnapshotSK() { }
+    SnapshotSK( SnapshotS<TypeK> ss, long idx, long end ) { super(ss,idx,end); }
+    TypeK make( Object K, Object V ) { return (TypeK)K; }
+    SnapshotS<TypeK> split( long idx, long end ) { return new SnapshotSK(this,idx,end); }
+  }
+  private class SnapshotSV extends SnapshotS<TypeV> {
+    SnapshotSV() { }
+    SnapshotSV( SnapshotS<TypeV> ss, long idx, long end ) { super(ss,idx,end); }
+    TypeV make( Object K, Object V ) { return (TypeV)V; }
+    SnapshotS<TypeV> split( long idx, long end ) { return new SnapshotSV(this,idx,end); }
+  }
+  private class SnapshotSE extends SnapshotS<Map.Entry<TypeK,TypeV>> {
+    SnapshotSE() { }
+    SnapshotSE( SnapshotS<Map.Entry<TypeK,TypeV>> ss, long idx, long end ) { super(ss,idx,end); }
+    Map.Entry<TypeK,TypeV> make( Object K, Object V ) { return new NBHMEntry((TypeK)K,(TypeV)V); }
+    SnapshotS<Map.Entry<TypeK,TypeV>> split( long idx, long end ) { return new SnapshotSE(this,idx,end); }
+  }
+
+  // --- Bulk operations -----------------------------------------------------
+  // ConcurrentHashMap-style bulk operations.  The tables are snapshotted as
+  // for iteration, then disjoint position ranges of the snapshot are handed
+  // out to ForkJoin tasks.  Values are read directly out of the snapshot
+  // tables; only slots which a copy has boxed fall back to a 'get'.
+  // Like the iterators, the operations see each key present at the snapshot
+  // and may or may not see later updates.
+  //
+  // The parallelismThreshold is the (estimated) number of elements needed
+  // for an operation to run in parallel: Long.MAX_VALUE forces a single
+  // sequential pass and 1 allows the most parallelism.
+
+  /** Performs the given action for each (key, value).
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param action the action */
+  public void forEach( long parallelismThreshold, final BiConsumer<? super TypeK,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    bulk(parallelismThreshold, new BulkOp<Object>() {
+        public Object leaf( Snapshot ss, long lo, long hi ) {
+          for( long i=lo; i<hi; i++ ) {
+            final Object K = ss.key(i), V = ss.val(i,K);
+            if( V != null ) action.accept((TypeK)K,(TypeV)V);
+          }
+          return null;
+        }
+        public Object combine( Object a, Object b ) { return null; }
+      });
+  }
+
+  /** Returns a non-null result from applying the given search function on
+   *  each (key, value), or null if none.  Upon success, further element
+   *  processing is suppressed and the results of any other parallel
+   *  invocations of the search function are ignored.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param searchFunction a function returning a non-null result on success, else null
+   *  @return a non-null result from applying the given search function on
+   *  each (key, value), or null if none */
+  public <U> U search( long parallelismThreshold, final BiFunction<? super TypeK,? super TypeV,? extends U> searchFunction ) {
+    if( searchFunction == null ) throw new NullPointerException();
+    final AtomicReference<U> result = new AtomicReference<U>();
+    return bulk(parallelismThreshold, new BulkOp<U>() {
+        public U leaf( Snapshot ss, long lo, long hi ) {
+          for( long i=lo; i<hi && result.get() == null; i++ ) {
+            final Object K = ss.key(i), V = ss.val(i,K);
+            final U u;
+            if( V != null && (u=searchFunction.apply((TypeK)K,(TypeV)V)) != null ) {
+              result.compareAndSet(null,u); // First one found wins
+              break;
+            }
+          }
+          return result.get();
+        }
+        public U combine( U a, U b ) { return result.get(); }
+      });
+  }
+
+  /** Returns the result of accumulating all values using the given reducer
+   *  to combine values, or null if none.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating all values */
+  public TypeV reduceValues( long parallelismThreshold, final BiFunction<? super TypeV,? super TypeV,? extends TypeV> reducer ) {
+    if( reducer == null ) throw new NullPointerException();
+    return bulk(parallelismThreshold, new BulkOp<TypeV>() {
+        public TypeV leaf( Snapshot ss, long lo, long hi ) {
+          TypeV r = null;
+          for( long i=lo; i<hi; i++ ) {
+            final Object V = ss.val(i,ss.key(i));
+            if( V != null ) r = (r == null) ? (TypeV)V : reducer.apply(r,(TypeV)V);
+          }
+          return r;
+        }
+        public TypeV combine( TypeV a, TypeV b ) { return a == null ? b : (b == null ? a : reducer.apply(a,b)); }
+      });
+  }
+
+  /** Returns the result of accumulating the given transformation of all
+   *  keys using the given reducer to combine values, and the given basis as
+   *  an identity value.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param transformer a function returning the transformation for an element
+   *  @param basis the identity (initial default value) for the reduction
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating the given transformation of all keys */
+  public long reduceKeysToLong( long parallelismThreshold, final ToLongFunction<? super TypeK> transformer, final long basis, final LongBinaryOperator reducer ) {
+    if( transformer == null || reducer == null ) throw new NullPointerException();
+    return bulk(parallelismThreshold, new BulkOp<Long>() {
+        public Long leaf( Snapshot ss, long lo, long hi ) {
+          long r = basis;
+          for( long i=lo; i<hi; i++ ) {
+            final Object K = ss.key(i);
+            if( ss.val(i,K) != null ) r = reducer.applyAsLong(r,transformer.applyAsLong((TypeK)K));
+          }
+          return r;             // Boxed once per leaf task, not per key
+        }
+        public Long combine( Long a, Long b ) { return reducer.applyAsLong(a,b); }
+      });
+  }
+
+  // A bulk operation: the work on a range of snapshot positions, and the
+  // combining of results from two ranges.
+  private interface BulkOp<R> {
+    R leaf( Snapshot ss, long lo, long hi );
+    R combine( R a, R b );
+  }
+
+  // Split the position range in halves until down to the batch size, then
+  // run the leaf operation.
+  private static final class BulkTask<R> extends RecursiveTask<R> {
+    final BulkOp<R> _op;
+    final Snapshot _ss;
+    final long _lo, _hi, _batch;
+    BulkTask( BulkOp<R> op, Snapshot ss, long lo, long hi, long batch ) {
+      _op = op; _ss = ss; _lo = lo; _hi = hi; _batch = batch;
+    }
+    protected R compute() {
+      if( _hi-_lo <= _batch ) return _op.leaf(_ss,_lo,_hi);
+      final long mid = (_lo+_hi)>>>1;
+      final BulkTask<R> left = new BulkTask<R>(_op,_ss,_lo,mid,_batch);
+      left.fork();
+      final R right = new BulkTask<R>(_op,_ss,mid,_hi,_batch).compute();
+      return _op.combine(left.join(),right);
+    }
+  }
+
+  private final <R> R bulk( long parallelismThreshold, BulkOp<R> op ) {
+    final Snapshot ss = new Snapshot(this);
+    final long len = ss._len;
+    final long batch = bulk_batch(parallelismThreshold,estimatedSize(),len);
+    return batch >= len
+      ? op.leaf(ss,0,len)       // Small map; just do it in this thread
+      : ForkJoinPool.commonPool().invoke(new BulkTask<R>(op,ss,0,len,batch));
+  }
+
+  // Slots per leaf task.  All of them (run sequentially) if the map holds
+  // fewer than parallelismThreshold elements.  Otherwise split enough to keep
+  // the common pool busy, but keep roughly parallelismThreshold elements per
+  // leaf.
+  static final long bulk_batch( long parallelismThreshold, long size, long len ) {
+    final int par = ForkJoinPool.getCommonPoolParallelism();
+    if( size < parallelismThreshold || par <= 1 ) return len;
+    final long per_elem = parallelismThreshold <= 1 ? 1 : parallelismThreshold*len/size;
+    return Math.max(Math.max(len/(par<<2),per_elem),1);
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHM to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
@@ -9,8 +9,11 @@ import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
-import sun.misc.Unsafe;
-import java.lang.reflect.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
 
 /**
  * A lock-free alternate implementation of {@link java.util.ConcurrentHashMap}
@@ -80,38 +83,11 @@ public class NonBlockingHashMapLong<TypeV>
 
   private static final long serialVersionUID = 1234123412341234124L;
 
-  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
-
-  // --- Bits to allow Unsafe access to arrays
-  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
-  private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
-  private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
-  private static long rawIndex(final Object[] ary, final int idx) {
-    assert idx >= 0 && idx < ary.length;
-    return _Obase + idx * _Oscale;
-  }
-  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
-  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
-  private static long rawIndex(final long[] ary, final int idx) {
-    assert idx >= 0 && idx < ary.length;
-    return _Lbase + idx * _Lscale;
-  }
-
-  // --- Bits to allow Unsafe CAS'ing of the CHM field
-  private static final long _chm_offset;
-  private static final long _val_1_offset;
-  static {                      // <clinit>
-    Field f = null;
-    try { f = NonBlockingHashMapLong.class.getDeclaredField("_chm"); }
-    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); } 
-    _chm_offset = _unsafe.objectFieldOffset(f);
-
-    try { f = NonBlockingHashMapLong.class.getDeclaredField("_val_1"); }
-    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); } 
-    _val_1_offset = _unsafe.objectFieldOffset(f);
-  }
-  private final boolean CAS( final long offset, final Object old, final Object nnn ) {
-    return _unsafe.compareAndSwapObject(this, offset, old, nnn );
+  // --- Setup to CAS the _chm and _val_1 fields; see UtilAccess
+  private static final UtilAccess.RefField _chm_field   = new UtilAccess.RefField(NonBlockingHashMapLong.class,"_chm");
+  private static final UtilAccess.RefField _val_1_field = new UtilAccess.RefField(NonBlockingHashMapLong.class,"_val_1");
+  private final boolean CAS( final UtilAccess.RefField field, final Object old, final Object nnn ) {
+    return field.CAS(this, old, nnn );
   }
 
   // --- Adding a 'prime' bit onto Values via wrapping with a junk wrapper class
@@ -130,14 +106,32 @@ public class NonBlockingHashMapLong<TypeV>
   // Time since last resize
   private transient long _last_resize_milli;
 
-  // Optimize for space: use a 1/2-sized table and allow more re-probes
-  private final boolean _opt_for_space;
+  // The "how big?" heuristics.  Not final, so that readObject can default it
+  // for streams written before it existed.
+  private ResizePolicy _policy;
+
+  // Large tables are split into lazily allocated chunks
+  private final boolean _segmented;
 
   // --- Minimum table size ----------------
   // Pick size 16 K/V pairs, which turns into (16*2)*4+12 = 140 bytes on a
   // standard 32-bit HotSpot, and (16*2)*8+12 = 268 bytes on 64-bit Azul.
   private static final int MIN_SIZE_LOG=4;             // 
   private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+  // --- Maximum table size ----------------
+  // Largest power-of-2 Java array length.
+  private static final int MAX_SIZE_LOG=30;
+
+  // --- Segmented tables ------------------
+  // Segmented tables are a spine of fixed-size chunks instead of 2 giant
+  // arrays.  A chunk of 32K K/V pairs is 256K of keys, below the humongous
+  // object size of most G1 region sizes.  Chunks are allocated (and so
+  // zeroed) lazily by the first thread to put into them, which during a
+  // resize is whichever helper thread copies into them.  The slot index is a
+  // long, so these tables can grow past 2^31 slots.
+  private static final int CHUNK_LOG=15;
+  private static final int CHUNK=(1<<CHUNK_LOG);
+  private static final int MAX_SEG_SIZE_LOG=CHUNK_LOG+30;
 
   // --- Sentinels -------------------------
   // No-Match-Old - putIfMatch does updates only if it matches the old value,
@@ -154,6 +148,13 @@ public class NonBlockingHashMapLong<TypeV>
   // updates can happen to the old table (and since the K/V pair was deleted
   // nothing was copied to the new table).
   private static final Prime  TOMBPRIME = new Prime(TOMBSTONE);
+  // Prime'd version of a value parked in the new table's staging array.  A
+  // table copy freezes a live value by CASing it to STAGED rather than to a
+  // freshly allocated box; the value itself is found in the staging array.
+  private static final Prime  STAGED = new Prime(null);
+  // A table's staging array when it has none: a first table, a shrinking
+  // copy, or a copy already done.
+  private static final Object[] NO_STAGING = new Object[0];
 
   // I exclude 1 long from the 2^64 possibilities, and test for it before
   // entering the main array.  The NO_KEY value must be zero, the initial
@@ -161,17 +162,18 @@ public class NonBlockingHashMapLong<TypeV>
   private static final long NO_KEY = 0L;
 
   // --- dump ----------------------------------------------------------------
-  /** Verbose printout of table internals, useful for debugging.  */
+  /** Verbose printout of table internals, useful for debugging.  See
+   *  {@link #stats} for a summary of the table's health.  */
   public final void print() { 
     System.out.println("=========");
     print_impl(-99,NO_KEY,_val_1);
     _chm.print();
     System.out.println("=========");
   }
-  private static final void print_impl(final int i, final long K, final Object V) { 
+  private static final void print_impl(final long i, final long K, final Object V) { 
     String p = (V instanceof Prime) ? "prime_" : "";
     Object V2 = Prime.unbox(V);
-    String VS = (V2 == TOMBSTONE) ? "tombstone" : V2.toString();
+    String VS = (V2 == TOMBSTONE) ? "tombstone" : (V2 == null ? "staged" : V2.toString());
     System.out.println("["+i+"]=("+K+","+p+VS+")");
   }
     
@@ -181,11 +183,51 @@ public class NonBlockingHashMapLong<TypeV>
     _chm.print();
     System.out.println("=========");
   }
-  private static final void print2_impl(final int i, final long K, final Object V) { 
+  private static final void print2_impl(final long i, final long K, final Object V) { 
     if( V != null && Prime.unbox(V) != TOMBSTONE )
       print_impl(i,K,V);
   }
 
+  // --- stats ---------------------------------------------------------------
+  /** A snapshot of the table's health: live, tombstoned and empty slot
+   *  counts, a probe-length histogram, the depth of in-progress resizes, and
+   *  the memory held by the table arrays.  Unlike {@link #print} nothing is
+   *  printed, and unlike {@link #reprobes} nothing is reset.  Every slot of
+   *  the table is visited, so a snapshot costs about as much as iterating
+   *  over the map.  Key 0 is kept outside the table, and is not counted.
+   *  @return a new {@link TableStats} */
+  public TableStats stats() {
+    final CHM chm = _chm;
+    final long len = chm._len;
+    final TableStats.Tally t = new TableStats.Tally();
+    for( long i=0; i<len; i++ ) {
+      final long K = chm.key(i);
+      final Object V = chm.val(i);
+      if( K == NO_KEY && V == null ) continue; // Empty
+      if( V == null || V == TOMBSTONE || V == TOMBPRIME ) {
+        t.tombstone();
+        continue;
+      }
+      t.live((i-chm.home(K))&(len-1));
+    }
+    int depth = 0;
+    long bytes = 0;
+    for( CHM x = chm; x != null; x = x._newchm ) {
+      depth++;
+      if( x._keys != null ) {
+        bytes += TableStats.array_bytes(x._len,8) + TableStats.array_bytes(x._len,TableStats.REF_BYTES);
+      } else {
+        bytes += TableStats.array_bytes(x._spine.length,TableStats.REF_BYTES);
+        for( Object c : x._spine )
+          if( c != null && c != CHM.SEALED )
+            bytes += 16 + TableStats.array_bytes(CHUNK,8) + TableStats.array_bytes(CHUNK,TableStats.REF_BYTES);
+      }
+      final Object[] staged = x._staged;
+      if( staged != null && staged != NO_STAGING ) bytes += TableStats.array_bytes(staged.length,TableStats.REF_BYTES);
+    }
+    return new TableStats(t,len,depth,bytes);
+  }
+
   // Count of reprobes
   private transient Counter _reprobes = new Counter();
   /** Get and clear the current count of reprobes.  Reprobes happen on key
@@ -195,15 +237,150 @@ public class NonBlockingHashMapLong<TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Count of, and total time spent by, threads parked in a resize waiting for
+  // another thread to allocate the new table.
+  private transient volatile long _resize_waits, _resize_wait_nanos;
+  private static final AtomicLongFieldUpdater<NonBlockingHashMapLong> _resizeWaitsUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingHashMapLong.class, "_resize_waits");
+  private static final AtomicLongFieldUpdater<NonBlockingHashMapLong> _resizeWaitNanosUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingHashMapLong.class, "_resize_wait_nanos");
+  private final void record_resize_wait( long nanos ) {
+    _resizeWaitsUpdater.addAndGet(this,1);
+    _resizeWaitNanosUpdater.addAndGet(this,nanos);
+  }
+  /** Count of times a thread waited for another thread to allocate a new,
+   *  larger table.  Only large tables (a megabyte or more) are waited for.
+   *  @return the count of resize waits since the map was created */
+  public long resizeWaits() { return _resize_waits; }
+  /** Total time threads spent waiting for another thread to allocate a new,
+   *  larger table.
+   *  @return nanoseconds of resize waits since the map was created */
+  public long resizeWaitNanos() { return _resize_wait_nanos; }
+
+  // Count of resizes, and how long the last one took from installing the new
+  // table to promoting it.  Only the thread promoting a table writes these.
+  private transient volatile long _resizes, _last_resize_nanos;
+
+  // --- Hash seeding --------------------------------------------------------
+  // Give new tables random hash seeds
+  private volatile boolean _hash_seeding;
+  /** Turn randomized hashing on or off.  Normally a key's home slot is the
+   *  low bits of the key itself, so keys which differ only in their high
+   *  bits (say, multiples of a large power of 2) all land in one spot, and
+   *  every insert then runs to the reprobe limit and forces a resize of a
+   *  mostly empty table.  With seeding on, each table scrambles the keys
+   *  with a random seed of its own, and a table an insert runs out of
+   *  reprobes in is copied into a table with a fresh seed.  Sequential keys
+   *  then no longer sit in sequential slots, and iteration order is no
+   *  longer repeatable from run to run.  Turning seeding on copies the
+   *  current table into a seeded one before returning; turning it off takes
+   *  effect at the next resize.  The setting is serialized with the map.
+   *  See {@link NonBlockingHashMap#setHashSeeding}.
+   *  @param on true to seed new tables */
+  public void setHashSeeding( final boolean on ) {
+    _hash_seeding = on;
+    CHM topchm;
+    while( _hash_seeding && (topchm = _chm)._seed == 0 ) {
+      topchm.resize(topchm._len,topchm._len); // Start a same-size copy, or find one in-progress
+      topchm.help_copy_impl(true);            // And finish it
+    }
+  }
+  /** True if new tables get random hash seeds; see {@link #setHashSeeding}.
+   *  @return true if hash seeding is on */
+  public boolean getHashSeeding() { return _hash_seeding; }
+
+  // A seed for a new table not copied from another: random when seeding,
+  // else 0 (for no seed)
+  private final long new_seed() { return _hash_seeding ? fresh_seed() : 0; }
+  private static long fresh_seed() {
+    long seed;
+    while( (seed = ThreadLocalRandom.current().nextLong()) == 0 ) ;
+    return seed;
+  }
+
+  // --- Resize executor -----------------------------------------------------
+  // Runs table copies in the background, if set
+  private transient volatile Executor _resize_executor;
+  /** Set an executor to run table copies on.  With an executor, each resize
+   *  hands its copy to a task on the executor, and the map's own callers stop
+   *  helping it along: they only copy the odd slot they trip over mid-copy.
+   *  See {@link NonBlockingHashMap#setResizeExecutor}.
+   *  @param ex the executor, or null to have callers do all the copying */
+  public void setResizeExecutor( final Executor ex ) { _resize_executor = ex; }
+  /** The executor table copies run on, or null; see {@link #setResizeExecutor}.
+   *  @return the resize executor, or null */
+  public Executor getResizeExecutor() { return _resize_executor; }
+
+  // Hand the copy out of 'chm' to the resize executor, if there is one.  The
+  // flag goes up first, so callers stop helping as soon as may be.
+  private final void copy_in_background( final CHM chm ) {
+    final Executor ex = _resize_executor;
+    if( ex == null ) return;
+    chm._background = true;
+    try { ex.execute(this::copy_all); }
+    catch( RejectedExecutionException e ) { chm._background = false; }
+  }
+  // The resize executor's task: finish the top-level copy, and any nested
+  // copies started meanwhile (callers no longer help those along either).
+  private final void copy_all() {
+    CHM topchm;
+    while( (topchm = _chm)._newchm != null )
+      topchm.help_copy_impl(true);
+  }
+
+  // --- JMX -----------------------------------------------------------------
+  // The name this map's TableMXBean is registered under, if any
+  private transient volatile javax.management.ObjectName _mbean;
+  /** Register a JMX {@link TableMXBean} for this map with the platform
+   *  MBean server, as
+   *  <tt>org.cliffc.high_scale_lib:type=NonBlockingHashMapLong,name=</tt><em>name</em>.
+   *  The bean reads the live map on each call and adds no cost to the map's
+   *  own operations.
+   *  @param name the name for the bean
+   *  @return the bean's ObjectName
+   *  @throws IllegalStateException if a bean is already registered for this map
+   *  @throws javax.management.JMException if the bean cannot be registered,
+   *  such as when another bean has the same name */
+  public javax.management.ObjectName registerMBean( final String name ) throws javax.management.JMException {
+    if( _mbean != null ) throw new IllegalStateException("already registered as "+_mbean);
+    return _mbean = TableMBeans.register("NonBlockingHashMapLong",name,new MBean(name));
+  }
+  /** Unregister the bean registered by {@link #registerMBean}, if any.
+   *  @throws javax.management.JMException if the bean cannot be unregistered */
+  public void unregisterMBean() throws javax.management.JMException {
+    final javax.management.ObjectName on = _mbean;
+    if( on == null ) return;
+    _mbean = null;
+    TableMBeans.unregister(on);
+  }
+
+  private final class MBean implements TableMXBean {
+    private final String _name;
+    MBean( final String name ) { _name = name; }
+    public String getName() { return _name; }
+    public long getSize() { return estimatedSize(); }
+    public long getCapacity() { return _chm._len; }
+    public long getSlots() { return _chm._slots.estimate_get(); }
+    public long getTombstones() {
+      final CHM chm = _chm;
+      return Math.max(0,chm._slots.estimate_get()-chm._size.estimate_get());
+    }
+    public double getAverageProbeLength() { return _chm.probe_length(); }
+    public long getResizes() { return _resizes; }
+    public long getLastResizeNanos() { return _last_resize_nanos; }
+    public long getCopyDone() { final CHM chm = _chm; return chm._newchm == null ? 0 : chm._copyDone; }
+    public long getCopyTotal() { final CHM chm = _chm; return chm._newchm == null ? 0 : chm._len; }
+    public long getResizeWaits() { return resizeWaits(); }
+    public long getResizeWaitNanos() { return resizeWaitNanos(); }
+  }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
   // the reprobe limit on a 'get' call acts as a 'miss'; on a 'put' call it
   // can trigger a table resize.  Several places must have exact agreement on
-  // what the reprobe_limit is, so we share it here.
-  private static final int reprobe_limit( int len ) {
-    return REPROBE_LIMIT + (len>>2);
-  }
+  // what the reprobe_limit is, so we share it here: each table computes it
+  // once, from the map's resize policy, into CHM._reprobe_limit.
 
   // --- NonBlockingHashMapLong ----------------------------------------------
   // Constructors
@@ -219,9 +396,10 @@ public class NonBlockingHashMapLong<TypeV>
   public NonBlockingHashMapLong( final int initial_sz ) { this(initial_sz,true); }
 
   /** Create a new NonBlockingHashMapLong, setting the space-for-speed
-   *  tradeoff.  {@code true} optimizes for space and is the default.  {@code
-   *  false} optimizes for speed and doubles space costs for roughly a 10%
-   *  speed improvement.  */
+   *  tradeoff.  {@code true} optimizes for space and is the default: the map
+   *  uses {@link ResizePolicy#DENSE}.  {@code false} optimizes for speed and
+   *  doubles space costs for roughly a 10% speed improvement: the map uses
+   *  {@link ResizePolicy#DEFAULT}.  */
   public NonBlockingHashMapLong( final boolean opt_for_space ) { this(1,opt_for_space); }
 
   /** Create a new NonBlockingHashMapLong, setting both the initial size and
@@ -229,23 +407,100 @@ public class NonBlockingHashMapLong<TypeV>
    *  the default.  {@code false} optimizes for speed and doubles space costs
    *  for roughly a 10% speed improvement.  */
   public NonBlockingHashMapLong( final int initial_sz, final boolean opt_for_space ) { 
-    _opt_for_space = opt_for_space;
+    this(initial_sz,opt_for_space,false);
+  }
+
+  /** Create a new NonBlockingHashMapLong with the given resize heuristics;
+   *  see {@link ResizePolicy}.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param policy the resize heuristics */
+  public NonBlockingHashMapLong( final long initial_sz, final ResizePolicy policy ) { 
+    this(initial_sz,policy,false);
+  }
+
+  /** Create a new NonBlockingHashMapLong, optionally with a segmented table
+   *  layout.  Segmented tables bigger than 32K entries are kept as many
+   *  fixed-size chunks instead of one giant array, which are allocated
+   *  lazily and in parallel by the threads using the table.  This avoids
+   *  long allocation stalls and humongous GC objects when very large tables
+   *  resize, and lets the table grow past 2^31 entries, at the cost of an
+   *  extra indirection on every access.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param opt_for_space see {@link #NonBlockingHashMapLong(boolean)}
+   *  @param segmented use the segmented table layout */
+  public NonBlockingHashMapLong( final long initial_sz, final boolean opt_for_space, final boolean segmented ) { 
+    this(initial_sz,opt_for_space ? ResizePolicy.DENSE : ResizePolicy.DEFAULT,segmented);
+  }
+
+  /** Create a new NonBlockingHashMapLong with all options.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param policy the resize heuristics
+   *  @param segmented use the segmented table layout; see {@link
+   *  #NonBlockingHashMapLong(long,boolean,boolean)} */
+  public NonBlockingHashMapLong( final long initial_sz, final ResizePolicy policy, final boolean segmented ) { 
+    if( policy == null ) throw new NullPointerException();
+    _policy = policy;
+    _segmented = segmented;
     initialize(initial_sz); 
   }
-  private final void initialize( final int initial_sz ) { 
+  private final void initialize( final long initial_sz ) { 
     if( initial_sz < 0 ) throw new IllegalArgumentException();
+    if( _policy == null ) _policy = ResizePolicy.DENSE; // Stream from before policies
     int i;                      // Convert to next largest power-of-2
-    for( i=MIN_SIZE_LOG; (1<<i) < initial_sz; i++ ) ;
-    _chm = new CHM(this,new Counter(),i);
+    for( i=MIN_SIZE_LOG; (1L<<i) < initial_sz && i < max_size_log(); i++ ) ;
+    _chm = new CHM(this,new Counter(),i,false,new_seed());
     _val_1 = TOMBSTONE;         // Always as-if deleted
     _last_resize_milli = System.currentTimeMillis();
   }
 
+  // Largest allowed table, in log2 of K/V pairs
+  private final int max_size_log() { return _segmented ? MAX_SEG_SIZE_LOG : MAX_SIZE_LOG; }
+
   // --- wrappers ------------------------------------------------------------
 
   /** Returns the number of key-value mappings in this map.
    *  @return the number of key-value mappings in this map */
   public int     size       ( )                     { return (_val_1==TOMBSTONE?0:1) + (int)_chm.size(); }
+  /** Returns the number of key-value mappings in this map, summing every
+   *  stripe of the size counter.  The count is exact while the map is not
+   *  being updated, and always includes the calling thread's own updates;
+   *  but under heavy concurrent updates the counter has many stripes, and
+   *  summing them all is costly.
+   *  @return the number of key-value mappings in this map */
+  public long    exactSize  ( )                     { return (_val_1==TOMBSTONE?0:1) + _chm._size.get(); }
+  /** Returns a cheap estimate of the number of key-value mappings, for
+   *  callers which check the size often.  Once the size counter has grown
+   *  past a few stripes, the estimate is a cached sum refreshed at most once
+   *  a millisecond, so it may miss the latest updates, even the calling
+   *  thread's own.
+   *  @return an estimate of the number of key-value mappings */
+  public long    estimatedSize( )                   { return (_val_1==TOMBSTONE?0:1) + Math.max(0,_chm._size.estimate_get()); }
+  /** Returns {@link #estimatedSize}; the name used by {@link
+   *  java.util.concurrent.ConcurrentHashMap} for its own size estimate.
+   *  @return an estimate of the number of key-value mappings */
+  public long    mappingCount( )                    { return estimatedSize(); }
+  /** Returns <tt>size() == 0</tt>.  A live mapping near where the last call
+   *  found one proves the map is not empty without summing the size
+   *  counter; only an empty (or nearly empty) map pays for the full sum.
+   *  @return <tt>size() == 0</tt> */
+  public boolean isEmpty    ( ) {
+    if( _val_1 != TOMBSTONE ) return false;
+    final CHM chm = _chm;
+    long idx = _live_hint;
+    for( int i=0; i<LIVE_PROBES; i++, idx++ ) {
+      final long K = chm.key(idx&(chm._len-1));
+      if( K != NO_KEY && get(K) != null ) {
+        _live_hint = idx;       // Start here next time
+        return false;
+      }
+    }
+    _live_hint = idx;           // Look further along next time
+    return exactSize() == 0;
+  }
+  // Slots checked by isEmpty for a live mapping, before summing the counter.
+  private static final int LIVE_PROBES = 8;
+  // Where isEmpty last found a live mapping.  Racy, it is only a hint.
+  private transient long _live_hint;
   /** Tests if the key in the table.
    * @return <tt>true</tt> if the key is in the table */
   public boolean containsKey( long key )            { return get(key) != null; }
@@ -309,7 +564,7 @@ public class NonBlockingHashMapLong<TypeV>
           curVal == oldVal ||       // No instant match already?
           (oldVal == MATCH_ANY && curVal != TOMBSTONE) ||
           oldVal.equals(curVal) )   // Expensive equals check
-        CAS(_val_1_offset,curVal,newVal); // One shot CAS update attempt
+        CAS(_val_1_field,curVal,newVal); // One shot CAS update attempt
       return curVal == TOMBSTONE ? null : (TypeV)curVal; // Return the last value present
     }
     final Object res = _chm.putIfMatch( key, newVal, oldVal );
@@ -319,11 +574,19 @@ public class NonBlockingHashMapLong<TypeV>
   }
 
   /** Removes all of the mappings from this map. */
-  public void clear() {         // Smack a new empty table down
-    CHM newchm = new CHM(this,new Counter(),MIN_SIZE_LOG);
-    while( !CAS(_chm_offset,_chm,newchm) ) // Spin until the clear works
+  public void clear() { clear(false); }
+
+  /** Removes all of the mappings from this map.  With <tt>keepCapacity</tt>
+   *  the new empty table is the same size as the current one, so a map which
+   *  is cleared and refilled over and over does not grow its table from
+   *  scratch every time; otherwise the table goes back to the minimum size.
+   *  @param keepCapacity true to keep the current table size */
+  public void clear( final boolean keepCapacity ) { // Smack a new empty table down
+    final int log2 = keepCapacity ? Long.numberOfTrailingZeros(_chm._len) : MIN_SIZE_LOG;
+    CHM newchm = new CHM(this,new Counter(),log2,false,new_seed());
+    while( !CAS(_chm_field,_chm,newchm) ) // Spin until the clear works
       ;
-    CAS(_val_1_offset,_val_1,TOMBSTONE);
+    CAS(_val_1_field,_val_1,TOMBSTONE);
   }
 
   /** Returns <tt>true</tt> if this Map maps one or more keys to the specified
@@ -391,6 +654,7 @@ public class NonBlockingHashMapLong<TypeV>
     // and another KVS becomes the top-level copy).
     CHM topchm = _chm;
     if( topchm._newchm == null ) return; // No copy in-progress
+    if( topchm._background ) return;     // Resize executor has it
     topchm.help_copy_impl(false);
   }
 
@@ -438,7 +702,9 @@ public class NonBlockingHashMapLong<TypeV>
     // throttling attempts to create a new table.  I cannot really block here
     // (lest I lose the non-blocking property) but late-arriving threads can
     // give the initial resizing thread a little time to allocate the initial
-    // new table.  The Right Long Term Fix here is to use array-lets and
+    // new table.  They park on _wait, and the winner wakes them as soon as
+    // the new table is installed; the timeout only matters if the winner
+    // stalls.  The Right Long Term Fix here is to use array-lets and
     // incrementally create the new very large array.  In C I'd make the array
     // with malloc (which would mmap under the hood) which would only eat
     // virtual-address and not real memory - and after Somebody wins then we
@@ -447,34 +713,180 @@ public class NonBlockingHashMapLong<TypeV>
     volatile long _resizers;    // count of threads attempting an initial resize
     private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
       AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+    final ResizeWait _wait = new ResizeWait();
 
     // --- key,val -------------------------------------------------------------
-    // Access K,V for a given idx
-    private final boolean CAS_key( int idx, long   old, long   key ) {
-      return _unsafe.compareAndSwapLong  ( _keys, rawIndex(_keys, idx), old, key );
+    // Access K,V for a given idx.  Flat tables use _keys and _vals directly;
+    // segmented tables go through the _spine of Chunks.  A null chunk has
+    // never been written: all its keys are NO_KEY.  A table copy seals an
+    // unwritten chunk in one step with the shared SEALED chunk, which reads
+    // as if every slot had a slammed key (see copy_slot) and a TOMBPRIME.
+    final long   [] _keys;          // Flat table, or null
+    final Object [] _vals;
+    final Object [] _spine;         // Segmented table of Chunks, or null
+    final long _len;                // Number of K/V pairs, a power of 2
+    final long _reprobe_limit;      // Reprobes allowed; see reprobe_limit
+
+    private static final class Chunk {
+      final long  [] _ks;
+      final Object[] _vs;
+      Chunk() { this(CHUNK); }
+      private Chunk( final int len ) { _ks = new long[len]; _vs = new Object[len]; }
     }
-    private final boolean CAS_val( int idx, Object old, Object val ) {
-      return _unsafe.compareAndSwapObject( _vals, rawIndex(_vals, idx), old, val );
+    // Only ever compared against, never indexed: no need for real arrays
+    private static final Chunk SEALED = new Chunk(0);
+
+    private final Chunk chunk( final long idx ) { return (Chunk)_spine[(int)(idx>>>CHUNK_LOG)]; }
+    private final long key( final long idx ) {
+      if( _keys != null ) return _keys[(int)idx];
+      final Chunk c = chunk(idx);
+      return c == null ? NO_KEY : (c == SEALED ? idx+_len : c._ks[(int)idx&(CHUNK-1)]);
+    }
+    private final Object val( final long idx ) {
+      if( _vals != null ) return _vals[(int)idx];
+      final Chunk c = chunk(idx);
+      return c == null ? null : (c == SEALED ? TOMBPRIME : c._vs[(int)idx&(CHUNK-1)]);
+    }
+    // Same, with acquire loads; see get_impl
+    private final long key_acq( final long idx ) {
+      if( _keys != null ) return UtilAccess.getAcquire(_keys,(int)idx);
+      final Chunk c = chunk(idx);
+      return c == null ? NO_KEY : (c == SEALED ? idx+_len : UtilAccess.getAcquire(c._ks,(int)idx&(CHUNK-1)));
+    }
+    private final Object val_acq( final long idx ) {
+      if( _vals != null ) return UtilAccess.getAcquire(_vals,(int)idx);
+      final Chunk c = chunk(idx);
+      return c == null ? null : (c == SEALED ? TOMBPRIME : UtilAccess.getAcquire(c._vs,(int)idx&(CHUNK-1)));
+    }
+    private final boolean CAS_key( long idx, long   old, long   key ) {
+      if( _keys != null ) return UtilAccess.CAS( _keys, (int)idx, old, key );
+      Chunk c = chunk(idx);
+      if( c == null ) {         // First write into this chunk: allocate it
+        UtilAccess.CAS( _spine, (int)(idx>>>CHUNK_LOG), null, new Chunk() );
+        c = chunk(idx);         // Ours or a racing thread's, or SEALED
+      }
+      return c != SEALED && UtilAccess.CAS( c._ks, (int)idx&(CHUNK-1), old, key );
+    }
+    private final boolean CAS_val( long idx, Object old, Object val ) {
+      if( _vals != null ) return UtilAccess.CAS( _vals, (int)idx, old, val );
+      final Chunk c = chunk(idx); // Never null: the key is already set
+      return c != SEALED && UtilAccess.CAS( c._vs, (int)idx&(CHUNK-1), old, val );
+    }
+    // Seal a never-written chunk during a table copy.  Returns the number of
+    // slots thus copied: all of them, or none if the chunk was in use.
+    private final int seal_chunk( final long idx ) {
+      return UtilAccess.CAS( _spine, (int)(idx>>>CHUNK_LOG), null, SEALED ) ? CHUNK : 0;
     }
-
-    final long   [] _keys;
-    final Object [] _vals;
    
+    // --- staging ---------------------------------------------------------
+    // Values of the old table, parked here while being copied into this one.
+    // One slot per old-table slot; each slot is written at most once, by the
+    // first copy_slot to stage a value there.  Laid out like the old table:
+    // flat, or a spine of lazily allocated CHUNK-sized arrays.  Null until
+    // then, so threads losing the race to install this table allocate none;
+    // NO_STAGING if there is none, and once the copy is done.
+    volatile Object[] _staged;
+    private static final AtomicReferenceFieldUpdater<CHM,Object[]> _stagedUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,Object[].class, "_staged");
+
+    // True if the copy out of this table was handed to the resize executor
+    volatile boolean _background;
+
+    // Staged value for old-table slot idx, or null.  Called on the old CHM.
+    private final Object staged( final long idx ) {
+      final Object[] st = _newchm._staged;
+      if( st == null || st == NO_STAGING ) return null;
+      if( _spine == null ) return UtilAccess.getVolatile(st,(int)idx);
+      final Object[] c = (Object[])UtilAccess.getVolatile(st,(int)(idx>>>CHUNK_LOG));
+      return c == null ? null : UtilAccess.getVolatile(c,(int)idx&(CHUNK-1));
+    }
+    // Stage V for old-table slot idx unless something is staged there
+    // already.  True if V is (now) the staged value.
+    private final boolean stage( final long idx, final Object V ) {
+      Object[] st = _newchm._staged;
+      if( st == null ) {        // First value staged: install the array
+        _stagedUpdater.compareAndSet(_newchm,null,new Object[_spine == null ? (int)_len : _spine.length]);
+        st = _newchm._staged;
+      }
+      if( st == NO_STAGING ) return false;
+      int i = (int)idx;
+      if( _spine != null ) {
+        final int ci = (int)(idx>>>CHUNK_LOG);
+        if( UtilAccess.getVolatile(st,ci) == null )
+          UtilAccess.CAS(st,ci,null,new Object[CHUNK]);
+        st = (Object[])UtilAccess.getVolatile(st,ci);
+        i &= (CHUNK-1);
+      }
+      if( UtilAccess.getVolatile(st,i) == null )
+        UtilAccess.CAS(st,i,null,V);
+      return UtilAccess.getVolatile(st,i) == V;
+    }
+
     // Simple constructor
-    CHM( final NonBlockingHashMapLong nbhml, Counter size, final int logsize ) {
+    // When this table was made; a new table is made just before it is
+    // installed, so this times the copy into it.
+    final long _born = System.nanoTime();
+
+    // Average distance of keys from their home slots, over the first
+    // PROBE_SAMPLE slots of the table.
+    private static final int PROBE_SAMPLE = 1<<12;
+    double probe_length() {
+      long keys=0, dist=0;
+      for( long i=0; i<Math.min(_len,PROBE_SAMPLE); i++ ) {
+        final long K = key(i);
+        if( K == NO_KEY ) continue;
+        dist += (i-home(K))&(_len-1);
+        keys++;
+      }
+      return keys == 0 ? 0 : (double)dist/keys;
+    }
+
+    // ---
+    // This table's hash seed, or 0 for none; see setHashSeeding.
+    final long _seed;
+    // True if an insert ran out of reprobes here, so the next table gets a
+    // fresh seed.
+    volatile boolean _flooded;
+    // Seed for the table copied out of this one: none unless seeding; a
+    // fresh one for the first seeded table, or after a flood; else the same.
+    private final long next_seed() {
+      if( !_nbhml._hash_seeding ) return 0;
+      return _seed == 0 || _flooded ? fresh_seed() : _seed;
+    }
+    // The home slot (before masking) of 'key': the key itself when unseeded,
+    // else the key scrambled with the seed by Murmur3's 64-bit finalizer.
+    final long home( final long key ) {
+      if( _seed == 0 ) return key;
+      long h = key ^ _seed;
+      h ^= h >>> 33;  h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;  h *= 0xc4ceb9fe1a85ec53L;
+      return h ^ (h >>> 33);
+    }
+
+    CHM( final NonBlockingHashMapLong nbhml, Counter size, final int logsize, final boolean staging, final long seed ) {
       _nbhml = nbhml;
+      _seed = seed;
       _size = size;
       _slots= new Counter();
-      _keys = new long  [1<<logsize];
-      _vals = new Object[1<<logsize];
+      _staged = staging ? null : NO_STAGING;
+      _len  = 1L<<logsize;
+      _reprobe_limit = nbhml._policy.reprobe_limit(_len);
+      if( nbhml._segmented && logsize > CHUNK_LOG ) {
+        _keys = null;  _vals = null;
+        _spine = new Object[1<<(logsize-CHUNK_LOG)];
+      } else {
+        _keys = new long  [1<<logsize];
+        _vals = new Object[1<<logsize];
+        _spine = null;
+      }
     }
 
     // --- print innards
     private final void print() { 
-      for( int i=0; i<_keys.length; i++ ) {
-        long K = _keys[i];
+      for( long i=0; i<_len; i++ ) {
+        long K = key(i);
         if( K != NO_KEY )
-          print_impl(i,K,_vals[i]);
+          print_impl(i,K,val(i));
       }
       CHM newchm = _newchm;     // New table, if any
       if( newchm != null ) {
@@ -485,10 +897,10 @@ public class NonBlockingHashMapLong<TypeV>
 
     // --- print only the live objects
     private final void print2( ) { 
-      for( int i=0; i<_keys.length; i++ ) {
-        long K = _keys[i];
+      for( long i=0; i<_len; i++ ) {
+        long K = key(i);
         if( K != NO_KEY )       // key is sane
-          print2_impl(i,K,_vals[i]);
+          print2_impl(i,K,val(i));
       }
       CHM newchm = _newchm;     // New table, if any
       if( newchm != null ) {
@@ -500,14 +912,21 @@ public class NonBlockingHashMapLong<TypeV>
     // --- get_impl ----------------------------------------------------------
     // Never returns a Prime nor a Tombstone.
     private final Object get_impl ( final long key ) {
-      final int len     = _keys.length;
-      int idx = (int)(key & (len-1)); // First key hash
+      final long len    = _len;
+      long idx = home(key) & (len-1); // First key hash
 
       // Main spin/reprobe loop, looking for a Key hit
       int reprobe_cnt=0;
+      // Flat table, vectorized: skip the run of slots holding other keys in
+      // bulk.  Stop short of the reprobe limit, so the loop below still
+      // probes at least once and decides about the new table.
+      if( HashProbe.VECTOR && _keys != null ) {
+        reprobe_cnt = HashProbe.skip(_keys,(int)idx,key,(int)_reprobe_limit-1);
+        idx = (idx+reprobe_cnt)&(len-1);
+      }
       while( true ) {
-        final long   K = _keys[idx]; // Get key   before volatile read, could be NO_KEY
-        final Object V = _vals[idx]; // Get value before volatile read, could be null or Tombstone or Prime
+        final long   K = key_acq(idx); // Get key   before volatile read, could be NO_KEY
+        final Object V = val_acq(idx); // Get value before volatile read, could be null or Tombstone or Prime
         if( K == NO_KEY ) return null; // A clear miss
 
         // Key-compare
@@ -528,7 +947,7 @@ public class NonBlockingHashMapLong<TypeV>
         // get and put must have the same key lookup logic!  But only 'put'
         // needs to force a table-resize for a too-long key-reprobe sequence.
         // Check for too-many-reprobes on get.
-        if( ++reprobe_cnt >= reprobe_limit(len) ) // too many probes
+        if( ++reprobe_cnt >= _reprobe_limit ) // too many probes
           return _newchm == null // Table copy in progress?
             ? null               // Nope!  A clear miss
             : copy_slot_and_check(idx,key).get_impl(key); // Retry in the new table
@@ -547,8 +966,8 @@ public class NonBlockingHashMapLong<TypeV>
       assert putval != null;
       assert !(putval instanceof Prime);
       assert !(expVal instanceof Prime);
-      final int len      = _keys.length;
-      int idx = (int)(key & (len-1)); // The first key
+      final long len     = _len;
+      long idx = home(key) & (len-1); // The first key
 
       // ---
       // Key-Claim stanza: spin till we can claim a Key (or force a resizing).
@@ -556,8 +975,8 @@ public class NonBlockingHashMapLong<TypeV>
       long   K = NO_KEY;
       Object V = null;
       while( true ) {           // Spin till we get a Key slot
-        V = _vals[idx];         // Get old value
-        K = _keys[idx];         // Get current key
+        V = val(idx);           // Get old value
+        K = key(idx);           // Get current key
         if( K == NO_KEY ) {     // Slot is free?
           // Found an empty Key slot - which means this Key has never been in
           // this table.  No need to put a Tombstone - the Key is not here!
@@ -580,7 +999,7 @@ public class NonBlockingHashMapLong<TypeV>
           // non-spurious-failure CAS (such as Azul has) into one that can
           // apparently spuriously fail - and we avoid apparent spurious failure
           // by not allowing Keys to ever change.
-          K = _keys[idx];       // CAS failed, get updated value
+          K = key(idx);         // CAS failed, get updated value
           assert K != NO_KEY ;  // If keys[idx] is NO_KEY, CAS shoulda worked
         }
         // Key slot was not null, there exists a Key here
@@ -590,10 +1009,11 @@ public class NonBlockingHashMapLong<TypeV>
         // get and put must have the same key lookup logic!  Lest 'get' give
         // up looking too soon.  
         //topmap._reprobes.add(1);
-        if( ++reprobe_cnt >= reprobe_limit(len) ) {
+        if( ++reprobe_cnt >= _reprobe_limit ) {
           // We simply must have a new table to do a 'put'.  At this point a
           // 'get' will also go to the new table (if any).  We do not need
           // to claim a key slot (indeed, we cannot find a free one to claim!).
+          _flooded = true;      // Ran out of reprobes: keys collide
           final CHM newchm = resize();
           if( expVal != null ) _nbhml.help_copy(); // help along an existing copy
           return newchm.putIfMatch(key,putval,expVal);
@@ -650,7 +1070,7 @@ public class NonBlockingHashMapLong<TypeV>
           return (V==null && expVal!=null) ? TOMBSTONE : V;
       } 
         // Else CAS failed
-        V = _vals[idx];         // Get new value
+        V = val(idx);           // Get new value
         // If a Prime'd value got installed, we need to re-run the put on the
         // new table.  Otherwise we lost the CAS to another racing put.
         // Simply retry from the start.
@@ -668,12 +1088,12 @@ public class NonBlockingHashMapLong<TypeV>
     // current table, while a 'get' has decided the same key cannot be in this
     // table because of too many reprobes.  The invariant is:
     //   slots.estimate_sum >= max_reprobe_cnt >= reprobe_limit(len)
-    private final boolean tableFull( int reprobe_cnt, int len ) {
+    private final boolean tableFull( int reprobe_cnt, long len ) {
       return 
         // Do the cheap check first: we allow some number of reprobes always
-        reprobe_cnt >= REPROBE_LIMIT &&
-        // More expensive check: see if the table is > 1/4 full.
-        _slots.estimate_get() >= reprobe_limit(len);
+        reprobe_cnt >= _nbhml._policy.maxReprobes() &&
+        // More expensive check: see if the table is past the load factor.
+        _slots.estimate_get() >= _reprobe_limit;
     }
 
     // --- resize ------------------------------------------------------------
@@ -682,48 +1102,47 @@ public class NonBlockingHashMapLong<TypeV>
     // Since this routine has a fast cutout for copy-already-started, callers
     // MUST 'help_copy' lest we have a path which forever runs through
     // 'resize' only to discover a copy-in-progress which never progresses.
-    private final CHM resize() {
+    private final CHM resize() { return resize(0,Long.MAX_VALUE); }
+    // Version with a minimum and maximum new table size (in K/V pairs), for
+    // presizing and trimming.
+    private final CHM resize( long minsz, long maxsz ) {
       // Check for resize already in progress, probably triggered by another thread
       CHM newchm = _newchm;     // VOLATILE READ
       if( newchm != null )      // See if resize is already in progress
         return newchm;          // Use the new table already
 
       // No copy in-progress, so start one.  First up: compute new table size.
-      int oldlen = _keys.length; // Old count of K,V pairs allowed
-      int sz = size();          // Get current table count of active K,V pairs
-      int newsz = sz;           // First size estimate
+      long oldlen = _len;       // Old count of K,V pairs allowed
+      long sz = _size.get();    // Get current table count of active K,V pairs
+      long newsz = sz;          // First size estimate
 
       // Heuristic to determine new size.  We expect plenty of dead-slots-with-keys 
-      // and we need some decent padding to avoid endless reprobing.
-      if( _nbhml._opt_for_space ) {
-        // This heuristic leads to a much denser table with a higher reprobe rate
-        if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-          newsz = oldlen<<1;    // Double size
-      } else {
-        if( sz >= (oldlen>>2) ) { // If we are >25% full of keys then...
-          newsz = oldlen<<1;      // Double size
-          if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-            newsz = oldlen<<2;    // Double double size
-        }
-      }
+      // and we need some decent padding to avoid endless reprobing.  Live keys
+      // past the load factor grow the table (by the growth factor, or by its
+      // square past twice the load factor).
+      final ResizePolicy policy = _nbhml._policy;
+      newsz = policy.grown(sz,oldlen);
 
-      // Last (re)size operation was very recent?  Then double again; slows
+      // Last (re)size operation was very recent?  Then grow again; slows
       // down resize operations for tables subject to a high key churn rate.
       long tm = System.currentTimeMillis();
       long q=0;
+      final boolean recent = policy.recent(tm,_nbhml._last_resize_milli);
       if( newsz <= oldlen &&    // New table would shrink or hold steady?
-          tm <= _nbhml._last_resize_milli+10000 && // Recent resize (less than 1 sec ago)
-          //(q=_slots.estimate_sum()) >= (sz<<1) ) // 1/2 of keys are dead?
-          true )
-        newsz = oldlen<<1;      // Double the existing size
-
-      // Do not shrink, ever
-      if( newsz < oldlen ) newsz = oldlen;
+          recent &&
+          (q=_slots.estimate_get()) >= (sz<<1) ) // 1/2 of keys are dead?
+        newsz = oldlen*policy.growthFactor(); // Grow the existing size
+
+      // Shrink only if the table is mostly dead (below the shrink factor) and
+      // has not been resized recently, else hold steady
+      if( newsz < oldlen ) newsz = !recent && policy.sparse(sz,oldlen) ? policy.padded(sz) : oldlen;
+      if( newsz < minsz ) newsz = minsz; // Presizing for a bulk load
+      if( newsz > maxsz ) newsz = maxsz; // Trimming
       //System.out.println("old="+oldlen+" new="+newsz+" size()="+sz+" est_slots()="+q+" millis="+(tm-_nbhml._last_resize_milli));
 
       // Convert to power-of-2
       int log2;
-      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+      for( log2=MIN_SIZE_LOG; (1L<<log2) < newsz && log2 < _nbhml.max_size_log(); log2++ ) ; // Compute log2 of size
 
       // Now limit the number of threads actually allocating memory to a
       // handful - lest we have 750 threads all trying to allocate a giant
@@ -733,18 +1152,18 @@ public class NonBlockingHashMapLong<TypeV>
         r = _resizers;
       // Size calculation: 2 words (K+V) per table entry, plus a handful.  We
       // guess at 32-bit pointers; 64-bit pointers screws up the size calc by
-      // 2x but does not screw up the heuristic very much.
-      int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
+      // 2x but does not screw up the heuristic very much.  A segmented table
+      // only allocates its spine here, which is cheap.
+      int megs = _nbhml._segmented && log2 > CHUNK_LOG ? 0 : ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
+      long waited = 0;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
         newchm = _newchm;        // Between dorking around, another thread did it
         if( newchm != null )     // See if resize is already in progress
           return newchm;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
+        // Wait, with a timeout, for the 2 guys already trying to make the
+        // table; whoever installs it wakes us right away.
+        waited = _wait.await(8L*megs*1000000L, () -> _newchm != null);
+        if( waited > 0 ) _nbhml.record_resize_wait(waited);
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -753,7 +1172,7 @@ public class NonBlockingHashMapLong<TypeV>
         return newchm;          // Use the new table already
 
       // New CHM - actually allocate the big arrays
-      newchm = new CHM(_nbhml,_size,log2);
+      newchm = new CHM(_nbhml,_size,log2,(1L<<log2) >= oldlen,next_seed()); // Stage unless shrinking
       
       // Another check after the slow allocation
       if( _newchm != null )     // See if resize is already in progress
@@ -762,7 +1181,9 @@ public class NonBlockingHashMapLong<TypeV>
       // The new table must be CAS'd in so only 1 winner amongst duplicate
       // racing resizing threads.  Extra CHM's will be GC'd.
       if( CAS_newchm( newchm ) ) { // NOW a resize-is-in-progress!
-        //notifyAll();            // Wake up any sleepers
+        _wait.release();        // Wake up any waiters
+        JfrEvents.resize(_nbhml,oldlen,1L<<log2,waited);
+        _nbhml.copy_in_background(this);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
         //System.out.print("["+log2);
@@ -773,7 +1194,7 @@ public class NonBlockingHashMapLong<TypeV>
 
 
     // The next part of the table to copy.  It monotonically transits from zero
-    // to _keys.length.  Visitors to the table can claim 'work chunks' by
+    // to _len.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
     // table to the new table.  Workers are not required to finish any chunk;
     // the counter simply wraps and work is copied duplicately until somebody
@@ -796,12 +1217,12 @@ public class NonBlockingHashMapLong<TypeV>
     private final void help_copy_impl( final boolean copy_all ) {
       final CHM newchm = _newchm;
       assert newchm != null;    // Already checked by caller
-      int oldlen = _keys.length; // Total amount to copy
-      final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
+      long oldlen = _len;       // Total amount to copy
+      final int MIN_COPY_WORK = (int)Math.min(oldlen,1024); // Limit per-thread work
 
       // ---
-      int panic_start = -1;
-      int copyidx=-9999;            // Fool javac to think it's initialized
+      long panic_start = -1;
+      long copyidx=-9999;           // Fool javac to think it's initialized
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
         // thread eventually tries to copy every slot repeatedly.
@@ -814,21 +1235,23 @@ public class NonBlockingHashMapLong<TypeV>
         // algorithm) or do the copy work ourselves.  Tiny tables with huge
         // thread counts trying to copy the table often 'panic'.
         if( panic_start == -1 ) { // No panic?
-          copyidx = (int)_copyIdx;
+          copyidx = _copyIdx;
           while( copyidx < (oldlen<<1) && // 'panic' check
                  !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
-            copyidx = (int)_copyIdx;     // Re-read
-          if( !(copyidx < (oldlen<<1)) ) // Panic!
+            copyidx = _copyIdx;          // Re-read
+          if( !(copyidx < (oldlen<<1)) ) { // Panic!
             panic_start = copyidx;       // Record where we started to panic-copy
+            JfrEvents.panic(_nbhml,oldlen);
+          }
         }
       
         // We now know what to copy.  Try to copy.
         int workdone = 0;
         for( int i=0; i<MIN_COPY_WORK; i++ )
-          if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
-            workdone++;         // Yes!
+          workdone += copy_slot((copyidx+i)&(oldlen-1)); // Made oldtable slots go dead?
         if( workdone > 0 )      // Report work-done occasionally
           copy_check_and_promote( workdone );// See if we can promote
+        JfrEvents.copy_chunk(_nbhml,oldlen,MIN_COPY_WORK,workdone,panic_start != -1);
         //for( int i=0; i<MIN_COPY_WORK; i++ )
         //  if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
         //    copy_check_and_promote( 1 );// See if we can promote
@@ -856,12 +1279,13 @@ public class NonBlockingHashMapLong<TypeV>
     // before any Prime appears.  So the caller needs to read the _newchm
     // field to retry his operation in the new table, but probably has not
     // read it yet.
-    private final CHM copy_slot_and_check( int idx, Object should_help ) {
+    private final CHM copy_slot_and_check( long idx, Object should_help ) {
       // We're only here because the caller saw a Prime, which implies a
       // table-copy is in progress.
       assert _newchm != null;     
-      if( copy_slot(idx) )      // Copy the desired slot
-        copy_check_and_promote(1); // Record the slot copied
+      final int workdone = copy_slot(idx); // Copy the desired slot
+      if( workdone > 0 )
+        copy_check_and_promote(workdone); // Record the slot copied
       // Generically help along any copy (except if called recursively from a helper)
       if( should_help != null ) _nbhml.help_copy();
       return _newchm;
@@ -869,7 +1293,7 @@ public class NonBlockingHashMapLong<TypeV>
 
     // --- copy_check_and_promote --------------------------------------------
     private final void copy_check_and_promote( int workdone ) {
-      int oldlen = _keys.length;
+      long oldlen = _len;
       // We made a slot unusable and so did some of the needed copy work
       long copyDone = _copyDone;
       long nowDone = copyDone+workdone;
@@ -884,14 +1308,20 @@ public class NonBlockingHashMapLong<TypeV>
         //  System.out.print(" "+nowDone*100/oldlen+"%"+"_"+(_copyIdx*100/oldlen)+"%");
       }
 
+      // Every slot copied: drop the staging array, lest it keep old values alive
+      if( nowDone == oldlen ) _newchm._staged = NO_STAGING;
+
       // Check for copy being ALL done, and promote.  Note that we might have
       // nested in-progress copies and manage to finish a nested copy before
       // finishing the top-level copy.  We only promote top-level copies.
       if( nowDone == oldlen &&   // Ready to promote this table?
           _nbhml._chm == this && // Looking at the top-level table?
           // Attempt to promote
-          _nbhml.CAS(_chm_offset,this,_newchm) ) {
+          _nbhml.CAS(_chm_field,this,_newchm) ) {
         _nbhml._last_resize_milli = System.currentTimeMillis();  // Record resize time for next check
+        _nbhml._last_resize_nanos = System.nanoTime() - _newchm._born;
+        _nbhml._resizes++;
+        JfrEvents.promote(_nbhml,oldlen,_newchm._len,_nbhml._last_resize_nanos);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table "+oldlen+" to "+_newchm._keys.length);
         //System.out.print("_"+oldlen+"]");
@@ -908,23 +1338,37 @@ public class NonBlockingHashMapLong<TypeV>
     // old table - so that any transition in the new table from null to
     // not-null must have been from a copy_slot (or other old-table overwrite)
     // and not from a thread directly writing in the new table.  Thus we can
-    // count null-to-not-null transitions in the new table.
-    private boolean copy_slot( int idx ) {
+    // count null-to-not-null transitions in the new table.  Returns the
+    // number of old-table slots thus confirmed: normally 0 or 1, but a whole
+    // chunk when a never-written chunk of a segmented table is sealed.
+    private int copy_slot( long idx ) {
+      // A chunk nobody ever wrote needs no copying, just sealing against
+      // late puts; its slots read as keyed TOMBPRIMEs from now on.
+      if( _spine != null && chunk(idx) == null ) {
+        final int sealed = seal_chunk(idx);
+        if( sealed > 0 ) return sealed;
+      }
+
       // Blindly set the key slot from NO_KEY to some key which hashes here,
       // to eagerly stop fresh put's from inserting new values in the old
       // table when the old table is mid-resize.  We don't need to act on the
       // results here, because our correctness stems from box'ing the Value
       // field.  Slamming the Key field is a minor speed optimization.
       long key;
-      while( (key=_keys[idx]) == NO_KEY )
-        CAS_key(idx, NO_KEY, (idx+_keys.length)/*a non-zero key which hashes here*/);
+      while( (key=key(idx)) == NO_KEY )
+        CAS_key(idx, NO_KEY, (idx+_len)/*a non-zero key which hashes here*/);
 
       // ---
       // Prevent new values from appearing in the old table.
-      // Box what we see in the old table, to prevent further updates.
-      Object oldval = _vals[idx]; // Read OLD table
+      // Box what we see in the old table, to prevent further updates.  A live
+      // value is first staged in the new table's staging array and frozen
+      // with the shared STAGED box; this does not allocate.  The staged value
+      // never changes, so if a racing put replaced the value after it was
+      // staged, fall back to a real box.
+      Object oldval = val(idx); // Read OLD table
       while( !(oldval instanceof Prime) ) {
-        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME
+          : (stage(idx,oldval) ? STAGED : new Prime(oldval));
         if( CAS_val(idx,oldval,box) ) { // CAS down a box'd version of oldval
           // If we made the Value slot hold a TOMBPRIME, then we both
           // prevented further updates here but also the (absent) oldval is
@@ -932,15 +1376,15 @@ public class NonBlockingHashMapLong<TypeV>
           // any thread looking for a value for this key can correctly go
           // straight to the new table and skip looking in the old table.
           if( box == TOMBPRIME )
-            return true;  
+            return 1;  
           // Otherwise we boxed something, but it still needs to be
           // copied into the new table.
           oldval = box;         // Record updated oldval
           break;                // Break loop; oldval is now boxed by us
         }
-        oldval = _vals[idx];    // Else try, try again
+        oldval = val(idx);      // Else try, try again
       }
-      if( oldval == TOMBPRIME ) return false; // Copy already complete here!
+      if( oldval == TOMBPRIME ) return 0; // Copy already complete here!
 
       // ---
       // Copy the value into the new table, but only if we overwrite a null.
@@ -950,6 +1394,9 @@ public class NonBlockingHashMapLong<TypeV>
       // new table - somebody else should have recorded the null-not_null
       // transition in this copy.
       Object old_unboxed = ((Prime)oldval)._V;
+      if( oldval == STAGED )    // Staged before it was frozen; spin until visible
+        while( (old_unboxed = staged(idx)) == null )
+          if( _newchm._staged == NO_STAGING ) return 0; // Copy all done and staging dropped
       assert old_unboxed != TOMBSTONE;
       boolean copied_into_new = (_newchm.putIfMatch(key, old_unboxed, null) == null);
 
@@ -959,37 +1406,119 @@ public class NonBlockingHashMapLong<TypeV>
       // will stop other threads from uselessly attempting to copy this slot
       // (i.e., it's a speed optimization not a correctness issue).
       while( !CAS_val(idx,oldval,TOMBPRIME) )
-        oldval = _vals[idx];
+        oldval = val(idx);
 
-      return copied_into_new;
+      return copied_into_new ? 1 : 0;
     } // end copy_slot
   } // End of CHM
     
 
+  /** Copies all of the mappings from the specified map to this one, replacing
+   *  any existing mappings.  The table is first grown (once) to hold all the
+   *  new mappings, instead of doubling repeatedly as they are inserted.
+   *  @param m mappings to be stored in this map */
+  @Override
+  public void putAll( Map<? extends Long, ? extends TypeV> m ) {
+    presize(m.size());
+    for( Map.Entry<? extends Long, ? extends TypeV> e : m.entrySet() )
+      put(e.getKey().longValue(), e.getValue());
+  }
+
+  // --- presize -------------------------------------------------------------
+  // Grow the table, if needed, so that 'n' more keys fit without further
+  // resizing.  Uses the normal cooperative table copy, then finishes the copy
+  // before returning.  Padding matches the resize heuristic: the table is
+  // kept at the policy's load factor.
+  private final void presize( long n ) {
+    if( n <= 0 ) return;
+    grow(_chm._size.get()+n);
+  }
+  // Grow the table to hold 'n' keys with the usual padding, capped at the
+  // largest table
+  private final void grow( long n ) {
+    final long minsz = Math.min(_policy.padded(n), 1L<<max_size_log());
+    while( true ) {
+      final CHM topchm = _chm;
+      if( topchm._len >= minsz ) return;
+      topchm.resize(minsz,Long.MAX_VALUE); // Start a copy, or find one in-progress
+      topchm.help_copy_impl(true);  // And finish it
+    }
+  }
+
+  // --- ensureCapacity ------------------------------------------------------
+  /** Grow the table, if needed, so that it holds <tt>n</tt> mappings in total
+   *  without further resizing.  Racing updates are not lost: the table is
+   *  grown by the normal cooperative copy, which is finished before
+   *  returning.
+   *  @param n the number of mappings to make room for
+   *  @throws IllegalArgumentException if <tt>n</tt> is negative */
+  public void ensureCapacity( final long n ) {
+    if( n < 0 ) throw new IllegalArgumentException();
+    grow(n);
+  }
+
+  // --- trimToSize ----------------------------------------------------------
+  /** Shrink the table, if it is larger than needed, to the size the resize
+   *  heuristic aims for with the current number of mappings.  Useful after
+   *  removing most of the mappings of a large map; the table otherwise never
+   *  shrinks.  The table is shrunk by the normal cooperative copy, which is
+   *  finished before returning; racing inserts may of course grow it again. */
+  public void trimToSize() {
+    // The first pass may only finish a copy already in progress
+    for( int pass=0; pass<2; pass++ ) {
+      final CHM topchm = _chm;
+      final long maxsz = Math.max(MIN_SIZE, _policy.padded(topchm._size.get()));
+      if( (topchm._len>>1) < maxsz ) return; // Already as small as it gets
+      topchm.resize(0,maxsz);       // Start a copy, or find one in-progress
+      topchm.help_copy_impl(true);  // And finish it
+    }
+  }
+
+  // --- bulkLoad ------------------------------------------------------------
+  /** Build a new map from parallel arrays of keys and values.  The table is
+   *  sized once up front and then filled in parallel (using the common
+   *  ForkJoin pool) before the map is returned, so no resizing happens
+   *  during the load.  If a key appears more than once, which of its values
+   *  ends up in the map is unspecified.
+   *  @param keys the keys
+   *  @param vals the matching values, none null
+   *  @return a new map holding the given mappings
+   *  @throws IllegalArgumentException if the arrays differ in length
+   *  @throws NullPointerException if any value is null */
+  public static <V> NonBlockingHashMapLong<V> bulkLoad( final long[] keys, final V[] vals ) {
+    if( keys.length != vals.length ) throw new IllegalArgumentException();
+    final NonBlockingHashMapLong<V> map = new NonBlockingHashMapLong<V>();
+    map.presize(keys.length);
+    java.util.stream.IntStream.range(0,keys.length).parallel().forEach(i -> map.put(keys[i],vals[i]));
+    return map;
+  }
+
   // --- Snapshot ------------------------------------------------------------
+  private final CHM snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      CHM topchm = _chm;
+      if( topchm._newchm == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topchm;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(true);
+    }
+  }
+
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
     final CHM _sschm;
     public SnapshotV() { 
-      CHM topchm;
-      while( true ) {           // Verify no table-copy-in-progress
-        topchm = _chm;
-        if( topchm._newchm == null ) // No table-copy-in-progress
-          break; 
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(true);
-      }
-      // The "linearization point" for the iteration.  Every key in this table
-      // will be visited, but keys added later might be skipped or even be
-      // added to a following table (also not iterated over).
-      _sschm = topchm; 
+      _sschm = snapshot();
       // Warm-up the iterator
       _idx = -1;
       next(); 
     }
-    int length() { return _sschm._keys.length; }
-    long key(final int idx) { return _sschm._keys[idx]; }
-    private int _idx;           // -2 for NO_KEY, -1 for CHECK_NEW_TABLE_LONG, 0-keys.length
+    long length() { return _sschm._len; }
+    long key(final long idx) { return _sschm.key(idx); }
+    private long _idx;          // -2 for NO_KEY, -1 for CHECK_NEW_TABLE_LONG, 0-keys.length
     private long  _nextK, _prevK; // Last 2 keys found
     private TypeV _nextV, _prevV; // Last 2 values found
     public boolean hasNext() { return _nextV != null; }
@@ -1052,6 +1581,7 @@ public class NonBlockingHashMapLong<TypeV>
       public int     size    (          ) { return NonBlockingHashMapLong.this.size    ( ); }
       public boolean contains( Object v ) { return NonBlockingHashMapLong.this.containsValue(v); }
       public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      public Spliterator<TypeV> spliterator() { return new SnapshotSV(); }
     };
   }
 
@@ -1103,6 +1633,7 @@ public class NonBlockingHashMapLong<TypeV>
       public boolean contains( Object k ) { return NonBlockingHashMapLong.this.containsKey(k); }
       public boolean remove  ( Object k ) { return NonBlockingHashMapLong.this.remove  (k) != null; }
       public IteratorLong iterator()    { return new IteratorLong(); }
+      public Spliterator<Long> spliterator() { return new SnapshotSK(); }
     };
   }
 
@@ -1164,9 +1695,221 @@ public class NonBlockingHashMapLong<TypeV>
         return v.equals(e.getValue());
       }
       public Iterator<Map.Entry<Long,TypeV>> iterator() { return new SnapshotE(); }
+      public Spliterator<Map.Entry<Long,TypeV>> spliterator() { return new SnapshotSE(); }
     };
   }
 
+  // --- Spliterator --------------------------------------------------------
+  // Splittable version of the snapshot iteration, for parallel streams.  The
+  // slot range of the snapshotted CHM is split in halves.  As with SnapshotV,
+  // index -1 stands for the special NO_KEY, which is always in the lowest
+  // half.  Size estimates start from the map size and halve on each split.
+  private abstract class SnapshotS<T> implements Spliterator<T> {
+    final CHM _sschm;
+    private long _idx, _end;    // Slot range still to visit, -1 for NO_KEY
+    private long _est;          // Estimated count of live keys in the range
+    SnapshotS( ) { _sschm = snapshot(); _idx = -1; _end = _sschm._len; _est = estimatedSize(); }
+    SnapshotS( SnapshotS<T> ss, long idx, long end ) { _sschm = ss._sschm; _idx = idx; _end = end; _est = ss._est; }
+    abstract T make( long K, TypeV V );
+    abstract SnapshotS<T> split( long idx, long end );
+    public boolean tryAdvance( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      while( _idx < _end ) {
+        final long K = _idx == -1 ? NO_KEY : _sschm.key(_idx);
+        final boolean nokey = _idx++ == -1;
+        final TypeV V;
+        if( (nokey || K != NO_KEY) && (V=get(K)) != null ) {
+          action.accept(make(K,V));
+          return true;
+        }
+      }
+      return false;
+    }
+    public void forEachRemaining( Consumer<? super T> action ) {
+      while( tryAdvance(action) ) ;
+    }
+    public Spliterator<T> trySplit() {
+      final long lo = _idx, mid = (lo+_end)>>>1;
+      if( mid <= lo ) return null; // Too small to split
+      _est >>>= 1;
+      _idx = mid;               // This half keeps the upper slots
+      return split(lo,mid);
+    }
+    public long estimateSize() { return _est; }
+    public int characteristics() { return CONCURRENT | DISTINCT | NONNULL; }
+  }
+  private class SnapshotSK extends SnapshotS<Long> {
+    SnapshotSK() { }
+    SnapshotSK( SnapshotS<Long> ss, long idx, long end ) { super(ss,idx,end); }
+    Long make( long K, TypeV V ) { return K; }
+    SnapshotS<Long> split( long idx, long end ) { return new SnapshotSK(this,idx,end); }
+  }
+  private class SnapshotSV extends SnapshotS<TypeV> {
+    SnapshotSV() { }
+    SnapshotSV( SnapshotS<TypeV> ss, long idx, long end ) { super(ss,idx,end); }
+    TypeV make( long K, TypeV V ) { return V; }
+    SnapshotS<TypeV> split( long idx, long end ) { return new SnapshotSV(this,idx,end); }
+  }
+  private class SnapshotSE extends SnapshotS<Map.Entry<Long,TypeV>> {
+    SnapshotSE() { }
+    SnapshotSE( SnapshotS<Map.Entry<Long,TypeV>> ss, long idx, long end ) { super(ss,idx,end); }
+    Map.Entry<Long,TypeV> make( long K, TypeV V ) { return new NBHMLEntry(K,V); }
+    SnapshotS<Map.Entry<Long,TypeV>> split( long idx, long end ) { return new SnapshotSE(this,idx,end); }
+  }
+
+  // --- Bulk operations -----------------------------------------------------
+  // ConcurrentHashMap-style bulk operations, run by ForkJoin tasks over
+  // disjoint slot ranges of a snapshotted CHM.  See the same operations on
+  // NonBlockingHashMap.  As with SnapshotV, index -1 stands for the special
+  // NO_KEY, and it always lands in the lowest range.
+
+  /** Performs the given action for each (key, value).  Keys are
+   *  <strong>auto-boxed</strong>.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param action the action */
+  public void forEach( long parallelismThreshold, final BiConsumer<? super Long,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    bulk(parallelismThreshold, new BulkOp<Object>() {
+        public Object leaf( CHM sschm, long lo, long hi ) {
+          for( long i=lo; i<hi; i++ ) {
+            final long K = snapshot_key(sschm,i);
+            final Object V = snapshot_val(sschm,i,K);
+            if( V != null ) action.accept(K,(TypeV)V);
+          }
+          return null;
+        }
+        public Object combine( Object a, Object b ) { return null; }
+      });
+  }
+
+  /** Returns a non-null result from applying the given search function on
+   *  each (key, value), or null if none.  Upon success, further element
+   *  processing is suppressed and the results of any other parallel
+   *  invocations of the search function are ignored.  Keys are
+   *  <strong>auto-boxed</strong>.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param searchFunction a function returning a non-null result on success, else null
+   *  @return a non-null result from applying the given search function on
+   *  each (key, value), or null if none */
+  public <U> U search( long parallelismThreshold, final BiFunction<? super Long,? super TypeV,? extends U> searchFunction ) {
+    if( searchFunction == null ) throw new NullPointerException();
+    final AtomicReference<U> result = new AtomicReference<U>();
+    return bulk(parallelismThreshold, new BulkOp<U>() {
+        public U leaf( CHM sschm, long lo, long hi ) {
+          for( long i=lo; i<hi && result.get() == null; i++ ) {
+            final long K = snapshot_key(sschm,i);
+            final Object V = snapshot_val(sschm,i,K);
+            final U u;
+            if( V != null && (u=searchFunction.apply(K,(TypeV)V)) != null ) {
+              result.compareAndSet(null,u); // First one found wins
+              break;
+            }
+          }
+          return result.get();
+        }
+        public U combine( U a, U b ) { return result.get(); }
+      });
+  }
+
+  /** Returns the result of accumulating all values using the given reducer
+   *  to combine values, or null if none.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating all values */
+  public TypeV reduceValues( long parallelismThreshold, final BiFunction<? super TypeV,? super TypeV,? extends TypeV> reducer ) {
+    if( reducer == null ) throw new NullPointerException();
+    return bulk(parallelismThreshold, new BulkOp<TypeV>() {
+        public TypeV leaf( CHM sschm, long lo, long hi ) {
+          TypeV r = null;
+          for( long i=lo; i<hi; i++ ) {
+            final Object V = snapshot_val(sschm,i,snapshot_key(sschm,i));
+            if( V != null ) r = (r == null) ? (TypeV)V : reducer.apply(r,(TypeV)V);
+          }
+          return r;
+        }
+        public TypeV combine( TypeV a, TypeV b ) { return a == null ? b : (b == null ? a : reducer.apply(a,b)); }
+      });
+  }
+
+  /** Returns the result of accumulating the given transformation of all
+   *  keys using the given reducer to combine values, and the given basis as
+   *  an identity value.  Keys are <strong>not</strong> auto-boxed.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *  for this operation to be executed in parallel
+   *  @param transformer a function returning the transformation for an element
+   *  @param basis the identity (initial default value) for the reduction
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating the given transformation of all keys */
+  public long reduceKeysToLong( long parallelismThreshold, final LongUnaryOperator transformer, final long basis, final LongBinaryOperator reducer ) {
+    if( transformer == null || reducer == null ) throw new NullPointerException();
+    return bulk(parallelismThreshold, new BulkOp<Long>() {
+        public Long leaf( CHM sschm, long lo, long hi ) {
+          long r = basis;
+          for( long i=lo; i<hi; i++ ) {
+            final long K = snapshot_key(sschm,i);
+            if( snapshot_val(sschm,i,K) != null ) r = reducer.applyAsLong(r,transformer.applyAsLong(K));
+          }
+          return r;             // Boxed once per leaf task, not per key
+        }
+        public Long combine( Long a, Long b ) { return reducer.applyAsLong(a,b); }
+      });
+  }
+
+  // The key in slot idx of a snapshot table; slot -1 holds NO_KEY.
+  private static final long snapshot_key( final CHM sschm, final long idx ) {
+    return idx == -1 ? NO_KEY : sschm.key(idx);
+  }
+  // The live value for key K in slot idx of a snapshot table, or null.  Read
+  // straight from the snapshot unless a resize started after the snapshot
+  // has boxed the value, in which case do an official 'get'.
+  private final Object snapshot_val( final CHM sschm, final long idx, final long K ) {
+    if( idx == -1 ) return get(NO_KEY);
+    if( K == NO_KEY ) return null;
+    final Object V = sschm.val(idx);
+    // Volatile read before handing out the value; see get_impl
+    final CHM newchm = sschm._newchm;
+    if( V instanceof Prime ) return get(K);
+    return V == TOMBSTONE ? null : V;
+  }
+
+  // A bulk operation: the work on a range of snapshot slots, and the
+  // combining of results from two ranges.
+  private interface BulkOp<R> {
+    R leaf( CHM sschm, long lo, long hi );
+    R combine( R a, R b );
+  }
+
+  // Split the slot range in halves until down to the batch size, then run
+  // the leaf operation.
+  private static final class BulkTask<R> extends RecursiveTask<R> {
+    final BulkOp<R> _op;
+    final CHM _sschm;
+    final long _lo, _hi, _batch;
+    BulkTask( BulkOp<R> op, CHM sschm, long lo, long hi, long batch ) {
+      _op = op; _sschm = sschm; _lo = lo; _hi = hi; _batch = batch;
+    }
+    protected R compute() {
+      if( _hi-_lo <= _batch ) return _op.leaf(_sschm,_lo,_hi);
+      final long mid = (_lo+_hi)>>>1;
+      final BulkTask<R> left = new BulkTask<R>(_op,_sschm,_lo,mid,_batch);
+      left.fork();
+      final R right = new BulkTask<R>(_op,_sschm,mid,_hi,_batch).compute();
+      return _op.combine(left.join(),right);
+    }
+  }
+
+  private final <R> R bulk( long parallelismThreshold, BulkOp<R> op ) {
+    final CHM sschm = snapshot();
+    final long len = sschm._len;
+    final long batch = NonBlockingHashMap.bulk_batch(parallelismThreshold,estimatedSize(),len);
+    return batch >= len
+      ? op.leaf(sschm,-1,len)   // Small map; just do it in this thread
+      : ForkJoinPool.commonPool().invoke(new BulkTask<R>(op,sschm,-1,len,batch));
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHML to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
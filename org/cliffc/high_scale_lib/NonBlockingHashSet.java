@@ -47,10 +47,30 @@ public class NonBlockingHashSet<E> extends AbstractSet<E> implements Serializabl
    * @return count of elements.
    */
   public int     size       (                    ) { return _map.size(); }
+  /** 
+   * Count of elements, summing every stripe of the size counter; see
+   * {@link NonBlockingHashMap#exactSize}.
+   * @return count of elements.
+   */
+  public long    exactSize  (                    ) { return _map.exactSize(); }
+  /** 
+   * Cheap estimate of the count of elements, which may miss the latest
+   * updates; see {@link NonBlockingHashMap#estimatedSize}.
+   * @return estimated count of elements.
+   */
+  public long    estimatedSize(                  ) { return _map.estimatedSize(); }
+  /** 
+   * True if the set has no elements; usually without summing the size
+   * counter, see {@link NonBlockingHashMap#isEmpty}.
+   * @return <tt>size() == 0</tt>
+   */
+  public boolean isEmpty    (                    ) { return _map.isEmpty(); }
   /** Empty the set. */
   public void    clear      (                    ) { _map.clear(); }
 
   public Iterator<E>iterator(                    ) { return _map.keySet().iterator(); }
+  /** A splittable, concurrent view of the set, for parallel streams. */
+  public Spliterator<E> spliterator(             ) { return _map.keySet().spliterator(); }
 
   // ---
 
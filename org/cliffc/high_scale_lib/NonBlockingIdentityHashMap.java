@@ -6,11 +6,10 @@
 package org.cliffc.high_scale_lib;
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.*;
-import sun.misc.Unsafe;
+import java.util.function.Consumer;
 
 /**
  * A lock-free alternate implementation of {@link java.util.concurrent.ConcurrentHashMap}
@@ -78,27 +77,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
   private static final long serialVersionUID = 1234123412341234123L;
 
-  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
-
-  // --- Bits to allow Unsafe access to arrays
-  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
-  private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
-  private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
-  private static long rawIndex(final Object[] ary, final int idx) {
-    assert idx >= 0 && idx < ary.length;
-    return _Obase + idx * _Oscale;
-  }
-
-  // --- Setup to use Unsafe
-  private static final long _kvs_offset;
-  static {                      // <clinit>
-    Field f = null;
-    try { f = NonBlockingHashMap.class.getDeclaredField("_kvs"); }
-    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
-    _kvs_offset = _unsafe.objectFieldOffset(f);
-  }
+  // --- Setup to CAS the _kvs field; see UtilAccess
+  private static final UtilAccess.RefField _kvs_field = new UtilAccess.RefField(NonBlockingIdentityHashMap.class,"_kvs");
   private final boolean CAS_kvs( final Object[] oldkvs, final Object[] newkvs ) {
-    return _unsafe.compareAndSwapObject(this, _kvs_offset, oldkvs, newkvs );
+    return _kvs_field.CAS(this, oldkvs, newkvs );
   }
 
   // --- Adding a 'prime' bit onto Values via wrapping with a junk wrapper class
@@ -137,6 +119,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
   // Time since last resize
   private transient long _last_resize_milli;
 
+  // The "how big?" heuristics.  Not final, so that readObject can default it
+  // for streams written before it existed.
+  private ResizePolicy _policy;
+
   // --- Minimum table size ----------------
   // Pick size 8 K/V pairs, which turns into (8*2+2)*4+12 = 84 bytes on a
   // standard 32-bit HotSpot, and (8*2+2)*8+12 = 156 bytes on 64-bit Azul.
@@ -158,6 +144,13 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
   // updates can happen to the old table (and since the K/V pair was deleted
   // nothing was copied to the new table).
   private static final Prime TOMBPRIME = new Prime(TOMBSTONE);
+  // Prime'd version of a value parked in the new table's staging array.  A
+  // table copy freezes a live value by CASing it to STAGED rather than to a
+  // freshly allocated box; the value itself is found in the staging array.
+  private static final Prime STAGED = new Prime(null);
+  // A table's staging array when it has none: a first table, a shrinking
+  // copy, or a copy already done.
+  private static final Object[] NO_STAGING = new Object[0];
 
   // --- key,val -------------------------------------------------------------
   // Access K,V for a given idx
@@ -169,10 +162,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
   private static final Object key(Object[] kvs,int idx) { return kvs[(idx<<1)+2]; }
   private static final Object val(Object[] kvs,int idx) { return kvs[(idx<<1)+3]; }
   private static final boolean CAS_key( Object[] kvs, int idx, Object old, Object key ) {
-    return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+2), old, key );
+    return UtilAccess.CAS( kvs, (idx<<1)+2, old, key );
   }
   private static final boolean CAS_val( Object[] kvs, int idx, Object old, Object val ) {
-    return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+3), old, val );
+    return UtilAccess.CAS( kvs, (idx<<1)+3, old, val );
   }
 
 
@@ -192,7 +185,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         Object V = val(kvs,i);
         Object U = Prime.unbox(V);
         String p = (V==U) ? "" : "prime_";
-        String US = (U == TOMBSTONE) ? "tombstone" : U.toString();
+        String US = (U == TOMBSTONE) ? "tombstone" : (U == null ? "staged" : U.toString());
         System.out.println(""+i+" ("+KS+","+p+US+")");
       }
     }
@@ -230,14 +223,34 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Count of, and total time spent by, threads parked in a resize waiting for
+  // another thread to allocate the new table.
+  private transient volatile long _resize_waits, _resize_wait_nanos;
+  private static final AtomicLongFieldUpdater<NonBlockingIdentityHashMap> _resizeWaitsUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingIdentityHashMap.class, "_resize_waits");
+  private static final AtomicLongFieldUpdater<NonBlockingIdentityHashMap> _resizeWaitNanosUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingIdentityHashMap.class, "_resize_wait_nanos");
+  private final void record_resize_wait( long nanos ) {
+    _resizeWaitsUpdater.addAndGet(this,1);
+    _resizeWaitNanosUpdater.addAndGet(this,nanos);
+  }
+  /** Count of times a thread waited for another thread to allocate a new,
+   *  larger table.  Only large tables (a megabyte or more) are waited for.
+   *  @return the count of resize waits since the map was created */
+  public long resizeWaits() { return _resize_waits; }
+  /** Total time threads spent waiting for another thread to allocate a new,
+   *  larger table.
+   *  @return nanoseconds of resize waits since the map was created */
+  public long resizeWaitNanos() { return _resize_wait_nanos; }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
   // the reprobe limit on a 'get' call acts as a 'miss'; on a 'put' call it
   // can trigger a table resize.  Several places must have exact agreement on
   // what the reprobe_limit is, so we share it here.
-  private static final int reprobe_limit( int len ) {
-    return REPROBE_LIMIT + (len>>2);
+  private final int reprobe_limit( int len ) {
+    return (int)_policy.reprobe_limit(len);
   }
 
   // --- NonBlockingHashMap --------------------------------------------------
@@ -252,15 +265,26 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
    *  appropriate size.  Large numbers here when used with a small count of
    *  elements will sacrifice space for a small amount of time gained.  The
    *  initial size will be rounded up internally to the next larger power of 2. */
-  public NonBlockingIdentityHashMap( final int initial_sz ) { initialize(initial_sz); }
+  public NonBlockingIdentityHashMap( final int initial_sz ) { this(initial_sz,ResizePolicy.DEFAULT); }
+
+  /** Create a new NonBlockingIdentityHashMap with the given resize
+   *  heuristics; see {@link ResizePolicy}.
+   *  @param initial_sz room for this many entries before resizing
+   *  @param policy the resize heuristics */
+  public NonBlockingIdentityHashMap( final int initial_sz, final ResizePolicy policy ) {
+    if( policy == null ) throw new NullPointerException();
+    _policy = policy;
+    initialize(initial_sz);
+  }
   private final void initialize( int initial_sz ) {
     if( initial_sz < 0 ) throw new IllegalArgumentException();
+    if( _policy == null ) _policy = ResizePolicy.DEFAULT; // Stream from before policies
     int i;                      // Convert to next largest power-of-2
     if( initial_sz > 1024*1024 ) initial_sz = 1024*1024;
-    for( i=MIN_SIZE_LOG; (1<<i) < (initial_sz<<2); i++ ) ;
+    for( i=MIN_SIZE_LOG; (1L<<i) < _policy.padded(initial_sz); i++ ) ;
     // Double size for K,V pairs, add 1 for CHM and 1 for hashes
     _kvs = new Object[((1<<i)<<1)+2];
-    _kvs[0] = new CHM(new Counter()); // CHM in slot 0
+    _kvs[0] = new CHM(new Counter(),false); // CHM in slot 0
     _kvs[1] = new int[1<<i];          // Matching hash entries
     _last_resize_milli = System.currentTimeMillis();
   }
@@ -478,8 +502,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     while( true ) {
       // Probe table.  Each read of 'val' probably misses in cache in a big
       // table; hopefully the read of 'key' then hits in cache.
-      final Object K = key(kvs,idx); // Get key   before volatile read, could be null
-      final Object V = val(kvs,idx); // Get value before volatile read, could be null or Tombstone or Prime
+      final Object K = UtilAccess.getAcquire(kvs,(idx<<1)+2); // Get key   before volatile read, could be null
+      final Object V = UtilAccess.getAcquire(kvs,(idx<<1)+3); // Get value before volatile read, could be null or Tombstone or Prime
       if( K == null ) return null;   // A clear miss
 
       // We need a volatile-read here to preserve happens-before semantics on
@@ -505,8 +529,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // get and put must have the same key lookup logic!  But only 'put'
       // needs to force a table-resize for a too-long key-reprobe sequence.
       // Check for too-many-reprobes on get - and flip to the new table.
-      if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes
-          key == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
+      if( ++reprobe_cnt >= topmap.reprobe_limit(len) || // too many probes
+          K == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
         return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,fullhash); // Retry in the new table
 
       idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
@@ -575,8 +599,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // get and put must have the same key lookup logic!  Lest 'get' give
       // up looking too soon.
       //topmap._reprobes.add(1);
-      if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes or
-          key == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
+      if( ++reprobe_cnt >= topmap.reprobe_limit(len) || // too many probes or
+          K == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
         // We simply must have a new table to do a 'put'.  At this point a
         // 'get' will also go to the new table (if any).  We do not need
         // to claim a key slot (indeed, we cannot find a free one to claim!).
@@ -602,7 +626,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     // time we get here).
     if( newkvs == null &&       // New table-copy already spotted?
         // Once per fresh key-insert check the hard way
-        ((V == null && chm.tableFull(reprobe_cnt,len)) ||
+        ((V == null && chm.tableFull(topmap,reprobe_cnt,len)) ||
          // Or we found a Prime, but the JMM allowed reordering such that we
          // did not spot the new table (very rare race here: the writing
          // thread did a CAS of _newkvs then a store of a Prime.  This thread
@@ -716,7 +740,9 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     // throttling attempts to create a new table.  I cannot really block here
     // (lest I lose the non-blocking property) but late-arriving threads can
     // give the initial resizing thread a little time to allocate the initial
-    // new table.  The Right Long Term Fix here is to use array-lets and
+    // new table.  They park on _wait, and the winner wakes them as soon as
+    // the new table is installed; the timeout only matters if the winner
+    // stalls.  The Right Long Term Fix here is to use array-lets and
     // incrementally create the new very large array.  In C I'd make the array
     // with malloc (which would mmap under the hood) which would only eat
     // virtual-address and not real memory - and after Somebody wins then we
@@ -725,12 +751,34 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     volatile long _resizers; // count of threads attempting an initial resize
     private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
       AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+    final ResizeWait _wait = new ResizeWait();
+
+    // ---
+    // Values of the old table, parked here while being copied into this one.
+    // One slot per old-table slot; each slot is written at most once, by the
+    // first copy_slot to stage a value there.  Null until then, so threads
+    // losing the race to install this table allocate none; NO_STAGING if
+    // there is none, and once the copy is done.  See NonBlockingHashMap.
+    volatile Object[] _staged;
+    private static final AtomicReferenceFieldUpdater<CHM,Object[]> _stagedUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,Object[].class, "_staged");
+    // The staging array for an old table of 'oldlen' slots, installing it
+    // if need be; null if there is none.
+    final Object[] staging( final int oldlen ) {
+      Object[] st = _staged;
+      if( st == null ) {
+        _stagedUpdater.compareAndSet(this,null,new Object[oldlen]);
+        st = _staged;
+      }
+      return st == NO_STAGING ? null : st;
+    }
 
     // ---
     // Simple constructor
-    CHM( Counter size ) {
+    CHM( Counter size, boolean staging ) {
       _size = size;
       _slots= new Counter();
+      _staged = staging ? null : NO_STAGING;
     }
 
     // --- tableFull ---------------------------------------------------------
@@ -742,12 +790,12 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     // current table, while a 'get' has decided the same key cannot be in this
     // table because of too many reprobes.  The invariant is:
     //   slots.estimate_sum >= max_reprobe_cnt >= reprobe_limit(len)
-    private final boolean tableFull( int reprobe_cnt, int len ) {
+    private final boolean tableFull( NonBlockingIdentityHashMap topmap, int reprobe_cnt, int len ) {
       return
         // Do the cheap check first: we allow some number of reprobes always
-        reprobe_cnt >= REPROBE_LIMIT &&
-        // More expensive check: see if the table is > 1/4 full.
-        _slots.estimate_get() >= reprobe_limit(len);
+        reprobe_cnt >= topmap._policy.maxReprobes() &&
+        // More expensive check: see if the table is past the load factor.
+        _slots.estimate_get() >= topmap.reprobe_limit(len);
     }
 
     // --- resize ------------------------------------------------------------
@@ -767,35 +815,30 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // No copy in-progress, so start one.  First up: compute new table size.
       int oldlen = len(kvs);    // Old count of K,V pairs allowed
       int sz = size();          // Get current table count of active K,V pairs
-      int newsz = sz;           // First size estimate
-
       // Heuristic to determine new size.  We expect plenty of dead-slots-with-keys
-      // and we need some decent padding to avoid endless reprobing.
-      if( sz >= (oldlen>>2) ) { // If we are >25% full of keys then...
-        newsz = oldlen<<1;      // Double size
-        if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-          newsz = oldlen<<2;    // Double double size
-      }
-      // This heuristic in the next 2 lines leads to a much denser table
-      // with a higher reprobe rate
-      //if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-      //  newsz = oldlen<<1;    // Double size
+      // and we need some decent padding to avoid endless reprobing.  Live keys
+      // past the load factor grow the table (by the growth factor, or by its
+      // square past twice the load factor).
+      final ResizePolicy policy = topmap._policy;
+      long newsz = policy.grown(sz,oldlen);
 
-      // Last (re)size operation was very recent?  Then double again; slows
+      // Last (re)size operation was very recent?  Then grow again; slows
       // down resize operations for tables subject to a high key churn rate.
       long tm = System.currentTimeMillis();
       long q=0;
+      final boolean recent = policy.recent(tm,topmap._last_resize_milli);
       if( newsz <= oldlen && // New table would shrink or hold steady?
-          tm <= topmap._last_resize_milli+10000 && // Recent resize (less than 1 sec ago)
+          recent &&
           (q=_slots.estimate_get()) >= (sz<<1) ) // 1/2 of keys are dead?
-        newsz = oldlen<<1;      // Double the existing size
+        newsz = (long)oldlen*policy.growthFactor(); // Grow the existing size
 
-      // Do not shrink, ever
-      if( newsz < oldlen ) newsz = oldlen;
+      // Shrink only if the table is mostly dead (below the shrink factor) and
+      // has not been resized recently, else hold steady
+      if( newsz < oldlen ) newsz = !recent && policy.sparse(sz,oldlen) ? policy.padded(sz) : oldlen;
 
       // Convert to power-of-2
       int log2;
-      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+      for( log2=MIN_SIZE_LOG; (1L<<log2) < newsz && log2 < 30; log2++ ) ; // Compute log2 of size
 
       // Now limit the number of threads actually allocating memory to a
       // handful - lest we have 750 threads all trying to allocate a giant
@@ -811,12 +854,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         newkvs = _newkvs;        // Between dorking around, another thread did it
         if( newkvs != null )     // See if resize is already in progress
           return newkvs;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
+        // Wait, with a timeout, for the 2 guys already trying to make the
+        // table; whoever installs it wakes us right away.
+        final long nanos = _wait.await(8L*megs*1000000L, () -> _newkvs != null);
+        if( nanos > 0 ) topmap.record_resize_wait(nanos);
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -826,7 +867,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
       // Double size for K,V pairs, add 1 for CHM
       newkvs = new Object[((1<<log2)<<1)+2]; // This can get expensive for big arrays
-      newkvs[0] = new CHM(_size); // CHM in slot 0
+      newkvs[0] = new CHM(_size,(1<<log2) >= oldlen); // CHM in slot 0; stage unless shrinking
       newkvs[1] = new int[1<<log2]; // hashes in slot 1
 
       // Another check after the slow allocation
@@ -836,7 +877,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // The new table must be CAS'd in so only 1 winner amongst duplicate
       // racing resizing threads.  Extra CHM's will be GC'd.
       if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
-        //notifyAll();            // Wake up any sleepers
+        _wait.release();        // Wake up any waiters
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
         //if( System.out != null ) System.out.print("["+log2);
@@ -960,6 +1001,9 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         //System.out.print(" "+(copyDone+workdone)*100/oldlen+"%"+"_"+(_copyIdx*100/oldlen)+"%");
       }
 
+      // Every slot copied: drop the staging array, lest it keep old values alive
+      if( copyDone+workdone == oldlen ) chm(_newkvs)._staged = NO_STAGING;
+
       // Check for copy being ALL done, and promote.  Note that we might have
       // nested in-progress copies and manage to finish a nested copy before
       // finishing the top-level copy.  We only promote top-level copies.
@@ -997,10 +1041,22 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
       // ---
       // Prevent new values from appearing in the old table.
-      // Box what we see in the old table, to prevent further updates.
+      // Box what we see in the old table, to prevent further updates.  A live
+      // value is first staged in the new table's staging array and frozen
+      // with the shared STAGED box; this does not allocate.  The staged value
+      // never changes, so if a racing put replaced the value after it was
+      // staged, fall back to a real box.
+      Object[] staged = null;
       Object oldval = val(oldkvs,idx); // Read OLD table
       while( !(oldval instanceof Prime) ) {
-        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+        final Prime box;
+        if( oldval == null || oldval == TOMBSTONE ) box = TOMBPRIME;
+        else {
+          if( staged == null ) staged = chm(newkvs).staging(len(oldkvs));
+          if( staged != null && UtilAccess.getVolatile(staged,idx) == null )
+            UtilAccess.CAS(staged,idx,null,oldval);
+          box = staged != null && UtilAccess.getVolatile(staged,idx) == oldval ? STAGED : new Prime(oldval);
+        }
         if( CAS_val(oldkvs,idx,oldval,box) ) { // CAS down a box'd version of oldval
           // If we made the Value slot hold a TOMBPRIME, then we both
           // prevented further updates here but also the (absent)
@@ -1027,6 +1083,11 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // new table - somebody else should have recorded the null-not_null
       // transition in this copy.
       Object old_unboxed = ((Prime)oldval)._V;
+      if( oldval == STAGED ) {  // Staged before it was frozen
+        staged = chm(newkvs)._staged; // Installed before any STAGED box
+        if( staged == NO_STAGING ) return false; // Copy all done and staging dropped
+        while( (old_unboxed = UtilAccess.getVolatile(staged,idx)) == null ) ; // Spin until visible
+      }
       assert old_unboxed != TOMBSTONE;
       boolean copied_into_new = (putIfMatch(topmap, newkvs, key, old_unboxed, null) == null);
 
@@ -1046,23 +1107,25 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
   // --- Snapshot ------------------------------------------------------------
   // The main class for iterating over the NBHM.  It "snapshots" a clean
   // view of the K/V array.
+  private final Object[] snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      Object[] topkvs = _kvs;
+      CHM topchm = chm(topkvs);
+      if( topchm._newkvs == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topkvs;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(this,topkvs,true);
+    }
+  }
+
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
     final Object[] _sskvs;
     public SnapshotV() {
-      while( true ) {           // Verify no table-copy-in-progress
-        Object[] topkvs = _kvs;
-        CHM topchm = chm(topkvs);
-        if( topchm._newkvs == null ) { // No table-copy-in-progress
-          // The "linearization point" for the iteration.  Every key in this
-          // table will be visited, but keys added later might be skipped or
-          // even be added to a following table (also not iterated over).
-          _sskvs = topkvs;
-          break;
-        }
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(NonBlockingIdentityHashMap.this,topkvs,true);
-      }
+      _sskvs = snapshot();
       // Warm-up the iterator
       next();
     }
@@ -1129,6 +1192,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       @Override public int     size    (          ) { return NonBlockingIdentityHashMap.this.size         ( ); }
       @Override public boolean contains( Object v ) { return NonBlockingIdentityHashMap.this.containsValue(v); }
       @Override public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      @Override public Spliterator<TypeV> spliterator() { return new SnapshotSV(); }
     };
   }
 
@@ -1169,6 +1233,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       @Override public boolean contains( Object k ) { return NonBlockingIdentityHashMap.this.containsKey(k); }
       @Override public boolean remove  ( Object k ) { return NonBlockingIdentityHashMap.this.remove  (k) != null; }
       @Override public Iterator<TypeK> iterator()   { return new SnapshotK(); }
+      @Override public Spliterator<TypeK> spliterator() { return new SnapshotSK(); }
     };
   }
 
@@ -1230,9 +1295,68 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         return v.equals(e.getValue());
       }
       @Override public Iterator<Map.Entry<TypeK,TypeV>> iterator() { return new SnapshotE(); }
+      @Override public Spliterator<Map.Entry<TypeK,TypeV>> spliterator() { return new SnapshotSE(); }
     };
   }
 
+  // --- Spliterator --------------------------------------------------------
+  // Splittable version of the snapshot iteration, for parallel streams.  The
+  // snapshot is taken the same way as for the iterators, then the range of
+  // snapshotted slots is split in halves; each half looks up the live value
+  // for its keys with a 'get' exactly as SnapshotV does.  Size estimates
+  // start from the map size and are halved on each split.
+  private abstract class SnapshotS<T> implements Spliterator<T> {
+    final Object[] _sskvs;
+    private int _idx, _end;     // Slot range still to visit
+    private long _est;          // Estimated count of live keys in the range
+    SnapshotS( ) { _sskvs = snapshot(); _end = len(_sskvs); _est = size(); }
+    SnapshotS( SnapshotS<T> ss, int idx, int end ) { _sskvs = ss._sskvs; _idx = idx; _end = end; _est = ss._est; }
+    abstract T make( Object K, Object V );
+    abstract SnapshotS<T> split( int idx, int end );
+    public boolean tryAdvance( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      while( _idx < _end ) {
+        final Object K = key(_sskvs,_idx++);
+        final Object V;
+        if( K != null && K != TOMBSTONE && (V=get(K)) != null ) {
+          action.accept(make(K,V));
+          return true;
+        }
+      }
+      return false;
+    }
+    public void forEachRemaining( Consumer<? super T> action ) {
+      while( tryAdvance(action) ) ;
+    }
+    public Spliterator<T> trySplit() {
+      final int lo = _idx, mid = (lo+_end)>>>1;
+      if( mid <= lo ) return null; // Too small to split
+      _est >>>= 1;
+      _idx = mid;               // This half keeps the upper slots
+      return split(lo,mid);
+    }
+    public long estimateSize() { return _est; }
+    public int characteristics() { return CONCURRENT | DISTINCT | NONNULL; }
+  }
+  private class SnapshotSK extends SnapshotS<TypeK> {
+    SnapshotSK() { }
+    SnapshotSK( SnapshotS<TypeK> ss, int idx, int end ) { super(ss,idx,end); }
+    TypeK make( Object K, Object V ) { return (TypeK)K; }
+    SnapshotS<TypeK> split( int idx, int end ) { return new SnapshotSK(this,idx,end); }
+  }
+  private class SnapshotSV extends SnapshotS<TypeV> {
+    SnapshotSV() { }
+    SnapshotSV( SnapshotS<TypeV> ss, int idx, int end ) { super(ss,idx,end); }
+    TypeV make( Object K, Object V ) { return (TypeV)V; }
+    SnapshotS<TypeV> split( int idx, int end ) { return new SnapshotSV(this,idx,end); }
+  }
+  private class SnapshotSE extends SnapshotS<Map.Entry<TypeK,TypeV>> {
+    SnapshotSE() { }
+    SnapshotSE( SnapshotS<Map.Entry<TypeK,TypeV>> ss, int idx, int end ) { super(ss,idx,end); }
+    Map.Entry<TypeK,TypeV> make( Object K, Object V ) { return new NBHMEntry((TypeK)K,(TypeV)V); }
+    SnapshotS<Map.Entry<TypeK,TypeV>> split( int idx, int end ) { return new SnapshotSE(this,idx,end); }
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHM to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
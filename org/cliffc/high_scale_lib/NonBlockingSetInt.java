@@ -6,11 +6,9 @@
 package org.cliffc.high_scale_lib;
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
-import sun.misc.Unsafe;
 
 /**
  * A multi-threaded bit-vector set, implemented as an array of primitive
@@ -38,20 +36,11 @@ import sun.misc.Unsafe;
 
 public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializable {
   private static final long serialVersionUID = 1234123412341234123L;
-  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
 
   // --- Bits to allow atomic update of the NBSI
-  private static final long _nbsi_offset;
-  static {                      // <clinit>
-    Field f = null;
-    try { 
-      f = NonBlockingSetInt.class.getDeclaredField("_nbsi"); 
-    } catch( java.lang.NoSuchFieldException e ) {
-    } 
-    _nbsi_offset = _unsafe.objectFieldOffset(f);
-  }
+  private static final UtilAccess.RefField _nbsi_field = new UtilAccess.RefField(NonBlockingSetInt.class,"_nbsi");
   private final boolean CAS_nbsi( NBSI old, NBSI nnn ) {
-    return _unsafe.compareAndSwapObject(this, _nbsi_offset, old, nnn );
+    return _nbsi_field.CAS(this, old, nnn );
   }
 
   // The actual Set of Joy, which changes during a resize event.  The
@@ -126,13 +115,233 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
    * @return count of elements.
    */
   public int     size    (             ) { return _nbsi.size( );                   }
+  /** 
+   * Count of elements, summing every stripe of the size counter.  The count
+   * is exact while the set is not being updated, and always includes the
+   * calling thread's own updates; but under heavy concurrent updates the
+   * counter has many stripes, and summing them all is costly.
+   * @return count of elements.
+   */
+  public long    exactSize(            ) { return _nbsi._size.get(); }
+  /** 
+   * Cheap estimate of the count of elements, for callers which check the
+   * size often.  Once the size counter has grown past a few stripes, the
+   * estimate is a cached sum refreshed at most once a millisecond, so it may
+   * miss the latest updates, even the calling thread's own.
+   * @return estimated count of elements.
+   */
+  public long    estimatedSize(        ) { return Math.max(0,_nbsi._size.estimate_get()); }
+  /** 
+   * True if the set has no elements.  A non-empty word near where the last
+   * call found one proves the set is not empty without summing the size
+   * counter; only an empty (or nearly empty) set pays for the full sum.
+   * @return {@code size() == 0}
+   */
+  public boolean isEmpty  (             ) {
+    final NBSI nbsi = _nbsi;
+    final long[] bits = nbsi._bits;
+    int w = _live_hint;
+    for( int i=0; i<LIVE_PROBES; i++, w++ ) {
+      if( w >= bits.length ) w = 0;
+      if( bits[w] > 0 ) {       // Set bits, and not frozen by a copy
+        _live_hint = w;         // Start here next time
+        return false;
+      }
+    }
+    _live_hint = w;             // Look further along next time
+    return exactSize() == 0;
+  }
+  // Words checked by isEmpty for a set bit, before summing the counter.
+  private static final int LIVE_PROBES = 8;
+  // Where isEmpty last found a set bit.  Racy, it is only a hint.
+  private transient int _live_hint;
   /** Empty the bitvector. */
-  public void    clear   (             ) { 
-    NBSI cleared = new NBSI(63, new Counter(), this); // An empty initial NBSI
+  public void    clear   (             ) { clear(false); }
+
+  /** Empty the bitvector.  With {@code keepCapacity} the new empty bitvector
+   *  is the same size as the current one, so a set which is cleared and
+   *  refilled over and over does not grow from scratch every time; otherwise
+   *  it goes back to the initial 1-word size.
+   *  @param keepCapacity true to keep the current size */
+  public void    clear   ( final boolean keepCapacity ) { 
+    final int max_elem = keepCapacity ? (_nbsi._bits.length<<6)-1 : 63;
+    NBSI cleared = new NBSI(max_elem, new Counter(), this); // An empty NBSI
     while( !CAS_nbsi( _nbsi, cleared ) ) // Spin until clear works
       ;
   }
 
+  /**
+   * Grow the bitvector, if needed, so that elements {@code 0} through {@code
+   * n-1} can be added without further resizing.  Racing updates are not
+   * lost: the bitvector is grown by the normal cooperative copy, which is
+   * finished before returning.
+   * @param n the number of elements to make room for
+   * @throws IllegalArgumentException if n is negative.
+   */
+  public void ensureCapacity( final int n ) {
+    if( n < 0 ) throw new IllegalArgumentException();
+    if( n == 0 ) return;
+    while( true ) {
+      final NBSI nbsi = _nbsi;
+      if( ((n-1)>>6) < nbsi._bits.length ) return;
+      nbsi.install_larger_new_bits(n-1); // Start a copy, or find one in-progress
+      while( _nbsi == nbsi )    // And finish it
+        nbsi.help_copy(true);
+    }
+  }
+
+  /**
+   * Shrink the bitvector, if it is larger than needed, to the smallest size
+   * holding the largest element present.  Useful after removing the largest
+   * elements of a set; the bitvector otherwise never shrinks.  The
+   * bitvector is shrunk by the normal cooperative copy, which is finished
+   * before returning; racing adds of large elements may grow it again.
+   */
+  public void trimToSize() {
+    // The first pass may only finish a copy already in progress
+    for( int pass=0; pass<2; pass++ ) {
+      final NBSI nbsi = _nbsi;
+      final int len = nbsi._bits.length;
+      // Find the word holding the largest element.  The every-64th elements
+      // live in the nested bitvector, so check those one at a time.
+      int w = len-1;
+      while( w >= 0 && (nbsi._bits[w] & ~NBSI.mask(63)) == 0 && !nbsi.contains((w<<6)|63) )
+        w--;
+      int sz = 64;              // Exact powers of 2 only, same as when growing
+      while( (sz>>6) <= w ) sz <<= 1;
+      if( (sz>>6) >= len ) return; // Already as small as it gets
+      nbsi.CAS_new(new NBSI(sz, nbsi._size, this)); // Start a copy, or find one in-progress
+      while( _nbsi == nbsi )    // And finish it
+        nbsi.help_copy(true);
+    }
+  }
+
+  // --- Raw words, for BinaryCodec ------------------------------------------
+  // Number of 64-element words spanned by the bitvector, including any new
+  // bitvectors still being copied into.
+  int words() {
+    int len = 0;
+    for( NBSI nbsi = _nbsi; nbsi != null; nbsi = nbsi._new )
+      len = Math.max(len,nbsi._bits.length);
+    return len;
+  }
+
+  // Elements 64*w through 64*w+63 as a plain bitmap word.  A
+  // word frozen by a copy in progress is read an element at a time.
+  long word( final int w ) {
+    final NBSI nbsi = _nbsi;
+    long bits = w < nbsi._bits.length ? nbsi._bits[w] : -1;
+    if( bits < 0 ) {            // Frozen or out of range: ask element-wise
+      bits = 0;
+      for( int b=0; b<63; b++ )
+        if( contains((w<<6)|b) ) bits |= NBSI.mask(b);
+    }
+    if( contains((w<<6)|63) ) bits |= NBSI.mask(63); // Lives in _nbsi64
+    return bits;
+  }
+
+  // Add all the elements of plain bitmap word 'w' with a single CAS, if the
+  // word is in range and not frozen by a copy; else an element at a time.
+  void add_word( final int w, final long bits ) {
+    final NBSI nbsi = _nbsi;
+    final long lo = bits & ~NBSI.mask(63);
+    while( lo != 0 ) {
+      final long old = w < nbsi._bits.length ? nbsi._bits[w] : -1;
+      if( old < 0 ) {
+        for( int b=0; b<63; b++ )
+          if( (lo & NBSI.mask(b)) != 0 ) add((w<<6)|b);
+        break;
+      }
+      if( nbsi.CAS(w,old,old|lo) ) {
+        nbsi._size.add(Long.bitCount(lo & ~old));
+        break;
+      }
+    }
+    if( bits < 0 ) add((w<<6)|63);
+  }
+
+  // Count of resizes, and how long the last one took from installing the new
+  // bitvector to promoting it.  Only the thread promoting a bitvector writes
+  // these.
+  private transient volatile long _resizes, _last_resize_nanos;
+
+  // --- Resize executor -----------------------------------------------------
+  // Runs bitvector copies in the background, if set
+  private transient volatile Executor _resize_executor;
+  /** Set an executor to run bitvector copies on.  With an executor, each
+   *  resize hands its copy to a task on the executor, and the set's own
+   *  callers stop helping it along: they only copy the word they need.
+   *  {@link #ensureCapacity} and {@link #trimToSize} still finish the copy
+   *  themselves.  See {@link NonBlockingHashMap#setResizeExecutor}.
+   *  @param ex the executor, or null to have callers do all the copying */
+  public void setResizeExecutor( final Executor ex ) { _resize_executor = ex; }
+  /** The executor bitvector copies run on, or null; see {@link #setResizeExecutor}.
+   *  @return the resize executor, or null */
+  public Executor getResizeExecutor() { return _resize_executor; }
+
+  // Hand the copy out of 'nbsi' to the resize executor, if there is one.
+  private final void copy_in_background( final NBSI nbsi ) {
+    final Executor ex = _resize_executor;
+    if( ex == null ) return;
+    nbsi._background = true;
+    try { ex.execute(this::copy_all); }
+    catch( RejectedExecutionException e ) { nbsi._background = false; }
+  }
+  // The resize executor's task: finish the top-level copy, and any nested
+  // copies started meanwhile.
+  private final void copy_all() {
+    NBSI nbsi;
+    while( (nbsi = _nbsi)._new != null )
+      nbsi.help_copy(true);
+  }
+
+  // --- JMX -----------------------------------------------------------------
+  // The name this set's TableMXBean is registered under, if any
+  private transient volatile javax.management.ObjectName _mbean;
+  /**
+   * Register a JMX {@link TableMXBean} for this set with the platform MBean
+   * server, as
+   * {@code org.cliffc.high_scale_lib:type=NonBlockingSetInt,name=}<em>name</em>.
+   * The bean reads the live set on each call and adds no cost to the set's
+   * own operations.
+   * @param name the name for the bean
+   * @return the bean's ObjectName
+   * @throws IllegalStateException if a bean is already registered for this set
+   * @throws javax.management.JMException if the bean cannot be registered,
+   * such as when another bean has the same name
+   */
+  public javax.management.ObjectName registerMBean( final String name ) throws javax.management.JMException {
+    if( _mbean != null ) throw new IllegalStateException("already registered as "+_mbean);
+    return _mbean = TableMBeans.register("NonBlockingSetInt",name,new MBean(name));
+  }
+  /**
+   * Unregister the bean registered by {@link #registerMBean}, if any.
+   * @throws javax.management.JMException if the bean cannot be unregistered
+   */
+  public void unregisterMBean() throws javax.management.JMException {
+    final javax.management.ObjectName on = _mbean;
+    if( on == null ) return;
+    _mbean = null;
+    TableMBeans.unregister(on);
+  }
+
+  private final class MBean implements TableMXBean {
+    private final String _name;
+    MBean( final String name ) { _name = name; }
+    public String getName() { return _name; }
+    public long getSize() { return estimatedSize(); }
+    public long getCapacity() { return (long)_nbsi._bits.length<<6; }
+    public long getSlots() { return -1; }
+    public long getTombstones() { return -1; }
+    public double getAverageProbeLength() { return 0; }
+    public long getResizes() { return _resizes; }
+    public long getLastResizeNanos() { return _last_resize_nanos; }
+    public long getCopyDone() { final NBSI nbsi = _nbsi; return nbsi._new == null ? 0 : nbsi._copyDone.get(); }
+    public long getCopyTotal() { final NBSI nbsi = _nbsi; return nbsi._new == null ? 0 : nbsi._sum_bits_length; }
+    public long getResizeWaits() { return 0; }
+    public long getResizeWaitNanos() { return 0; }
+  }
+
   /** Verbose printout of internal structure for debugging. */
   public void print() { _nbsi.print(0); }
 
@@ -206,35 +415,22 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
 
     // The Bits
     private final long _bits[];
-    // --- Bits to allow Unsafe access to arrays
-    private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
-    private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
-    private static long rawIndex(final long[] ary, final int idx) {
-      assert idx >= 0 && idx < ary.length;
-      return _Lbase + idx * _Lscale;
-    }
     private final boolean CAS( int idx, long old, long nnn ) {
-      return _unsafe.compareAndSwapLong( _bits, rawIndex(_bits, idx), old, nnn );
+      return UtilAccess.CAS( _bits, idx, old, nnn );
     }
 
     // --- Resize
     // The New Table, only set once to non-zero during a resize.
     // Must be atomically set.
     private NBSI _new;
-    private static final long _new_offset;
-    static {                      // <clinit>
-      Field f = null;
-      try { 
-        f = NBSI.class.getDeclaredField("_new"); 
-      } catch( java.lang.NoSuchFieldException e ) {
-      } 
-      _new_offset = _unsafe.objectFieldOffset(f);
-    }
+    private static final UtilAccess.RefField _new_field = new UtilAccess.RefField(NBSI.class,"_new");
     private final boolean CAS_new( NBSI nnn ) {
-      return _unsafe.compareAndSwapObject(this, _new_offset, null, nnn );
+      return _new_field.CAS(this, null, nnn );
     }
 
     private transient final AtomicInteger _copyIdx;   // Used to count bits started copying
+    // True if the copy out of this bitvector was handed to the resize executor
+    private volatile boolean _background;
     private transient final AtomicInteger _copyDone;  // Used to count words copied in a resize operation
     private transient final int _sum_bits_length; // Sum of all nested _bits.lengths
 
@@ -249,6 +445,10 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
     // are all set, we shift them off and recursively operate on the _nbsi64 set.
     private final NBSI _nbsi64;
     
+    // When this bitvector was made; a new bitvector is made just before it
+    // is installed, so this times the copy into it.
+    private final long _born = System.nanoTime();
+
     private NBSI( int max_elem, Counter ctr, NonBlockingSetInt nonb ) { 
       super(); 
       _non_blocking_set_int = nonb;
@@ -270,6 +470,7 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
       // If so we need to grow the bit vector.
       if( (i>>6) >= _bits.length ) 
         return install_larger_new_bits(i). // Install larger pile-o-bits (duh)
+          help_copy_impl(i).               // Copy any nested word shared with us
           help_copy().add(i);              // Finally, add to the new table
 
       // Handle every 64th bit via using a nested array
@@ -347,11 +548,15 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
         // Grow by powers of 2, to avoid minor grow-by-1's.
         // Note: must grow by exact powers-of-2 or the by-64-bit trick doesn't work right
         int sz = (_bits.length<<6)<<1;
+        while( sz <= i && sz < (1<<30) ) sz <<= 1; // Far enough to hold 'i'
         // CAS to install a new larger size.  Did it work?  Did it fail?  We
         // don't know and don't care.  Only One can be installed, so if
         // another thread installed a too-small size, we can't help it - we
         // must simply install our new larger size as a nested-resize table.
-        CAS_new(new NBSI(sz, _size, _non_blocking_set_int));
+        if( CAS_new(new NBSI(sz, _size, _non_blocking_set_int)) ) {
+          JfrEvents.resize(_non_blocking_set_int,(long)_bits.length<<6,sz,0);
+          _non_blocking_set_int.copy_in_background(this);
+        }
       }
       // Return self for 'fluid' programming style
       return this;
@@ -359,14 +564,17 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
 
     // Help any top-level NBSI to copy until completed.
     // Always return the _new version of *this* NBSI, in case we're nested.
-    private NBSI help_copy() {
+    private NBSI help_copy() { return help_copy(false); }
+    // As above; unless 'force', leave a copy handed to the resize executor
+    // alone, beyond checking whether it is ready to promote.
+    private NBSI help_copy( final boolean force ) {
       // Pick some words to help with - but only help copy the top-level NBSI.
       // Nested NBSI waits until the top is done before we start helping.
       NBSI top_nbsi = _non_blocking_set_int._nbsi;
-      final int HELP = 8;       // Tuning number: how much copy pain are we willing to inflict?
+      final int HELP = force || !top_nbsi._background ? 8 : 0; // Tuning number: how much copy pain are we willing to inflict?
       // We "help" by forcing individual bit indices to copy.  However, bits
       // come in lumps of 64 per word, so we just advance the bit counter by 64's.
-      int idx = top_nbsi._copyIdx.getAndAdd(64*HELP);
+      int idx = HELP == 0 ? 0 : top_nbsi._copyIdx.getAndAdd(64*HELP);
       for( int i=0; i<HELP; i++ ) {
         int j = idx+i*64;
         j %= (top_nbsi._bits.length<<6); // Limit, wrap to array size; means we retry indices
@@ -380,6 +588,9 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
         // One shot CAS to promote - it may fail since we are racing; others
         // may promote as well
         if( _non_blocking_set_int.CAS_nbsi( top_nbsi, top_nbsi._new ) ) {
+          _non_blocking_set_int._last_resize_nanos = System.nanoTime() - top_nbsi._new._born;
+          _non_blocking_set_int._resizes++;
+          JfrEvents.promote(_non_blocking_set_int,(long)top_nbsi._bits.length<<6,(long)top_nbsi._new._bits.length<<6,_non_blocking_set_int._last_resize_nanos);
           //System.out.println("Promote at top level to size "+(_non_blocking_set_int._nbsi._bits.length<<6));
         }
 
@@ -400,11 +611,18 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
       NBSI nnn = _new;          // The bit array being copied to
       if( nnn == null ) return this; // Promoted already
       int j = i;                // The bit index being added
+      int depth = 0;            // Nesting depth of the word
       while( (j&63) == 63 ) {   // Bit 64? (low 6 bits are all set)
         old = old._nbsi64;      // Recurse
-        nnn = nnn._nbsi64;      // Recurse
+        if( old == null ) return this; // Nests deeper than this bitvector: no word to copy
+        nnn = nnn == null ? null : nnn._nbsi64; // Recurse; a trimmed table may nest less
         j = j>>6;               // Strip off low 6 bits (all set)
+        depth++;
       }
+      // An element past the end of this bitvector still shares a nested word
+      // with it when the nested bitvector has a partly-used last word; any
+      // other word past the end has nothing to copy.
+      if( (j>>6) >= old._bits.length ) return this;
 
       // Transit from state 1: word is not immutable yet
       // Immutable is in bit 63, the sign bit.
@@ -421,8 +639,28 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
 
       // Transit from state 2: non-zero in old and zero in new
       if( bits != mask(63) ) {  // Non-zero in old?
+        final int hi = 63-Long.numberOfLeadingZeros(bits & ~mask(63)); // Highest set bit
+        final int e = (int)elem((j&~63)|hi,depth);
+        if( (e>>6) >= _new._bits.length ) {
+          // Word holds elements beyond the end of a trimmed new table; racing
+          // adds must have put them here.  Copy the word into the first table
+          // of the new-table chain big enough for them instead, and freeze
+          // the word, empty, in each table before that one so that lookups
+          // (and later copies) pass it by.
+          NBSI y = _new;
+          while( (e>>6) >= y._bits.length ) {
+            final NBSI yn = y.nested(depth);
+            if( yn != null && (j>>6) < yn._bits.length && yn.CAS( j>>6, 0, mask(63) ) )
+              y._copyDone.addAndGet(1); // Nothing left to copy from this word
+            y = y.install_larger_new_bits(e)._new;
+          }
+          nnn = y.nested(depth);
+        }
         long new_bits = nnn._bits[j>>6];
-        if( new_bits == 0 ) {   // New array is still zero
+        // New array is still zero, and the old word not yet finished?  A
+        // finished word may have been copied and then emptied by removes, and
+        // must not be copied again.
+        if( new_bits == 0 && UtilAccess.getAcquire(old._bits,j>>6) == bits ) {
           new_bits = bits & ~mask(63); // Desired new value: a mutable copy of bits
           // One-shot CAS attempt, no loop, from 0 to non-zero.
           // If it fails, somebody else did the copy for us
@@ -443,6 +681,19 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
       return this;
     }
 
+    // The bitvector nested 'depth' deep, or null if this one nests less
+    private NBSI nested( int depth ) {
+      NBSI x = this;
+      for( int d=0; d<depth && x != null; d++ ) x = x._nbsi64;
+      return x;
+    }
+
+    // The element for bit index 'j' of the bitvector nested 'depth' deep
+    private static long elem( long j, int depth ) {
+      for( int d=0; d<depth; d++ ) j = (j<<6)|63;
+      return j;
+    }
+
     private void print( int d, String msg ) {
       for( int i=0; i<d; i++ )
         System.out.print("  ");
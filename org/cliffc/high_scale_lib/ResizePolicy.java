@@ -0,0 +1,145 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.Serializable;
+
+/**
+ * The "how big?" heuristics of a {@link NonBlockingHashMap}, {@link
+ * NonBlockingHashMapLong} or {@link NonBlockingIdentityHashMap}, given to the
+ * map when it is constructed.  A policy is immutable and may be shared by any
+ * number of maps.
+ *
+ * <ul>
+ * <li><em>loadFactor</em>: the fraction of a table's slots which may hold
+ *   keys (live or deleted) before an insert which reprobes too much starts a
+ *   new table.  A resize grows the table when at least this fraction holds
+ *   live keys, and the tables sized up front (by the constructors, bulk loads
+ *   and <tt>ensureCapacity</tt>) are padded to it.
+ * <li><em>maxReprobes</em>: reprobes an insert always makes before the table
+ *   can count as full.  Lookups give up after this many reprobes plus the
+ *   table's loadFactor share of slots.
+ * <li><em>growthFactor</em>: a power of 2; a growing table is multiplied by
+ *   this, or by its square when live keys fill twice the loadFactor.
+ * <li><em>churnMillis</em>: a table resized again within this many
+ *   milliseconds, with most of its keys dead, is taken to be under key churn
+ *   and grows instead of being copied at the same size.  0 turns this off.
+ * <li><em>shrinkFactor</em>: a table whose live keys fill less than this
+ *   fraction, and which has not been resized within churnMillis, is shrunk
+ *   back to the loadFactor.  0 never shrinks, except by
+ *   <tt>trimToSize</tt>.
+ * <li><em>predictiveGrowth</em>: a <tt>NonBlockingHashMap</tt> tracks the
+ *   rate its table fills at, and starts growing it early when the table
+ *   would fill up before a copy (timed by the last one) could finish.  The
+ *   copy then runs, as always, a little at a time alongside the updates,
+ *   ahead of an insert burst rather than in the middle of it.  The price
+ *   is memory: a burst which stops just short of filling the table may
+ *   still have grown it.  Off in the presets; the other maps ignore it.
+ * </ul>
+ *
+ * <p>{@link #DEFAULT} is what the maps use unless told otherwise, except
+ * that a <tt>NonBlockingHashMapLong</tt> optimized for space (its default)
+ * uses {@link #DENSE}.  DENSE fills tables twice as full and shrinks them
+ * readily, for memory-bound maps; {@link #SPEED} keeps them half as full and
+ * rarely shrinks them, for latency-bound maps.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public final class ResizePolicy implements Serializable {
+  private static final long serialVersionUID = 1234123412341234125L;
+
+  /** The maps' usual heuristics: tables at most 25% full, doubling. */
+  public static final ResizePolicy DEFAULT = new ResizePolicy(0.25 ,10,2,10000,0.125);
+  /** Tables up to 50% full, shrunk when under 25% live: less memory, longer
+   *  probes. */
+  public static final ResizePolicy DENSE   = new ResizePolicy(0.5  ,16,2, 1000,0.25 );
+  /** Tables at most 12.5% full, shrunk only when nearly empty: shorter
+   *  probes, more memory. */
+  public static final ResizePolicy SPEED   = new ResizePolicy(0.125, 8,2,30000,1.0/32);
+
+  private final double _load, _shrink;
+  private final int _reprobes, _growth_log;
+  private final long _churn;
+  private final boolean _predictive;
+  // loadFactor in 16-bit fixed point, so the reprobe limit is integer math
+  private final long _load16;
+
+  /** Create a new ResizePolicy.
+   *  @param loadFactor fraction of slots in use before a table is full; in (0,1]
+   *  @param maxReprobes reprobes always allowed before a table is full; at least 1
+   *  @param growthFactor factor a growing table grows by; a power of 2 from 2 to 256
+   *  @param churnMillis a resize this soon after the last may grow the table; at least 0
+   *  @param shrinkFactor live fraction below which a table shrinks; in [0,loadFactor)
+   *  @throws IllegalArgumentException if any argument is out of range */
+  public ResizePolicy( final double loadFactor, final int maxReprobes, final int growthFactor,
+                       final long churnMillis, final double shrinkFactor ) {
+    this(loadFactor,maxReprobes,growthFactor,churnMillis,shrinkFactor,false);
+  }
+
+  /** Create a new ResizePolicy, optionally with predictive growth.
+   *  @param loadFactor fraction of slots in use before a table is full; in (0,1]
+   *  @param maxReprobes reprobes always allowed before a table is full; at least 1
+   *  @param growthFactor factor a growing table grows by; a power of 2 from 2 to 256
+   *  @param churnMillis a resize this soon after the last may grow the table; at least 0
+   *  @param shrinkFactor live fraction below which a table shrinks; in [0,loadFactor)
+   *  @param predictiveGrowth start growing a filling table before it is full
+   *  @throws IllegalArgumentException if any argument is out of range */
+  public ResizePolicy( final double loadFactor, final int maxReprobes, final int growthFactor,
+                       final long churnMillis, final double shrinkFactor, final boolean predictiveGrowth ) {
+    if( !(loadFactor*65536 >= 1 && loadFactor <= 1) ) throw new IllegalArgumentException("loadFactor "+loadFactor);
+    if( maxReprobes < 1 ) throw new IllegalArgumentException("maxReprobes "+maxReprobes);
+    if( growthFactor < 2 || growthFactor > 256 || Integer.bitCount(growthFactor) != 1 ) throw new IllegalArgumentException("growthFactor "+growthFactor);
+    if( churnMillis < 0 ) throw new IllegalArgumentException("churnMillis "+churnMillis);
+    if( !(shrinkFactor >= 0 && shrinkFactor < loadFactor) ) throw new IllegalArgumentException("shrinkFactor "+shrinkFactor);
+    _load = loadFactor;
+    _load16 = (long)(loadFactor*65536);
+    _reprobes = maxReprobes;
+    _growth_log = Integer.numberOfTrailingZeros(growthFactor);
+    _churn = churnMillis;
+    _shrink = shrinkFactor;
+    _predictive = predictiveGrowth;
+  }
+
+  /** Fraction of slots in use before a table is full. */
+  public double loadFactor() { return _load; }
+  /** Reprobes always allowed before a table is full. */
+  public int maxReprobes() { return _reprobes; }
+  /** Factor a growing table grows by. */
+  public int growthFactor() { return 1<<_growth_log; }
+  /** A resize this soon after the last, in milliseconds, may grow a churning table. */
+  public long churnMillis() { return _churn; }
+  /** Live fraction below which a table shrinks. */
+  public double shrinkFactor() { return _shrink; }
+  /** True if a filling table starts growing before it is full. */
+  public boolean predictiveGrowth() { return _predictive; }
+
+  @Override public String toString() {
+    return "ResizePolicy[loadFactor="+_load+", maxReprobes="+_reprobes+", growthFactor="+growthFactor()+
+      ", churnMillis="+_churn+", shrinkFactor="+_shrink+", predictiveGrowth="+_predictive+"]";
+  }
+
+  // --- heuristics, shared by the maps --------------------------------------
+  // Slots of a 'len' table which may be in use
+  final long fill( final long len ) { return (len*_load16)>>>16; }
+  // Reprobes allowed in a 'len' table: lookups and inserts must agree
+  final long reprobe_limit( final long len ) { return _reprobes + fill(len); }
+  // Table size holding 'n' keys at the load factor
+  final long padded( final long n ) {
+    final double d = Math.ceil(n/_load);
+    return d >= Long.MAX_VALUE ? Long.MAX_VALUE : (long)d;
+  }
+  // New size for a table of 'oldlen' slots holding 'sz' live keys: grown if
+  // they fill the load factor, else just big enough for them
+  final long grown( final long sz, final long oldlen ) {
+    final long fill = fill(oldlen);
+    if( sz < fill ) return sz;
+    return sz >= (fill<<1) ? oldlen<<(_growth_log<<1) : oldlen<<_growth_log;
+  }
+  // True if a resize at 'now' is soon enough after one at 'last' to be churn
+  final boolean recent( final long now, final long last ) { return _churn > 0 && now <= last+_churn; }
+  // True if 'sz' live keys are few enough to shrink a 'len' table
+  final boolean sparse( final long sz, final long len ) { return sz < (long)(len*_shrink); }
+}
@@ -0,0 +1,68 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A place for threads to wait, briefly, while another thread allocates a
+ * large new table.  Threads which lost the race to allocate park here with a
+ * timeout; the thread which installs the new table calls {@link #release}
+ * right after its CAS, which wakes all parked threads at once.  The timeout
+ * only matters if the allocating thread stalls, and then waiters fall back
+ * to allocating the table themselves.
+ *
+ * <p>The waiters are a lock-free stack of parked threads; once released, the
+ * stack is capped with a sentinel and no further thread will park.
+ */
+final class ResizeWait {
+  private static final class Node {
+    final Thread _t;
+    Node _next;
+    Node( Thread t ) { _t = t; }
+  }
+  private static final Node RELEASED = new Node(null);
+
+  private volatile Node _head;
+  private static final AtomicReferenceFieldUpdater<ResizeWait,Node> _headUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(ResizeWait.class,Node.class, "_head");
+
+  /** Park until {@link #release} is called, the timeout passes, or
+   *  'done' reports true.  'done' is checked after this thread is visible to
+   *  the releaser, so a release racing with this call is never missed.  An
+   *  interrupted thread stops waiting at once (parking would return at once
+   *  anyhow, and spin out the timeout) and keeps its interrupt status.
+   *  @return nanoseconds spent waiting */
+  long await( final long timeout_nanos, final Done done ) {
+    final long start = System.nanoTime();
+    final Thread self = Thread.currentThread();
+    final Node n = new Node(self);
+    Node h = _head;
+    while( true ) {
+      if( h == RELEASED ) return 0;
+      n._next = h;
+      if( _headUpdater.compareAndSet(this,h,n) ) break;
+      h = _head;
+    }
+    final long deadline = start+timeout_nanos;
+    long now = start;
+    while( _head != RELEASED && !done.done() && !self.isInterrupted() && now - deadline < 0 ) {
+      LockSupport.parkNanos(this,deadline-now);
+      now = System.nanoTime();
+    }
+    return now-start;
+  }
+
+  /** Wake all waiting threads; later calls to {@link #await} return at once. */
+  void release() {
+    Node n = _headUpdater.getAndSet(this,RELEASED);
+    for( ; n != null && n != RELEASED; n = n._next )
+      LockSupport.unpark(n._t);
+  }
+
+  /** The condition being waited for. */
+  interface Done { boolean done(); }
+}
@@ -0,0 +1,30 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns keys or values into bytes and back, for the compact binary format of
+ * {@link BinaryCodec}.  The codec frames each item with its own length, so a
+ * serializer writes just the item's bytes and never needs to size it first.
+ *
+ * <p>{@link #write} puts the item at the buffer's position.  If the item does
+ * not fit it may simply let the buffer throw {@link
+ * java.nio.BufferOverflowException}: the codec then drains or enlarges the
+ * buffer and calls {@link #write} again, so the call must have no other side
+ * effects.  {@link #read} gets a buffer positioned at the item's first byte
+ * and must consume exactly <tt>len</tt> bytes.  Serializers for common types
+ * are in {@link BinaryCodec}.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public interface Serializer<T> {
+  /** Writes 't' at the position of 'buf'; 't' is never null. */
+  void write( T t, ByteBuffer buf );
+  /** Reads an item from the next 'len' bytes of 'buf'. */
+  T read( ByteBuffer buf, int len );
+}
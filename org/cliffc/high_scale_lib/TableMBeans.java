@@ -0,0 +1,36 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registration of {@link TableMXBean}s with the platform MBean server, shared
+ * by the tables' <tt>registerMBean</tt> and <tt>unregisterMBean</tt> methods.
+ */
+final class TableMBeans {
+  private TableMBeans() { } // dummy private constructor
+
+  static final String DOMAIN = "org.cliffc.high_scale_lib";
+
+  /** Register 'bean' as DOMAIN:type=<type>,name=<name>, quoting the name if
+   *  it holds characters special to ObjectNames. */
+  static ObjectName register( final String type, final String name, final TableMXBean bean ) throws JMException {
+    if( name == null ) throw new NullPointerException();
+    final String n = name.matches("[^,=:\"*?\\n]*") ? name : ObjectName.quote(name);
+    final ObjectName on = new ObjectName(DOMAIN+":type="+type+",name="+n);
+    // The beans are private classes; StandardMBean lets JMX reach them
+    // through the public interface alone.
+    ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(bean,TableMXBean.class,true),on);
+    return on;
+  }
+
+  static void unregister( final ObjectName on ) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+
+/**
+ * Operational metrics of one {@link NonBlockingHashMap}, {@link
+ * NonBlockingHashMapLong} or {@link NonBlockingSetInt}, as a JMX MXBean.
+ * Nothing is registered by default: a table is exposed by calling its
+ * <tt>registerMBean</tt> method with a name, which registers the bean with
+ * the platform MBean server as
+ * <tt>org.cliffc.high_scale_lib:type=</tt><em>class</em><tt>,name=</tt><em>name</em>.
+ *
+ * <p>The bean keeps no counters of its own; every attribute is read from
+ * the live table when asked for, so a registered but idle bean costs the
+ * table nothing.  Like the tables' own size methods, the values are only
+ * approximate while the table is being updated.  A table which is resizing
+ * over and over shows a climbing resize count and a copy almost always in
+ * progress.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public interface TableMXBean {
+  /** The name the table was registered under. */
+  String getName();
+  /** Estimated count of live elements; see <tt>estimatedSize</tt>. */
+  long getSize();
+  /** Slots in the current table; for a set, elements the current bitvector
+   *  can hold. */
+  long getCapacity();
+  /** Slots of the current table holding a key, live or deleted; -1 for a
+   *  set. */
+  long getSlots();
+  /** Slots of the current table holding a deleted key; they are only
+   *  reclaimed by a resize.  -1 for a set. */
+  long getTombstones();
+  /** Average count of reprobes a lookup takes to find a key, measured over
+   *  the keys in a fixed sample of the table's slots; 0 for a set. */
+  double getAverageProbeLength();
+  /** Count of resizes (new tables promoted) since the table was created. */
+  long getResizes();
+  /** Time from starting to finishing the last resize, in nanoseconds. */
+  long getLastResizeNanos();
+  /** Slots (for a set, words) copied so far by the resize in progress; 0
+   *  if there is none. */
+  long getCopyDone();
+  /** Slots (for a set, words) the resize in progress must copy; 0 if there
+   *  is none. */
+  long getCopyTotal();
+  /** Count of times a thread waited for another to allocate a new table. */
+  long getResizeWaits();
+  /** Total time threads spent waiting for another to allocate a new table,
+   *  in nanoseconds. */
+  long getResizeWaitNanos();
+}
@@ -0,0 +1,102 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.util.Arrays;
+
+/**
+ * A snapshot of the health of one {@link NonBlockingHashMap} or {@link
+ * NonBlockingHashMapLong} table, from the tables' <tt>stats()</tt> method.
+ * Every slot of the current top-level table is visited once and counted as
+ * live, tombstoned (a deleted key, whose slot is only reclaimed by a
+ * resize) or empty, and the probe length of each live key is added to a
+ * histogram.  The histogram is computed from the memoized hashes, so no
+ * user <tt>hashCode</tt> is called for it; a long tail in it points at a
+ * poor <tt>hashCode</tt>, and a high tombstone ratio at a table bloated by
+ * churn.
+ *
+ * <p>The walk does not stop racing updates, so under concurrent updates the
+ * counts are approximate, much like an iterator's view.  A snapshot is
+ * immutable once returned.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public final class TableStats {
+  private final long _capacity, _live, _tombstones, _empty;
+  private final long[] _probes; // _probes[d] is the count of live keys d reprobes from home
+  private final int _depth;
+  private final long _bytes;
+
+  TableStats( final Tally t, final long capacity, final int depth, final long bytes ) {
+    _capacity = capacity;
+    _live = t._live;
+    _tombstones = t._tombstones;
+    _empty = capacity - t._live - t._tombstones;
+    _probes = Arrays.copyOf(t._probes,t._max+1);
+    _depth = depth;
+    _bytes = bytes;
+  }
+
+  /** Slots in the current top-level table. */
+  public long capacity() { return _capacity; }
+  /** Slots holding a live key. */
+  public long live() { return _live; }
+  /** Slots holding a deleted key. */
+  public long tombstones() { return _tombstones; }
+  /** Slots never claimed by any key. */
+  public long empty() { return _empty; }
+  /** Tombstoned slots as a fraction of all claimed slots; 0 if none are claimed. */
+  public double tombstoneRatio() {
+    final long claimed = _live+_tombstones;
+    return claimed == 0 ? 0 : (double)_tombstones/claimed;
+  }
+  /** The probe-length histogram: element <tt>d</tt> is the count of live
+   *  keys found <tt>d</tt> reprobes past their home slot.  The last element
+   *  is the longest probe, so the length is {@link #maxProbeLength} + 1. */
+  public long[] probeHistogram() { return _probes.clone(); }
+  /** The longest probe of any live key. */
+  public int maxProbeLength() { return _probes.length-1; }
+  /** The average probe length of the live keys. */
+  public double averageProbeLength() {
+    long n=0, sum=0;
+    for( int d=0; d<_probes.length; d++ ) { n += _probes[d]; sum += d*_probes[d]; }
+    return n == 0 ? 0 : (double)sum/n;
+  }
+  /** Tables in the chain of in-progress resizes: 1 when no resize is in
+   *  progress, more while a copy into a new table (or several nested new
+   *  tables) is unfinished. */
+  public int depth() { return _depth; }
+  /** Estimated bytes held by the table arrays of every table in the chain,
+   *  not counting the keys and values themselves.  References are guessed at
+   *  4 bytes each, as with compressed pointers. */
+  public long retainedBytes() { return _bytes; }
+
+  @Override public String toString() {
+    return "TableStats[capacity="+_capacity+", live="+_live+", tombstones="+_tombstones+
+      ", empty="+_empty+", depth="+_depth+", bytes="+_bytes+
+      ", maxProbe="+maxProbeLength()+", avgProbe="+String.format("%.3f",averageProbeLength())+"]";
+  }
+
+  // --- Tally ---------------------------------------------------------------
+  // Counts gathered by a table while walking its slots.
+  static final class Tally {
+    long _live, _tombstones;
+    long[] _probes = new long[8];
+    int _max;                   // Longest probe seen
+    void live( final long dist ) {
+      _live++;
+      if( dist >= _probes.length )
+        _probes = Arrays.copyOf(_probes,(int)Math.max(dist+1,_probes.length<<1));
+      _probes[(int)dist]++;
+      if( dist > _max ) _max = (int)dist;
+    }
+    void tombstone() { _tombstones++; }
+  }
+
+  // Estimated bytes of an array of 'len' elements of 'elem' bytes each
+  static long array_bytes( final long len, final int elem ) { return 16+len*elem; }
+  static final int REF_BYTES = 4;
+}
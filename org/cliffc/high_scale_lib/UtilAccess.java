@@ -0,0 +1,74 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.lang.reflect.Field;
+import sun.misc.Unsafe;
+
+/**
+ * Array-slot and field access used by all the non-blocking classes, so that
+ * the memory-ordering mode of each access is chosen in one place.
+ *
+ * <p>This version is built on {@link Unsafe} and is used on JDK 8.  The jar
+ * is a multi-release jar: JDK 9 and later instead load the version from
+ * <tt>META-INF/versions/9</tt>, which is built on {@link
+ * java.lang.invoke.VarHandle} and never touches {@link Unsafe}.  Both
+ * versions must keep the same package-private API.  Unsafe has no relaxed
+ * orderings, so here the acquire loads are plain loads (as these algorithms
+ * have always done, relying on a following volatile read) and the plain weak
+ * CAS is a full CAS.
+ */
+final class UtilAccess {
+  private UtilAccess() { } // dummy private constructor
+
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
+  private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
+  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
+  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
+  private static long rawIndex(final Object[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Obase + (long)idx * _Oscale;
+  }
+  private static long rawIndex(final long[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Lbase + (long)idx * _Lscale;
+  }
+
+  /** Volatile-strength CAS of an array slot. */
+  static boolean CAS( final Object[] A, final int idx, final Object old, final Object nnn ) {
+    return _unsafe.compareAndSwapObject( A, rawIndex(A,idx), old, nnn );
+  }
+  /** Volatile-strength CAS of an array slot. */
+  static boolean CAS( final long[] A, final int idx, final long old, final long nnn ) {
+    return _unsafe.compareAndSwapLong( A, rawIndex(A,idx), old, nnn );
+  }
+  /** CAS with no ordering guarantees which may fail spuriously; for slots
+   *  which only need atomicity, such as counter stripes. */
+  static boolean weakCAS_plain( final long[] A, final int idx, final long old, final long nnn ) {
+    return _unsafe.compareAndSwapLong( A, rawIndex(A,idx), old, nnn );
+  }
+  /** Volatile load of an array slot. */
+  static Object getVolatile( final Object[] A, final int idx ) { return _unsafe.getObjectVolatile( A, rawIndex(A,idx) ); }
+  /** Load of an array slot, ordered before all following loads. */
+  static Object getAcquire( final Object[] A, final int idx ) { return A[idx]; }
+  /** Load of an array slot, ordered before all following loads. */
+  static long getAcquire( final long[] A, final int idx ) { return A[idx]; }
+
+  /** A CAS-able reference field of some class. */
+  static final class RefField {
+    private final long _offset;
+    RefField( final Class<?> clz, final String name ) {
+      try {
+        final Field f = clz.getDeclaredField(name);
+        _offset = _unsafe.objectFieldOffset(f);
+      } catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    }
+    /** Volatile-strength CAS of the field in object 'o'. */
+    boolean CAS( final Object o, final Object old, final Object nnn ) {
+      return _unsafe.compareAndSwapObject( o, _offset, old, nnn );
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the tables' rare internal transitions:
+ * resizes, copy chunks and panic copies, promotions, bitvector growth and
+ * counter stripe doubling.
+ *
+ * <p>This is the JDK 11+ version, packed into <tt>META-INF/versions/11</tt>
+ * of the multi-release jar; older JDKs use the do-nothing version in the main
+ * source tree.  Both versions must keep the same package-private API.  Each
+ * method makes its event and checks it is enabled before doing anything
+ * else; disabled, the JIT reduces that to a test of a constant.  The copy
+ * chunk event can fire thousands of times per resize, so it is off unless a
+ * recording turns it on.
+ */
+final class JfrEvents {
+  private JfrEvents() { } // dummy private constructor
+
+  @Name("org.cliffc.high_scale_lib.Resize")
+  @Label("Table Resize")
+  @Category("High Scale Lib")
+  @Description("A new, larger or smaller, table was installed and a copy into it begun")
+  static final class Resize extends Event {
+    @Label("Table Class")   Class<?> tableClass;
+    @Label("Table Id")      int tableId;
+    @Label("Old Size")      long oldSize;
+    @Label("New Size")      long newSize;
+    @Label("Waited") @Timespan long waited;
+  }
+  static void resize( Object table, long oldlen, long newlen, long waited_nanos ) {
+    final Resize e = new Resize();
+    if( !e.isEnabled() ) return;
+    e.tableClass = table.getClass();
+    e.tableId = System.identityHashCode(table);
+    e.oldSize = oldlen;
+    e.newSize = newlen;
+    e.waited = waited_nanos;
+    e.commit();
+  }
+
+  @Name("org.cliffc.high_scale_lib.CopyChunk")
+  @Label("Table Copy Chunk")
+  @Category("High Scale Lib")
+  @Description("A thread helped copy a chunk of slots into a new table")
+  @Enabled(false)
+  static final class CopyChunk extends Event {
+    @Label("Table Class")   Class<?> tableClass;
+    @Label("Table Id")      int tableId;
+    @Label("Old Size")      long oldSize;
+    @Label("Chunk")         long chunk;
+    @Label("Slots Copied")  long workDone;
+    @Label("Panic")         boolean panic;
+  }
+  static void copy_chunk( Object table, long oldlen, long chunk, long workdone, boolean panic ) {
+    final CopyChunk e = new CopyChunk();
+    if( !e.isEnabled() ) return;
+    e.tableClass = table.getClass();
+    e.tableId = System.identityHashCode(table);
+    e.oldSize = oldlen;
+    e.chunk = chunk;
+    e.workDone = workdone;
+    e.panic = panic;
+    e.commit();
+  }
+
+  @Name("org.cliffc.high_scale_lib.PanicCopy")
+  @Label("Table Panic Copy")
+  @Category("High Scale Lib")
+  @Description("A thread found every chunk claimed twice over and began copying the whole table itself")
+  static final class PanicCopy extends Event {
+    @Label("Table Class")   Class<?> tableClass;
+    @Label("Table Id")      int tableId;
+    @Label("Old Size")      long oldSize;
+  }
+  static void panic( Object table, long oldlen ) {
+    final PanicCopy e = new PanicCopy();
+    if( !e.isEnabled() ) return;
+    e.tableClass = table.getClass();
+    e.tableId = System.identityHashCode(table);
+    e.oldSize = oldlen;
+    e.commit();
+  }
+
+  @Name("org.cliffc.high_scale_lib.Promote")
+  @Label("Table Promote")
+  @Category("High Scale Lib")
+  @Description("A copy finished and the new table replaced the old")
+  static final class Promote extends Event {
+    @Label("Table Class")   Class<?> tableClass;
+    @Label("Table Id")      int tableId;
+    @Label("Old Size")      long oldSize;
+    @Label("New Size")      long newSize;
+    @Label("Copy Time") @Timespan long copyTime;
+  }
+  static void promote( Object table, long oldlen, long newlen, long copy_nanos ) {
+    final Promote e = new Promote();
+    if( !e.isEnabled() ) return;
+    e.tableClass = table.getClass();
+    e.tableId = System.identityHashCode(table);
+    e.oldSize = oldlen;
+    e.newSize = newlen;
+    e.copyTime = copy_nanos;
+    e.commit();
+  }
+
+  @Name("org.cliffc.high_scale_lib.CounterGrow")
+  @Label("Counter Stripes Doubled")
+  @Category("High Scale Lib")
+  @Description("A striped counter doubled its stripes after CAS contention")
+  static final class CounterGrow extends Event {
+    @Label("Counter Class") Class<?> counterClass;
+    @Label("Counter Id")    int counterId;
+    @Label("Old Stripes")   long oldStripes;
+    @Label("New Stripes")   long newStripes;
+  }
+  static void counter_grow( Object counter, long oldlen, long newlen ) {
+    final CounterGrow e = new CounterGrow();
+    if( !e.isEnabled() ) return;
+    e.counterClass = counter.getClass();
+    e.counterId = System.identityHashCode(counter);
+    e.oldStripes = oldlen;
+    e.newStripes = newlen;
+    e.commit();
+  }
+}
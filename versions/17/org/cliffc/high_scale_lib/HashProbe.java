@@ -0,0 +1,103 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Bulk skipping of a probe sequence: from a key's first slot, count the
+ * slots which certainly hold some other key, so that a lookup can jump past
+ * them all at once.  For a {@link NonBlockingHashMap} probing fingerprints
+ * the slots are its memoized hashes, and for a {@link
+ * NonBlockingHashMapLong} the keys themselves.  A slot stops the skip if it
+ * matches, or is zero (empty, or a hash not yet memoized).
+ *
+ * <p>This is the JDK 17+ version, packed into <tt>META-INF/versions/17</tt>
+ * of the multi-release jar; older JDKs use the scalar version in the main
+ * source tree.  Both versions must keep the same package-private API.  The
+ * Vector API is still an incubator module, so it is only used when the JVM
+ * was started with <tt>--add-modules jdk.incubator.vector</tt>; otherwise
+ * {@link #VECTOR} is false and the maps keep their own scalar loops.  The
+ * first slot is checked on its own, as most lookups stop there; after that
+ * a whole vector of slots (say 8 or 16 hashes, or 4 or 8 keys) is compared
+ * at a time, falling back to single slots where the run wraps around the
+ * end of the table or nears 'max'.
+ */
+final class HashProbe {
+  private HashProbe() { } // dummy private constructor
+
+  /** True if skipping is vectorized, and worth calling. */
+  static final boolean VECTOR =
+    ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+  /** Count of slots from idx on (wrapping) holding a hash other than
+   *  'fullhash' and 0; at most 'max'. */
+  static int skip( final int[] hashes, final int idx, final int fullhash, final int max ) {
+    if( max <= 0 ) return 0;
+    final int h = hashes[idx];
+    if( h == 0 || h == fullhash ) return 0; // The usual case: stop at once
+    return Vec.skip(hashes,idx,fullhash,max);
+  }
+
+  /** Count of slots from idx on (wrapping) holding a key other than 'key'
+   *  and 0; at most 'max'. */
+  static int skip( final long[] keys, final int idx, final long key, final int max ) {
+    if( max <= 0 ) return 0;
+    final long K = keys[idx];
+    if( K == 0 || K == key ) return 0; // The usual case: stop at once
+    return Vec.skip(keys,idx,key,max);
+  }
+
+  // Only loaded (and linked against the incubator module) once a first slot
+  // is skipped, which only happens when VECTOR is true.
+  private static final class Vec {
+    private static final VectorSpecies<Integer> INTS  = IntVector .SPECIES_PREFERRED;
+    private static final VectorSpecies<Long>    LONGS = LongVector.SPECIES_PREFERRED;
+
+    // Slot idx is known to be skipped
+    static int skip( final int[] hashes, final int idx, final int fullhash, final int max ) {
+      final int len = hashes.length, lanes = INTS.length();
+      int n = 1;
+      while( n < max ) {
+        final int i = (idx+n)&(len-1);
+        if( i+lanes <= len && n+lanes <= max ) {
+          final IntVector v = IntVector.fromArray(INTS,hashes,i);
+          final VectorMask<Integer> stop = v.compare(VectorOperators.EQ,fullhash).or(v.compare(VectorOperators.EQ,0));
+          if( stop.anyTrue() ) return n+stop.firstTrue();
+          n += lanes;
+        } else {                // Wrapping, or near the end: one at a time
+          final int h = hashes[i];
+          if( h == 0 || h == fullhash ) return n;
+          n++;
+        }
+      }
+      return max;
+    }
+
+    // Slot idx is known to be skipped
+    static int skip( final long[] keys, final int idx, final long key, final int max ) {
+      final int len = keys.length, lanes = LONGS.length();
+      int n = 1;
+      while( n < max ) {
+        final int i = (idx+n)&(len-1);
+        if( i+lanes <= len && n+lanes <= max ) {
+          final LongVector v = LongVector.fromArray(LONGS,keys,i);
+          final VectorMask<Long> stop = v.compare(VectorOperators.EQ,key).or(v.compare(VectorOperators.EQ,0L));
+          if( stop.anyTrue() ) return n+stop.firstTrue();
+          n += lanes;
+        } else {                // Wrapping, or near the end: one at a time
+          final long K = keys[i];
+          if( K == 0 || K == key ) return n;
+          n++;
+        }
+      }
+      return max;
+    }
+  }
+}
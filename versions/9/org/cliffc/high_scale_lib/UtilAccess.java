@@ -0,0 +1,60 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Array-slot and field access used by all the non-blocking classes, so that
+ * the memory-ordering mode of each access is chosen in one place.
+ *
+ * <p>This is the JDK 9+ version, packed into <tt>META-INF/versions/9</tt> of
+ * the multi-release jar; JDK 8 uses the {@link sun.misc.Unsafe} based version
+ * in the main source tree.  Both versions must keep the same package-private
+ * API.  Here the relaxed modes are real: acquire loads, and a plain weak CAS
+ * which on LL/SC machines skips the fences and the retry loop of a full CAS.
+ */
+final class UtilAccess {
+  private UtilAccess() { } // dummy private constructor
+
+  private static final VarHandle _Oary = MethodHandles.arrayElementVarHandle(Object[].class);
+  private static final VarHandle _Lary = MethodHandles.arrayElementVarHandle(long[].class);
+
+  /** Volatile-strength CAS of an array slot. */
+  static boolean CAS( final Object[] A, final int idx, final Object old, final Object nnn ) {
+    return _Oary.compareAndSet( A, idx, old, nnn );
+  }
+  /** Volatile-strength CAS of an array slot. */
+  static boolean CAS( final long[] A, final int idx, final long old, final long nnn ) {
+    return _Lary.compareAndSet( A, idx, old, nnn );
+  }
+  /** CAS with no ordering guarantees which may fail spuriously; for slots
+   *  which only need atomicity, such as counter stripes. */
+  static boolean weakCAS_plain( final long[] A, final int idx, final long old, final long nnn ) {
+    return _Lary.weakCompareAndSetPlain( A, idx, old, nnn );
+  }
+  /** Volatile load of an array slot. */
+  static Object getVolatile( final Object[] A, final int idx ) { return (Object)_Oary.getVolatile( A, idx ); }
+  /** Load of an array slot, ordered before all following loads. */
+  static Object getAcquire( final Object[] A, final int idx ) { return (Object)_Oary.getAcquire( A, idx ); }
+  /** Load of an array slot, ordered before all following loads. */
+  static long getAcquire( final long[] A, final int idx ) { return (long)_Lary.getAcquire( A, idx ); }
+
+  /** A CAS-able reference field of some class. */
+  static final class RefField {
+    private final VarHandle _vh;
+    RefField( final Class<?> clz, final String name ) {
+      try {
+        _vh = MethodHandles.privateLookupIn(clz,MethodHandles.lookup())
+          .findVarHandle(clz,name,clz.getDeclaredField(name).getType());
+      } catch( ReflectiveOperationException e ) { throw new RuntimeException(e); }
+    }
+    /** Volatile-strength CAS of the field in object 'o'. */
+    boolean CAS( final Object o, final Object old, final Object nnn ) {
+      return _vh.compareAndSet( o, old, nnn );
+    }
+  }
+}